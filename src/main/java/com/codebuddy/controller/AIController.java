@@ -3,12 +3,23 @@ package com.codebuddy.controller;
 import com.codebuddy.model.AIRequest;
 import com.codebuddy.model.AIResponse;
 import com.codebuddy.service.AIService;
+import com.codebuddy.service.AIStreamListener;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * REST controller for AI assistance
+ * REST controller for AI assistance. Handlers return futures, so no request
+ * thread waits while the AI answers; the /stream variants send the answer
+ * as server-sent events while it is generated.
  */
 @RestController
 @RequestMapping("/api/ai")
@@ -18,45 +29,95 @@ public class AIController {
     @Autowired
     private AIService aiService;
 
+    @Value("${spring.mvc.async.request-timeout:70000}")
+    private long streamTimeoutMs;
+
+    private static final Map<String, AIRequest.AIAction> ACTIONS = Map.of(
+            "explain", AIRequest.AIAction.EXPLAIN,
+            "fix", AIRequest.AIAction.FIX_BUGS,
+            "comment", AIRequest.AIAction.ADD_COMMENTS,
+            "generate", AIRequest.AIAction.GENERATE_FUNCTION,
+            "optimize", AIRequest.AIAction.OPTIMIZE,
+            "review", AIRequest.AIAction.REVIEW);
+
     @PostMapping("/explain")
-    public ResponseEntity<AIResponse> explainCode(@RequestBody AIRequest request) {
+    public CompletableFuture<ResponseEntity<AIResponse>> explainCode(@RequestBody AIRequest request) {
         request.setAction(AIRequest.AIAction.EXPLAIN);
-        AIResponse response = aiService.processRequest(request);
-        return ResponseEntity.ok(response);
+        return aiService.processRequest(request).thenApply(ResponseEntity::ok);
     }
 
     @PostMapping("/fix")
-    public ResponseEntity<AIResponse> fixBugs(@RequestBody AIRequest request) {
+    public CompletableFuture<ResponseEntity<AIResponse>> fixBugs(@RequestBody AIRequest request) {
         request.setAction(AIRequest.AIAction.FIX_BUGS);
-        AIResponse response = aiService.processRequest(request);
-        return ResponseEntity.ok(response);
+        return aiService.processRequest(request).thenApply(ResponseEntity::ok);
     }
 
     @PostMapping("/comment")
-    public ResponseEntity<AIResponse> addComments(@RequestBody AIRequest request) {
+    public CompletableFuture<ResponseEntity<AIResponse>> addComments(@RequestBody AIRequest request) {
         request.setAction(AIRequest.AIAction.ADD_COMMENTS);
-        AIResponse response = aiService.processRequest(request);
-        return ResponseEntity.ok(response);
+        return aiService.processRequest(request).thenApply(ResponseEntity::ok);
     }
 
     @PostMapping("/generate")
-    public ResponseEntity<AIResponse> generateFunction(@RequestBody AIRequest request) {
+    public CompletableFuture<ResponseEntity<AIResponse>> generateFunction(@RequestBody AIRequest request) {
         request.setAction(AIRequest.AIAction.GENERATE_FUNCTION);
-        AIResponse response = aiService.processRequest(request);
-        return ResponseEntity.ok(response);
+        return aiService.processRequest(request).thenApply(ResponseEntity::ok);
     }
 
     @PostMapping("/optimize")
-    public ResponseEntity<AIResponse> optimizeCode(@RequestBody AIRequest request) {
+    public CompletableFuture<ResponseEntity<AIResponse>> optimizeCode(@RequestBody AIRequest request) {
         request.setAction(AIRequest.AIAction.OPTIMIZE);
-        AIResponse response = aiService.processRequest(request);
-        return ResponseEntity.ok(response);
+        return aiService.processRequest(request).thenApply(ResponseEntity::ok);
     }
 
     @PostMapping("/review")
-    public ResponseEntity<AIResponse> reviewCode(@RequestBody AIRequest request) {
+    public CompletableFuture<ResponseEntity<AIResponse>> reviewCode(@RequestBody AIRequest request) {
         request.setAction(AIRequest.AIAction.REVIEW);
-        AIResponse response = aiService.processRequest(request);
-        return ResponseEntity.ok(response);
+        return aiService.processRequest(request).thenApply(ResponseEntity::ok);
+    }
+
+    /**
+     * Streams the answer to any of the actions above as events: "token" with
+     * the next piece of text, "code" with each code block once it closes, and
+     * a final "done" with the complete response.
+     */
+    @PostMapping(value = "/{action}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> stream(@PathVariable String action, @RequestBody AIRequest request) {
+        AIRequest.AIAction aiAction = ACTIONS.get(action);
+        if (aiAction == null) {
+            return ResponseEntity.notFound().build();
+        }
+        request.setAction(aiAction);
+
+        SseEmitter emitter = new SseEmitter(streamTimeoutMs);
+        aiService.streamRequest(request, new AIStreamListener() {
+            @Override
+            public void onToken(String token) {
+                send(emitter, "token", Map.of("text", token));
+            }
+
+            @Override
+            public void onCodeBlock(String code) {
+                send(emitter, "code", Map.of("code", code));
+            }
+        }).whenComplete((response, error) -> {
+            try {
+                emitter.send(SseEmitter.event().name("done").data(response, MediaType.APPLICATION_JSON));
+                emitter.complete();
+            } catch (IOException | RuntimeException e) {
+                // The client is gone
+                emitter.completeWithError(e);
+            }
+        });
+        return ResponseEntity.ok(emitter);
+    }
+
+    // A failed send means the client disconnected; throwing aborts the AI request
+    private static void send(SseEmitter emitter, String event, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(event).data(data, MediaType.APPLICATION_JSON));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
-}
\ No newline at end of file
+}
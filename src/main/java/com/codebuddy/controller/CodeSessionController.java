@@ -1,16 +1,35 @@
 package com.codebuddy.controller;
 
 import com.codebuddy.model.CodeSession;
+import com.codebuddy.model.MessagePage;
+import com.codebuddy.model.SessionPage;
+import com.codebuddy.model.SessionSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.codebuddy.service.ChatHistoryService;
+import com.codebuddy.service.CollaborativeDocument;
+import com.codebuddy.service.DocumentSyncService;
+import com.codebuddy.service.RoomExecutor;
 import com.codebuddy.service.SessionService;
+import com.codebuddy.websocket.CodeWebSocketHandler;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
- * REST controller for managing coding sessions
+ * REST controller for managing coding sessions. Session and file reads carry
+ * strong ETags and answer conditional requests with 304; code writes accept
+ * If-Match and answer 412 when the session or file has moved on.
  */
 @RestController
 @RequestMapping("/api/sessions")
@@ -20,6 +39,23 @@ public class CodeSessionController {
     @Autowired
     private SessionService sessionService;
 
+    @Autowired
+    private DocumentSyncService documentSyncService;
+
+    @Autowired
+    private RoomExecutor roomExecutor;
+
+    @Autowired
+    private ChatHistoryService chatHistoryService;
+
+    @Autowired
+    private CodeWebSocketHandler codeWebSocketHandler;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private static final String NDJSON = "application/x-ndjson";
+
     @PostMapping
     public ResponseEntity<CodeSession> createSession(@RequestBody Map<String, String> request) {
         String name = request.get("name");
@@ -31,36 +67,118 @@ public class CodeSessionController {
     }
 
     @GetMapping("/{sessionId}")
-    public ResponseEntity<CodeSession> getSession(@PathVariable String sessionId) {
-        return sessionService.getSession(sessionId)
-                .map(ResponseEntity::ok)
-                .orElse(ResponseEntity.notFound().build());
+    public ResponseEntity<CodeSession> getSession(
+            @PathVariable String sessionId,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        CodeSession session = sessionService.getSession(sessionId).orElse(null);
+        if (session == null) {
+            return ResponseEntity.notFound().build();
+        }
+        // Taken before the body is written, so the tag is never newer than the content sent with it
+        String eTag = sessionETag(session.getVersion());
+        if (matches(ifNoneMatch, eTag, null, true)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+        return ResponseEntity.ok().eTag(eTag).body(session);
+    }
+
+    @GetMapping(value = "/{sessionId}/files", produces = MediaType.TEXT_PLAIN_VALUE)
+    public ResponseEntity<String> getFile(
+            @PathVariable String sessionId,
+            @RequestParam String filename,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String content = sessionService.getSession(sessionId)
+                .map(session -> session.getFiles().get(filename))
+                .orElse(null);
+        if (content == null) {
+            return ResponseEntity.notFound().build();
+        }
+        String eTag = fileETag(content);
+        if (matches(ifNoneMatch, eTag, null, true)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+        }
+        return ResponseEntity.ok().eTag(eTag).body(content);
     }
 
     @GetMapping("/user/{userId}")
-    public ResponseEntity<List<CodeSession>> getUserSessions(@PathVariable String userId) {
-        List<CodeSession> sessions = sessionService.getUserSessions(userId);
-        return ResponseEntity.ok(sessions);
+    public ResponseEntity<SessionPage> getUserSessions(
+            @PathVariable String userId,
+            @RequestParam(required = false) String before,
+            @RequestParam(defaultValue = "50") int limit) {
+        try {
+            return ResponseEntity.ok(sessionService.getUserSessions(userId, before, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @GetMapping(value = "/user/{userId}", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamUserSessions(@PathVariable String userId) {
+        return ndjson(() -> sessionService.streamUserSessions(userId));
     }
 
     @GetMapping("/active")
-    public ResponseEntity<List<CodeSession>> getActiveSessions() {
-        List<CodeSession> sessions = sessionService.getActiveSessions();
-        return ResponseEntity.ok(sessions);
+    public ResponseEntity<SessionPage> getActiveSessions(
+            @RequestParam(required = false) String before,
+            @RequestParam(defaultValue = "50") int limit) {
+        try {
+            return ResponseEntity.ok(sessionService.getActiveSessions(before, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @GetMapping(value = "/active", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamActiveSessions() {
+        return ndjson(sessionService::streamActiveSessions);
     }
 
+    @GetMapping("/{sessionId}/messages")
+    public ResponseEntity<MessagePage> getMessages(
+            @PathVariable String sessionId,
+            @RequestParam(required = false) String before,
+            @RequestParam(defaultValue = "50") int limit) {
+        try {
+            return ResponseEntity.ok(chatHistoryService.page(sessionId, before, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    /**
+     * Replaces the content of a file. With If-Match, the write only happens
+     * if the tag is the current ETag of the session or of the file.
+     */
     @PutMapping("/{sessionId}/code")
     public ResponseEntity<CodeSession> updateCode(
             @PathVariable String sessionId,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
             @RequestBody Map<String, String> request) {
         String filename = request.get("filename");
         String content = request.get("content");
         
-        CodeSession session = sessionService.updateSessionCode(sessionId, filename, content);
-        if (session != null) {
-            return ResponseEntity.ok(session);
+        if (sessionService.getSession(sessionId).isEmpty()) {
+            return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.notFound().build();
+        // Go through the live document, in the room's edit order, so connected editors are not overwritten by a stale copy.
+        // The precondition is checked in the same task, so no edit can land between the check and the write.
+        boolean written = roomExecutor.submit(sessionId, () -> {
+            if (ifMatch != null && !isCurrent(sessionId, filename, ifMatch)) {
+                return false;
+            }
+            DocumentSyncService.AppliedOperation applied = documentSyncService.replaceContent(sessionId, filename, content);
+            // Open editors receive the write as an operation, so their next edits transform against it
+            codeWebSocketHandler.broadcastOperation(sessionId, filename, applied, request.get("userId"));
+            return true;
+        }).join();
+        CodeSession session = sessionService.getSession(sessionId).orElse(null);
+        if (session == null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!written) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).eTag(sessionETag(session.getVersion())).build();
+        }
+        return ResponseEntity.ok().eTag(sessionETag(session.getVersion())).body(session);
     }
 
     @PostMapping("/{sessionId}/collaborators")
@@ -71,14 +189,19 @@ public class CodeSessionController {
         
         CodeSession session = sessionService.addCollaborator(sessionId, userId);
         if (session != null) {
-            return ResponseEntity.ok(session);
+            return ResponseEntity.ok().eTag(sessionETag(session.getVersion())).body(session);
         }
         return ResponseEntity.notFound().build();
     }
 
     @DeleteMapping("/{sessionId}")
     public ResponseEntity<Void> deleteSession(@PathVariable String sessionId) {
-        sessionService.deleteSession(sessionId);
+        // In the room's mailbox, so edits queued before the delete cannot write the session back
+        roomExecutor.submit(sessionId, () -> {
+            codeWebSocketHandler.discardRoom(sessionId);
+            sessionService.deleteSession(sessionId);
+            return null;
+        }).join();
         return ResponseEntity.ok().build();
     }
 
@@ -86,8 +209,75 @@ public class CodeSessionController {
     public ResponseEntity<CodeSession> deactivateSession(@PathVariable String sessionId) {
         CodeSession session = sessionService.deactivateSession(sessionId);
         if (session != null) {
-            return ResponseEntity.ok(session);
+            return ResponseEntity.ok().eTag(sessionETag(session.getVersion())).body(session);
         }
         return ResponseEntity.notFound().build();
     }
-}
\ No newline at end of file
+
+    private boolean isCurrent(String sessionId, String filename, String ifMatch) {
+        CodeSession session = sessionService.getSession(sessionId).orElse(null);
+        if (session == null) {
+            return false;
+        }
+        long version;
+        String content;
+        synchronized (session) {
+            version = session.getVersion();
+            content = session.getFiles().get(filename);
+        }
+        return matches(ifMatch, sessionETag(version), content != null ? fileETag(content) : null, false);
+    }
+
+    private static String sessionETag(long version) {
+        return "\"" + version + "\"";
+    }
+
+    // Content-derived, so the tag stays the same across restarts and nodes
+    private static String fileETag(String content) {
+        return "\"" + CollaborativeDocument.hash(content) + "\"";
+    }
+
+    /**
+     * Whether a conditional header lists one of the current tags. If-None-Match
+     * compares weakly, ignoring a W/ prefix; If-Match only accepts strong tags.
+     */
+    private static boolean matches(String header, String eTag, String otherETag, boolean weak) {
+        if (header == null) {
+            return false;
+        }
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                if (!weak) {
+                    continue;
+                }
+                tag = tag.substring(2);
+            }
+            if (tag.equals(eTag) || tag.equals(otherETag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // One summary per line, written as the database cursor is read, so large listings are never held in memory
+    private ResponseEntity<StreamingResponseBody> ndjson(Supplier<Stream<SessionSummary>> sessions) {
+        StreamingResponseBody body = out -> {
+            try (Stream<SessionSummary> stream = sessions.get()) {
+                Iterator<SessionSummary> iterator = stream.iterator();
+                while (iterator.hasNext()) {
+                    writeLine(out, iterator.next());
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+    }
+
+    private void writeLine(OutputStream out, SessionSummary session) throws IOException {
+        out.write(objectMapper.writeValueAsBytes(session));
+        out.write('\n');
+    }
+}
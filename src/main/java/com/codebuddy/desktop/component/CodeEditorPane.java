@@ -1,5 +1,6 @@
 package com.codebuddy.desktop.component;
 
+import com.codebuddy.model.TextOperation;
 import org.fxmisc.richtext.CodeArea;
 import org.fxmisc.richtext.LineNumberFactory;
 import org.fxmisc.richtext.model.StyleSpans;
@@ -17,6 +18,9 @@ import java.util.regex.Pattern;
 public class CodeEditorPane extends StackPane {
 
     private final CodeArea codeArea;
+    // Set while a remote edit is applied, so it is not reported back as a local one
+    private boolean applyingRemote;
+    private Runnable onEdited;
     
     // Java syntax highlighting patterns
     private static final String[] KEYWORDS = new String[] {
@@ -60,6 +64,10 @@ public class CodeEditorPane extends StackPane {
                     codeArea.setStyleSpans(0, computeHighlighting(codeArea.getText()));
                 });
 
+        codeArea.plainTextChanges()
+                .filter(ch -> !applyingRemote && onEdited != null)
+                .subscribe(change -> onEdited.run());
+
         // Set initial content
         codeArea.replaceText(0, 0, getSampleJavaCode());
         
@@ -104,6 +112,51 @@ public class CodeEditorPane extends StackPane {
         codeArea.replaceText(text);
     }
 
+    /**
+     * Called on the FX thread after every edit made by the user.
+     */
+    public void setOnEdited(Runnable onEdited) {
+        this.onEdited = onEdited;
+    }
+
+    /**
+     * Replaces the text on behalf of another client; not reported as an edit.
+     */
+    public void setRemoteText(String text) {
+        applyingRemote = true;
+        try {
+            codeArea.replaceText(text);
+        } finally {
+            applyingRemote = false;
+        }
+    }
+
+    /**
+     * Applies another client's operation in place, so the caret and
+     * selection move with the text around them; not reported as an edit.
+     */
+    public void applyRemoteOperation(TextOperation operation) {
+        applyingRemote = true;
+        try {
+            int index = 0;
+            for (Object component : operation.getComponents()) {
+                if (component instanceof String text) {
+                    codeArea.insertText(index, text);
+                    index += text.length();
+                } else {
+                    int n = (Integer) component;
+                    if (n > 0) {
+                        index += n;
+                    } else {
+                        codeArea.deleteText(index, index - n);
+                    }
+                }
+            }
+        } finally {
+            applyingRemote = false;
+        }
+    }
+
     public String getSelectedText() {
         return codeArea.getSelectedText();
     }
@@ -0,0 +1,147 @@
+package com.codebuddy.desktop.websocket;
+
+import com.codebuddy.model.TextOperation;
+
+/**
+ * Client side of operation-based sync for one file. At most one operation
+ * is in flight; edits made while it awaits its ack are sent as one operation
+ * once it is acknowledged. Operations from other clients are transformed
+ * against the in-flight operation and the unsent edits before they are
+ * applied, so the editor converges with the server without resending text.
+ */
+public class ClientDocument {
+
+    /**
+     * The editor showing the file.
+     */
+    public interface Editor {
+        String getText();
+
+        void setText(String text);
+
+        /**
+         * Applies an operation to the current text without reporting it as a local change.
+         */
+        void apply(TextOperation operation);
+    }
+
+    /**
+     * Sends an operation created against a server revision. Returns false if
+     * it could not be sent; the edits are then sent with the next change.
+     */
+    public interface Sender {
+        boolean send(long revision, TextOperation operation);
+    }
+
+    private final Editor editor;
+    private final Sender sender;
+    // Last server revision this client has seen
+    private long revision;
+    // Sent but not yet acknowledged, or null
+    private TextOperation outstanding;
+    // The text with the outstanding operation applied; the editor is this plus the unsent edits
+    private String sentText = "";
+
+    public ClientDocument(Editor editor, Sender sender) {
+        this.editor = editor;
+        this.sender = sender;
+    }
+
+    /**
+     * Replaces the file with the server's text at a revision, dropping any
+     * edits the server has not confirmed.
+     */
+    public void reset(String content, long revision) {
+        this.revision = revision;
+        this.outstanding = null;
+        this.sentText = content;
+        if (!editor.getText().equals(content)) {
+            editor.setText(content);
+        }
+    }
+
+    /**
+     * Called after the user edited the file.
+     */
+    public void localChange() {
+        if (outstanding == null) {
+            sendPending();
+        }
+    }
+
+    public void acknowledge(long revision) {
+        this.revision = Math.max(this.revision, revision);
+        outstanding = null;
+        sendPending();
+    }
+
+    /**
+     * Applies an operation another client made, which produced the given
+     * revision on the server. Returns false, leaving the editor untouched,
+     * if the operation does not fit this copy and a fresh snapshot is needed.
+     */
+    public boolean applyRemote(long revision, TextOperation operation) {
+        if (revision <= this.revision) {
+            // Already seen, e.g. replayed after a reconnect
+            return true;
+        }
+        if (revision != this.revision + 1) {
+            // Missed an operation; transforming against the wrong base would silently diverge
+            return false;
+        }
+        try {
+            TextOperation remote = operation;
+            TextOperation nextOutstanding = outstanding;
+            if (outstanding != null) {
+                TextOperation[] pair = TextOperation.transform(outstanding, remote);
+                nextOutstanding = pair[0];
+                remote = pair[1];
+            }
+            String text = editor.getText();
+            TextOperation unsent = TextOperation.replace(sentText, text);
+            TextOperation forEditor = TextOperation.transform(unsent, remote)[1];
+            String nextSentText = remote.apply(sentText);
+            forEditor.apply(text);
+            outstanding = nextOutstanding;
+            sentText = nextSentText;
+            this.revision = revision;
+            editor.apply(forEditor);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A full-content write by another client. Without an operation in flight
+     * it is applied like one; otherwise the server's text is taken as is.
+     */
+    public void applyRemoteContent(long revision, String content) {
+        if (revision <= this.revision) {
+            return;
+        }
+        if (outstanding != null || !applyRemote(revision, TextOperation.replace(sentText, content))) {
+            reset(content, revision);
+        }
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public boolean isAwaitingAck() {
+        return outstanding != null;
+    }
+
+    private void sendPending() {
+        String text = editor.getText();
+        if (text.equals(sentText)) {
+            return;
+        }
+        TextOperation operation = TextOperation.replace(sentText, text);
+        if (sender.send(revision, operation)) {
+            outstanding = operation;
+            sentText = text;
+        }
+    }
+}
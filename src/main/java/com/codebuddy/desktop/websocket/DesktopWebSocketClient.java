@@ -2,88 +2,256 @@ package com.codebuddy.desktop.websocket;
 
 import com.codebuddy.desktop.component.ChatPane;
 import com.codebuddy.desktop.component.CodeEditorPane;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.codebuddy.model.TextOperation;
+import com.codebuddy.protocol.ClientMessage;
+import com.codebuddy.protocol.MessageCodec;
+import com.codebuddy.protocol.ServerMessage;
+import com.codebuddy.protocol.WireFormat;
+import javafx.application.Platform;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
 import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 /**
  * WebSocket client for desktop application
  */
 public class DesktopWebSocketClient {
 
+    // The file shown in the editor tab
+    private static final String FILENAME = "Main.java";
+    private static final String USER_ID = "desktop-user";
+
     private final String sessionId;
     private final CodeEditorPane codeEditor;
     private final ChatPane chatPane;
-    private final ObjectMapper objectMapper;
+    // Operation-based sync state of the editor's file; only touched on the FX thread
+    private final ClientDocument document;
     
     private WebSocketClient codeWebSocket;
     private WebSocketClient chatWebSocket;
 
+    // Last room sequence seen on the code socket, used to resume after a reconnect
+    private volatile String replayEpoch;
+    private volatile long lastSeq;
+    private volatile boolean closing;
+    private int reconnectAttempts;
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "code-ws-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Files received from room snapshots, by filename; unchanged files are not downloaded again
+    private final Map<String, CachedFile> fileCache = new ConcurrentHashMap<>();
+    // Compressed snapshot chunks being assembled, by filename
+    private final Map<String, ByteArrayOutputStream> incomingFiles = new ConcurrentHashMap<>();
+
     public DesktopWebSocketClient(String sessionId, CodeEditorPane codeEditor, ChatPane chatPane) {
         this.sessionId = sessionId;
         this.codeEditor = codeEditor;
         this.chatPane = chatPane;
-        this.objectMapper = new ObjectMapper();
+        this.document = new ClientDocument(new ClientDocument.Editor() {
+            @Override
+            public String getText() {
+                return codeEditor.getText();
+            }
+
+            @Override
+            public void setText(String text) {
+                codeEditor.setRemoteText(text);
+            }
+
+            @Override
+            public void apply(TextOperation operation) {
+                codeEditor.applyRemoteOperation(operation);
+            }
+        }, this::sendOperation);
+        codeEditor.setOnEdited(document::localChange);
+    }
+
+    /**
+     * Handshake draft offering the compact CBOR encoding first. The empty
+     * protocol keeps the connection usable (as JSON) against servers that
+     * do not negotiate a subprotocol.
+     */
+    private static Draft_6455 negotiatingDraft() {
+        List<IProtocol> protocols = List.of(
+            new Protocol(WireFormat.CBOR.getSubprotocol()),
+            new Protocol(WireFormat.JSON.getSubprotocol()),
+            new Protocol("")
+        );
+        return new Draft_6455(Collections.emptyList(), protocols);
+    }
+
+    private static WireFormat negotiatedFormat(WebSocketClient client) {
+        IProtocol protocol = client.getProtocol();
+        return WireFormat.fromSubprotocol(protocol != null ? protocol.getProvidedProtocol() : null);
+    }
+
+    private static ServerMessage decode(String message) throws Exception {
+        return MessageCodec.decodeServer(message);
+    }
+
+    private static ServerMessage decode(ByteBuffer message) throws Exception {
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        return MessageCodec.decodeServer(WireFormat.CBOR, bytes);
+    }
+
+    private static void send(WebSocketClient client, ClientMessage message) throws Exception {
+        WireFormat format = negotiatedFormat(client);
+        if (format.isBinary()) {
+            client.send(MessageCodec.encode(format, message));
+        } else {
+            client.send(MessageCodec.encodeText(message));
+        }
     }
 
     public void connect() throws Exception {
-        // Connect to code WebSocket
-        URI codeUri = new URI("ws://localhost:8080/ws/code/" + sessionId);
-        codeWebSocket = new WebSocketClient(codeUri) {
+        openCodeSocket();
+
+        // Connect to chat WebSocket
+        URI chatUri = new URI("ws://localhost:8080/ws/chat/" + sessionId);
+        chatWebSocket = new WebSocketClient(chatUri, negotiatingDraft()) {
             @Override
             public void onOpen(ServerHandshake handshake) {
-                System.out.println("Connected to code WebSocket");
+                System.out.println("Connected to chat WebSocket");
             }
 
             @Override
             public void onMessage(String message) {
-                handleCodeMessage(message);
+                try {
+                    handleChatMessage(decode(message));
+                } catch (Exception e) {
+                    System.err.println("Error decoding chat message: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void onMessage(ByteBuffer message) {
+                try {
+                    handleChatMessage(decode(message));
+                } catch (Exception e) {
+                    System.err.println("Error decoding chat message: " + e.getMessage());
+                }
             }
 
             @Override
             public void onClose(int code, String reason, boolean remote) {
-                System.out.println("Code WebSocket closed: " + reason);
+                System.out.println("Chat WebSocket closed: " + reason);
             }
 
             @Override
             public void onError(Exception ex) {
-                System.err.println("Code WebSocket error: " + ex.getMessage());
+                System.err.println("Chat WebSocket error: " + ex.getMessage());
             }
         };
 
-        // Connect to chat WebSocket
-        URI chatUri = new URI("ws://localhost:8080/ws/chat/" + sessionId);
-        chatWebSocket = new WebSocketClient(chatUri) {
+        chatWebSocket.connect();
+    }
+
+    /**
+     * Opens the code socket. After a drop the last seen epoch and sequence are
+     * passed along so the server can replay just the missed frames.
+     */
+    private void openCodeSocket() throws Exception {
+        String resume = replayEpoch != null ? "?epoch=" + replayEpoch + "&lastSeq=" + lastSeq : "";
+        URI codeUri = new URI("ws://localhost:8080/ws/code/" + sessionId + resume);
+        codeWebSocket = new WebSocketClient(codeUri, negotiatingDraft()) {
             @Override
             public void onOpen(ServerHandshake handshake) {
-                System.out.println("Connected to chat WebSocket");
+                System.out.println("Connected to code WebSocket");
+                reconnectAttempts = 0;
+                Platform.runLater(() -> {
+                    // An operation sent before the drop may or may not have been applied; start from the server's text
+                    if (document.isAwaitingAck()) {
+                        try {
+                            requestFiles(List.of(FILENAME));
+                        } catch (Exception e) {
+                            System.err.println("Error requesting snapshot: " + e.getMessage());
+                        }
+                    }
+                });
             }
 
             @Override
             public void onMessage(String message) {
-                handleChatMessage(message);
+                try {
+                    handleCodeMessageLater(decode(message));
+                } catch (Exception e) {
+                    System.err.println("Error decoding code message: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void onMessage(ByteBuffer message) {
+                try {
+                    handleCodeMessageLater(decode(message));
+                } catch (Exception e) {
+                    System.err.println("Error decoding code message: " + e.getMessage());
+                }
             }
 
             @Override
             public void onClose(int code, String reason, boolean remote) {
-                System.out.println("Chat WebSocket closed: " + reason);
+                System.out.println("Code WebSocket closed: " + reason);
+                if (!closing) {
+                    scheduleReconnect();
+                }
             }
 
             @Override
             public void onError(Exception ex) {
-                System.err.println("Chat WebSocket error: " + ex.getMessage());
+                System.err.println("Code WebSocket error: " + ex.getMessage());
             }
         };
-
         codeWebSocket.connect();
-        chatWebSocket.connect();
+    }
+
+    /**
+     * Reconnects the code socket with exponential backoff and full jitter, so
+     * clients dropped together (e.g. by a deploy) do not all return at once.
+     */
+    private void scheduleReconnect() {
+        long ceiling = Math.min(30_000L, 500L << Math.min(reconnectAttempts++, 6));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        reconnector.schedule(() -> {
+            if (!closing) {
+                try {
+                    incomingFiles.clear();
+                    openCodeSocket();
+                } catch (Exception e) {
+                    System.err.println("Error reconnecting code WebSocket: " + e.getMessage());
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     public void disconnect() {
+        closing = true;
+        reconnector.shutdownNow();
         if (codeWebSocket != null) {
             codeWebSocket.close();
         }
@@ -92,71 +260,169 @@ public class DesktopWebSocketClient {
         }
     }
 
-    private void handleCodeMessage(String message) {
+    // The editor and its sync state belong to the FX thread
+    private void handleCodeMessageLater(ServerMessage message) {
+        Platform.runLater(() -> handleCodeMessage(message));
+    }
+
+    private void handleCodeMessage(ServerMessage message) {
         try {
-            JsonNode messageNode = objectMapper.readTree(message);
-            String type = messageNode.get("type").asText();
-            
-            switch (type) {
-                case "code_change":
-                    String content = messageNode.get("content").asText();
-                    // Update code editor (be careful to avoid infinite loops)
-                    // codeEditor.setText(content);
-                    break;
-                case "connection_established":
-                    System.out.println("Code connection established");
-                    break;
+            // Room frames are sequenced; anything at or below the last seen seq is a duplicate of a replay
+            if (message instanceof ServerMessage.Sequenced sequenced) {
+                if (sequenced.seq() <= lastSeq) {
+                    return;
+                }
+                lastSeq = sequenced.seq();
+            }
+
+            if (message instanceof ServerMessage.CodeOp op) {
+                if (FILENAME.equals(op.filename())
+                        && !document.applyRemote(op.revision(), TextOperation.fromComponents(op.ops()))) {
+                    // Out of step with the room; the snapshot resets the editor to the server's text
+                    requestFiles(List.of(FILENAME));
+                }
+            } else if (message instanceof ServerMessage.CodeChange change) {
+                if (FILENAME.equals(change.filename())) {
+                    document.applyRemoteContent(change.revision(), change.content());
+                }
+            } else if (message instanceof ServerMessage.CodeResync resync) {
+                if (FILENAME.equals(resync.filename())) {
+                    document.reset(resync.content(), resync.revision());
+                }
+            } else if (message instanceof ServerMessage.CodeOpAck ack) {
+                lastSeq = Math.max(lastSeq, ack.seq());
+                if (FILENAME.equals(ack.filename())) {
+                    document.acknowledge(ack.revision());
+                }
+            } else if (message instanceof ServerMessage.ConnectionEstablished established) {
+                System.out.println("Code connection established");
+                // A new epoch restarts the room's sequence; the manifest that follows resyncs the files
+                if (!established.epoch().equals(replayEpoch)) {
+                    lastSeq = 0;
+                }
+            } else if (message instanceof ServerMessage.Resumed resumed) {
+                replayEpoch = resumed.epoch();
+                lastSeq = Math.max(lastSeq, resumed.seq());
+            } else if (message instanceof ServerMessage.RoomManifest manifest) {
+                replayEpoch = manifest.epoch();
+                lastSeq = manifest.seq();
+                requestChangedFiles(manifest.files());
+            } else if (message instanceof ServerMessage.SnapshotChunk chunk) {
+                receiveChunk(chunk);
+            } else if (message instanceof ServerMessage.SnapshotComplete complete) {
+                requestFiles(complete.remaining());
+            } else if (message instanceof ServerMessage.Throttled throttled) {
+                System.err.println("Code frames throttled, retry after " + throttled.retryAfterMs() + "ms");
             }
         } catch (Exception e) {
             System.err.println("Error handling code message: " + e.getMessage());
         }
     }
 
-    private void handleChatMessage(String message) {
+    private void requestChangedFiles(List<ServerMessage.ManifestFile> manifest) throws Exception {
+        List<String> changed = new ArrayList<>();
+        for (ServerMessage.ManifestFile file : manifest) {
+            CachedFile cached = fileCache.get(file.filename());
+            if (cached == null || !cached.hash.equals(file.hash())) {
+                changed.add(file.filename());
+            } else if (FILENAME.equals(file.filename())) {
+                document.reset(cached.content, file.revision());
+            }
+        }
+        requestFiles(changed);
+    }
+
+    private void requestFiles(List<String> files) throws Exception {
+        if (!files.isEmpty()) {
+            send(codeWebSocket, new ClientMessage.SnapshotRequest(files));
+        }
+    }
+
+    private void receiveChunk(ServerMessage.SnapshotChunk chunk) throws Exception {
+        String filename = chunk.filename();
+        int index = chunk.index();
+        ByteArrayOutputStream buffer = index == 0
+                ? new ByteArrayOutputStream()
+                : incomingFiles.get(filename);
+        if (buffer == null) {
+            return;
+        }
+        buffer.write(chunk.data());
+        if (index + 1 < chunk.count()) {
+            incomingFiles.put(filename, buffer);
+            return;
+        }
+        incomingFiles.remove(filename);
+
+        String content;
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(buffer.toByteArray()))) {
+            content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        String hash = chunk.hash();
+        if (!hash.equals(sha256(content))) {
+            System.err.println("Snapshot of " + filename + " failed its hash check");
+            return;
+        }
+        fileCache.put(filename, new CachedFile(hash, content));
+        if (FILENAME.equals(filename)) {
+            document.reset(content, chunk.revision());
+        }
+    }
+
+    private static String sha256(String text) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static class CachedFile {
+        private final String hash;
+        private final String content;
+
+        private CachedFile(String hash, String content) {
+            this.hash = hash;
+            this.content = content;
+        }
+    }
+
+    private void handleChatMessage(ServerMessage message) {
         try {
-            JsonNode messageNode = objectMapper.readTree(message);
-            String type = messageNode.get("type").asText();
-            
-            if ("chat_message".equals(type)) {
-                String username = messageNode.get("username").asText();
-                String content = messageNode.get("content").asText();
-                
-                ChatPane.ChatMessage chatMessage = new ChatPane.ChatMessage(
-                    username, content, LocalDateTime.now(), false
-                );
-                chatPane.addMessage(chatMessage);
+            if (message instanceof ServerMessage.ChatMessage chat) {
+                chatPane.addMessage(toChatPaneMessage(chat));
+            } else if (message instanceof ServerMessage.ChatHistory history) {
+                for (ServerMessage.ChatMessage chat : history.messages()) {
+                    chatPane.addMessage(toChatPaneMessage(chat));
+                }
+            } else if (message instanceof ServerMessage.Throttled throttled) {
+                System.err.println("Chat frames throttled, retry after " + throttled.retryAfterMs() + "ms");
             }
         } catch (Exception e) {
             System.err.println("Error handling chat message: " + e.getMessage());
         }
     }
 
-    public void sendCodeChange(String filename, String content) {
-        if (codeWebSocket != null && codeWebSocket.isOpen()) {
-            try {
-                String message = objectMapper.writeValueAsString(Map.of(
-                    "type", "code_change",
-                    "filename", filename,
-                    "content", content,
-                    "userId", "desktop-user"
-                ));
-                codeWebSocket.send(message);
-            } catch (Exception e) {
-                System.err.println("Error sending code change: " + e.getMessage());
-            }
+    private static ChatPane.ChatMessage toChatPaneMessage(ServerMessage.ChatMessage chat) {
+        LocalDateTime timestamp = chat.timestamp() != null ? LocalDateTime.parse(chat.timestamp()) : LocalDateTime.now();
+        return new ChatPane.ChatMessage(chat.username(), chat.content(), timestamp, USER_ID.equals(chat.userId()));
+    }
+
+    // Sends one of the editor's operations, created against the given server revision
+    private boolean sendOperation(long revision, TextOperation operation) {
+        if (codeWebSocket == null || !codeWebSocket.isOpen()) {
+            return false;
+        }
+        try {
+            send(codeWebSocket, new ClientMessage.CodeOp(FILENAME, revision, USER_ID, operation.getComponents()));
+            return true;
+        } catch (Exception e) {
+            System.err.println("Error sending code operation: " + e.getMessage());
+            return false;
         }
     }
 
     public void sendChatMessage(String content) {
         if (chatWebSocket != null && chatWebSocket.isOpen()) {
             try {
-                String message = objectMapper.writeValueAsString(Map.of(
-                    "type", "chat_message",
-                    "userId", "desktop-user",
-                    "username", "Desktop User",
-                    "content", content
-                ));
-                chatWebSocket.send(message);
+                send(chatWebSocket, new ClientMessage.ChatMessage(USER_ID, "Desktop User", content));
             } catch (Exception e) {
                 System.err.println("Error sending chat message: " + e.getMessage());
             }
@@ -0,0 +1,114 @@
+package com.codebuddy.messaging;
+
+import com.codebuddy.protocol.ServerMessage;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Base class for bus backends. Published broadcasts are queued and handed to
+ * {@link #transmit(List)} in batches, either every batch interval or as soon
+ * as a full batch is waiting, so node-to-node traffic is one message per
+ * batch rather than one per keystroke.
+ */
+public abstract class BatchingRoomMessageBus implements RoomMessageBus {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchingRoomMessageBus.class);
+
+    private final String nodeId;
+    private final int maxBatchSize;
+    private final ConcurrentLinkedQueue<RoomEnvelope> outgoing = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, List<RoomMessageListener>> listeners = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+
+    protected BatchingRoomMessageBus(String nodeId, long batchIntervalMs, int maxBatchSize) {
+        this.nodeId = nodeId;
+        this.maxBatchSize = maxBatchSize;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "room-bus-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, batchIntervalMs, batchIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void publish(String channel, String roomId, ServerMessage payload) {
+        outgoing.add(new RoomEnvelope(nodeId, channel, roomId, payload));
+        if (outgoing.size() >= maxBatchSize && flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    @Override
+    public void subscribe(String channel, RoomMessageListener listener) {
+        listeners.computeIfAbsent(channel, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @Override
+    public String getNodeId() { return nodeId; }
+
+    /**
+     * Sends a batch of this node's broadcasts to the other nodes.
+     */
+    protected abstract void transmit(List<RoomEnvelope> batch);
+
+    /**
+     * Hands a batch received from the backend to the local listeners,
+     * skipping broadcasts this node published itself.
+     */
+    protected void deliver(List<RoomEnvelope> batch) {
+        for (RoomEnvelope envelope : batch) {
+            if (nodeId.equals(envelope.getNodeId())) {
+                continue;
+            }
+            List<RoomMessageListener> channelListeners = listeners.get(envelope.getChannel());
+            if (channelListeners == null) {
+                continue;
+            }
+            for (RoomMessageListener listener : channelListeners) {
+                try {
+                    listener.onMessage(envelope.getRoomId(), envelope.getPayload());
+                } catch (RuntimeException e) {
+                    log.warn("Room bus listener failed for room {}", envelope.getRoomId(), e);
+                }
+            }
+        }
+    }
+
+    // Only ever runs on the single flusher thread, so batches leave in publish order
+    private void flush() {
+        while (!outgoing.isEmpty()) {
+            List<RoomEnvelope> batch = new ArrayList<>(Math.min(outgoing.size(), maxBatchSize));
+            RoomEnvelope envelope;
+            while (batch.size() < maxBatchSize && (envelope = outgoing.poll()) != null) {
+                batch.add(envelope);
+            }
+            try {
+                transmit(batch);
+            } catch (RuntimeException e) {
+                log.warn("Dropping {} room broadcasts after failed transmit", batch.size(), e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.execute(this::flush);
+        flusher.shutdown();
+    }
+}
@@ -0,0 +1,41 @@
+package com.codebuddy.messaging;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process bus backend. Every instance created in the same JVM acts as a
+ * node, which makes cross-node fan-out testable without a broker; with a
+ * single application context it is effectively a no-op.
+ */
+@Component
+@ConditionalOnProperty(name = "codebuddy.bus.type", havingValue = "loopback", matchIfMissing = true)
+public class LoopbackRoomMessageBus extends BatchingRoomMessageBus {
+
+    private static final List<LoopbackRoomMessageBus> NODES = new CopyOnWriteArrayList<>();
+
+    public LoopbackRoomMessageBus(@Value("${codebuddy.bus.node-id:}") String nodeId,
+                                  @Value("${codebuddy.bus.batch-interval-ms:5}") long batchIntervalMs,
+                                  @Value("${codebuddy.bus.max-batch-size:256}") int maxBatchSize) {
+        super(nodeId.isEmpty() ? UUID.randomUUID().toString() : nodeId, batchIntervalMs, maxBatchSize);
+        NODES.add(this);
+    }
+
+    @Override
+    protected void transmit(List<RoomEnvelope> batch) {
+        for (LoopbackRoomMessageBus node : NODES) {
+            node.deliver(batch);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        NODES.remove(this);
+    }
+}
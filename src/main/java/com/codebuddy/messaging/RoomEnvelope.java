@@ -0,0 +1,36 @@
+package com.codebuddy.messaging;
+
+import com.codebuddy.protocol.ServerMessage;
+
+/**
+ * A single room broadcast as it travels between nodes
+ */
+public class RoomEnvelope {
+    private String nodeId;
+    private String channel;
+    private String roomId;
+    private ServerMessage payload;
+
+    // Constructors
+    public RoomEnvelope() {}
+
+    public RoomEnvelope(String nodeId, String channel, String roomId, ServerMessage payload) {
+        this.nodeId = nodeId;
+        this.channel = channel;
+        this.roomId = roomId;
+        this.payload = payload;
+    }
+
+    // Getters and Setters
+    public String getNodeId() { return nodeId; }
+    public void setNodeId(String nodeId) { this.nodeId = nodeId; }
+
+    public String getChannel() { return channel; }
+    public void setChannel(String channel) { this.channel = channel; }
+
+    public String getRoomId() { return roomId; }
+    public void setRoomId(String roomId) { this.roomId = roomId; }
+
+    public ServerMessage getPayload() { return payload; }
+    public void setPayload(ServerMessage payload) { this.payload = payload; }
+}
@@ -0,0 +1,23 @@
+package com.codebuddy.messaging;
+
+import com.codebuddy.protocol.ServerMessage;
+
+/**
+ * Publish/subscribe channel that carries room broadcasts between server
+ * nodes, so one session room can span several instances. Local peers are
+ * always served directly by the handlers; the bus only reaches other nodes.
+ */
+public interface RoomMessageBus {
+
+    /**
+     * Publishes a broadcast of this node to every other node.
+     */
+    void publish(String channel, String roomId, ServerMessage payload);
+
+    /**
+     * Registers a listener for broadcasts published by other nodes on a channel.
+     */
+    void subscribe(String channel, RoomMessageListener listener);
+
+    String getNodeId();
+}
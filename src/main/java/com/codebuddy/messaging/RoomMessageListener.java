@@ -0,0 +1,11 @@
+package com.codebuddy.messaging;
+
+import com.codebuddy.protocol.ServerMessage;
+
+/**
+ * Receives room broadcasts that originated on another node
+ */
+@FunctionalInterface
+public interface RoomMessageListener {
+    void onMessage(String roomId, ServerMessage payload);
+}
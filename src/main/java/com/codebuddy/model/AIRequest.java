@@ -10,6 +10,7 @@ public class AIRequest {
     private String language;
     private AIAction action;
     private String context;
+    private boolean bypassCache; // ask the AI even if an answer to the same request is cached
 
     public enum AIAction {
         EXPLAIN, FIX_BUGS, ADD_COMMENTS, GENERATE_FUNCTION, OPTIMIZE, REVIEW
@@ -44,4 +45,7 @@ public class AIRequest {
 
     public String getContext() { return context; }
     public void setContext(String context) { this.context = context; }
+
+    public boolean isBypassCache() { return bypassCache; }
+    public void setBypassCache(boolean bypassCache) { this.bypassCache = bypassCache; }
 }
\ No newline at end of file
@@ -13,6 +13,7 @@ public class AIResponse {
     private String suggestedCode;
     private boolean success;
     private String error;
+    private boolean cached; // answered from the response cache
     private LocalDateTime timestamp;
 
     // Constructors
@@ -50,6 +51,9 @@ public class AIResponse {
     public String getError() { return error; }
     public void setError(String error) { this.error = error; }
 
+    public boolean isCached() { return cached; }
+    public void setCached(boolean cached) { this.cached = cached; }
+
     public LocalDateTime getTimestamp() { return timestamp; }
     public void setTimestamp(LocalDateTime timestamp) { this.timestamp = timestamp; }
 }
\ No newline at end of file
@@ -1,33 +1,59 @@
 package com.codebuddy.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
 
 import java.time.LocalDateTime;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
- * Represents a collaborative coding session
+ * Represents a collaborative coding session. Only a manifest of content
+ * hashes is persisted with the session; file contents live in
+ * {@link FileBlob}s and are loaded into {@code files} when the session is read.
  */
 @Document(collection = "code_sessions")
+@CompoundIndex(name = "owner_updated", def = "{'ownerId': 1, 'updatedAt': -1, '_id': -1}")
+@CompoundIndex(name = "collaborators_updated", def = "{'collaborators': 1, 'updatedAt': -1, '_id': -1}")
+@CompoundIndex(name = "active_updated", def = "{'isActive': 1, 'updatedAt': -1, '_id': -1}")
 public class CodeSession {
     @Id
     private String id;
     private String name;
     private String ownerId;
-    private List<String> collaborators;
+    private Set<String> collaborators;
+    @Transient
     private Map<String, String> files; // filename -> content
+    private Map<String, String> fileHashes; // filename -> blob hash
+    private Map<String, Long> fileRevisions; // filename -> edit log revision the content includes
+    @Transient
+    @JsonIgnore
+    private Map<String, String> hashedContent; // filename -> content instance fileHashes was computed from
+    @Field("files")
+    @JsonIgnore
+    private Map<String, String> legacyFiles; // content embedded by older versions, moved to blobs on next save
     private String language;
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
     private boolean isActive;
+    private long version; // incremented on changes other than file edits; see getVersion
 
     // Constructors
     public CodeSession() {
         this.createdAt = LocalDateTime.now();
         this.updatedAt = LocalDateTime.now();
         this.isActive = true;
+        this.collaborators = new LinkedHashSet<>();
+        this.files = new HashMap<>();
+        this.fileHashes = new HashMap<>();
+        this.fileRevisions = new HashMap<>();
+        this.hashedContent = new HashMap<>();
     }
 
     public CodeSession(String name, String ownerId, String language) {
@@ -47,12 +73,23 @@ public class CodeSession {
     public String getOwnerId() { return ownerId; }
     public void setOwnerId(String ownerId) { this.ownerId = ownerId; }
 
-    public List<String> getCollaborators() { return collaborators; }
-    public void setCollaborators(List<String> collaborators) { this.collaborators = collaborators; }
+    public Set<String> getCollaborators() { return collaborators; }
+    public void setCollaborators(Set<String> collaborators) { this.collaborators = collaborators; }
 
     public Map<String, String> getFiles() { return files; }
     public void setFiles(Map<String, String> files) { this.files = files; }
 
+    public Map<String, String> getFileHashes() { return fileHashes; }
+    public void setFileHashes(Map<String, String> fileHashes) { this.fileHashes = fileHashes; }
+
+    public Map<String, String> getHashedContent() { return hashedContent; }
+
+    public Map<String, String> getLegacyFiles() { return legacyFiles; }
+    public void setLegacyFiles(Map<String, String> legacyFiles) { this.legacyFiles = legacyFiles; }
+
+    public Map<String, Long> getFileRevisions() { return fileRevisions; }
+    public void setFileRevisions(Map<String, Long> fileRevisions) { this.fileRevisions = fileRevisions; }
+
     public String getLanguage() { return language; }
     public void setLanguage(String language) { this.language = language; }
 
@@ -64,4 +101,21 @@ public class CodeSession {
 
     public boolean isActive() { return isActive; }
     public void setActive(boolean active) { isActive = active; }
+
+    /**
+     * The session's ETag: the count of changes other than file edits plus
+     * the edit log revision of every file. It is derived from the state
+     * rather than counted by each node, so every node holding the same
+     * state reports the same version, and a revision is only ever logged
+     * for one content.
+     */
+    public long getVersion() {
+        long revisions = fileRevisions != null
+                ? fileRevisions.values().stream().mapToLong(Long::longValue).sum() : 0;
+        return version + revisions;
+    }
+
+    @JsonIgnore
+    public long getSettingsVersion() { return version; }
+    public void setSettingsVersion(long settingsVersion) { this.version = settingsVersion; }
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package com.codebuddy.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * One applied edit in a session's append-only operation log. Entries newer
+ * than a file's snapshot revision are replayed on top of the snapshot.
+ */
+@Document(collection = "session_edit_log")
+@CompoundIndex(name = "session_file_revision", def = "{'sessionId': 1, 'filename': 1, 'revision': 1}", unique = true)
+public class EditLogEntry {
+    @Id
+    private String id;
+    private String sessionId;
+    private String filename;
+    private long revision; // revision produced by this operation
+    private List<Object> ops;
+    private LocalDateTime timestamp;
+
+    // Constructors
+    public EditLogEntry() {
+        this.timestamp = LocalDateTime.now();
+    }
+
+    public EditLogEntry(String sessionId, String filename, long revision, List<Object> ops) {
+        this();
+        this.sessionId = sessionId;
+        this.filename = filename;
+        this.revision = revision;
+        this.ops = ops;
+    }
+
+    // Getters and Setters
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getSessionId() { return sessionId; }
+    public void setSessionId(String sessionId) { this.sessionId = sessionId; }
+
+    public String getFilename() { return filename; }
+    public void setFilename(String filename) { this.filename = filename; }
+
+    public long getRevision() { return revision; }
+    public void setRevision(long revision) { this.revision = revision; }
+
+    public List<Object> getOps() { return ops; }
+    public void setOps(List<Object> ops) { this.ops = ops; }
+
+    public LocalDateTime getTimestamp() { return timestamp; }
+    public void setTimestamp(LocalDateTime timestamp) { this.timestamp = timestamp; }
+}
@@ -0,0 +1,45 @@
+package com.codebuddy.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * Immutable file content, addressed by the SHA-256 of its UTF-8 bytes.
+ * Identical content is stored once, however many files, sessions or
+ * revisions refer to it.
+ */
+@Document(collection = "file_blobs")
+public class FileBlob {
+    @Id
+    private String hash;
+    private String content;
+    private int size; // UTF-16 length of content
+    private LocalDateTime createdAt;
+
+    // Constructors
+    public FileBlob() {
+        this.createdAt = LocalDateTime.now();
+    }
+
+    public FileBlob(String hash, String content) {
+        this();
+        this.hash = hash;
+        this.content = content;
+        this.size = content.length();
+    }
+
+    // Getters and Setters
+    public String getHash() { return hash; }
+    public void setHash(String hash) { this.hash = hash; }
+
+    public String getContent() { return content; }
+    public void setContent(String content) { this.content = content; }
+
+    public int getSize() { return size; }
+    public void setSize(int size) { this.size = size; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+}
@@ -1,11 +1,19 @@
 package com.codebuddy.model;
 
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
 import java.time.LocalDateTime;
 
 /**
- * Represents a chat message in a coding session
+ * Represents a chat message in a coding session. History is read newest
+ * first by session, with the id breaking ties between equal timestamps.
  */
+@Document(collection = "chat_messages")
+@CompoundIndex(name = "session_timestamp", def = "{'sessionId': 1, 'timestamp': -1, '_id': -1}")
 public class Message {
+    @Id
     private String id;
     private String sessionId;
     private String userId;
@@ -0,0 +1,21 @@
+package com.codebuddy.model;
+
+import java.util.List;
+
+/**
+ * A page of chat history, oldest message first. nextCursor fetches the page
+ * before this one and is null once the start of the history is reached.
+ */
+public class MessagePage {
+    private final List<Message> messages;
+    private final String nextCursor;
+
+    public MessagePage(List<Message> messages, String nextCursor) {
+        this.messages = messages;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Message> getMessages() { return messages; }
+
+    public String getNextCursor() { return nextCursor; }
+}
@@ -0,0 +1,47 @@
+package com.codebuddy.model;
+
+import org.bson.types.ObjectId;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Position in a listing sorted by timestamp and id, newest first. The next
+ * page holds the entries strictly before it; the id breaks ties between
+ * equal timestamps. Encoded as {@code <timestamp>_<id>}.
+ */
+public class PageCursor {
+    private final LocalDateTime timestamp;
+    private final String id;
+
+    public PageCursor(LocalDateTime timestamp, String id) {
+        this.timestamp = timestamp;
+        this.id = id;
+    }
+
+    /**
+     * Throws IllegalArgumentException for a malformed cursor.
+     */
+    public static PageCursor parse(String cursor) {
+        int separator = cursor.lastIndexOf('_');
+        if (separator < 0 || !ObjectId.isValid(cursor.substring(separator + 1))) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        try {
+            return new PageCursor(LocalDateTime.parse(cursor.substring(0, separator)), cursor.substring(separator + 1));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+    }
+
+    public LocalDateTime getTimestamp() { return timestamp; }
+
+    public String getId() { return id; }
+
+    public ObjectId getObjectId() { return new ObjectId(id); }
+
+    @Override
+    public String toString() {
+        return timestamp + "_" + id;
+    }
+}
@@ -0,0 +1,21 @@
+package com.codebuddy.model;
+
+import java.util.List;
+
+/**
+ * A page of session summaries, most recently updated first. nextCursor
+ * fetches the following page and is null on the last one.
+ */
+public class SessionPage {
+    private final List<SessionSummary> sessions;
+    private final String nextCursor;
+
+    public SessionPage(List<SessionSummary> sessions, String nextCursor) {
+        this.sessions = sessions;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<SessionSummary> getSessions() { return sessions; }
+
+    public String getNextCursor() { return nextCursor; }
+}
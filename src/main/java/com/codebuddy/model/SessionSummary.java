@@ -0,0 +1,52 @@
+package com.codebuddy.model;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+
+/**
+ * Listing view of a {@link CodeSession}: its metadata without the file
+ * manifest or contents. Read straight from MongoDB as a projection.
+ */
+public class SessionSummary {
+    // Fields a summary is projected to
+    public static final String FIELDS =
+            "{ 'name': 1, 'ownerId': 1, 'collaborators': 1, 'language': 1, 'createdAt': 1, 'updatedAt': 1, 'isActive': 1 }";
+
+    private final String id;
+    private final String name;
+    private final String ownerId;
+    private final Set<String> collaborators;
+    private final String language;
+    private final LocalDateTime createdAt;
+    private final LocalDateTime updatedAt;
+    private final boolean isActive;
+
+    public SessionSummary(String id, String name, String ownerId, Set<String> collaborators, String language,
+                          LocalDateTime createdAt, LocalDateTime updatedAt, boolean isActive) {
+        this.id = id;
+        this.name = name;
+        this.ownerId = ownerId;
+        this.collaborators = collaborators;
+        this.language = language;
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
+        this.isActive = isActive;
+    }
+
+    // Getters
+    public String getId() { return id; }
+
+    public String getName() { return name; }
+
+    public String getOwnerId() { return ownerId; }
+
+    public Set<String> getCollaborators() { return collaborators; }
+
+    public String getLanguage() { return language; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+
+    public LocalDateTime getUpdatedAt() { return updatedAt; }
+
+    public boolean isActive() { return isActive; }
+}
@@ -0,0 +1,215 @@
+package com.codebuddy.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Positional edit on a text document, expressed as a sequence of components:
+ * a positive integer retains that many characters, a negative integer deletes
+ * that many characters and a string inserts the text at the current offset.
+ * The component list is also the wire format, e.g. {@code [12, "abc", -3, 40]}.
+ */
+public class TextOperation {
+    private final List<Object> ops = new ArrayList<>();
+    private int baseLength;
+    private int targetLength;
+
+    public TextOperation retain(int n) {
+        if (n < 0) throw new IllegalArgumentException("retain expects a non-negative count");
+        if (n == 0) return this;
+        baseLength += n;
+        targetLength += n;
+        int last = ops.size() - 1;
+        if (last >= 0 && isRetain(ops.get(last))) {
+            ops.set(last, (Integer) ops.get(last) + n);
+        } else {
+            ops.add(n);
+        }
+        return this;
+    }
+
+    public TextOperation insert(String text) {
+        if (text == null || text.isEmpty()) return this;
+        targetLength += text.length();
+        int last = ops.size() - 1;
+        if (last >= 0 && isInsert(ops.get(last))) {
+            ops.set(last, ops.get(last) + text);
+        } else if (last >= 0 && isDelete(ops.get(last))) {
+            // Keep inserts ahead of deletes so equivalent operations share one representation
+            if (last > 0 && isInsert(ops.get(last - 1))) {
+                ops.set(last - 1, ops.get(last - 1) + text);
+            } else {
+                ops.add(last, text);
+            }
+        } else {
+            ops.add(text);
+        }
+        return this;
+    }
+
+    public TextOperation delete(int n) {
+        if (n < 0) n = -n;
+        if (n == 0) return this;
+        baseLength += n;
+        int last = ops.size() - 1;
+        if (last >= 0 && isDelete(ops.get(last))) {
+            ops.set(last, (Integer) ops.get(last) - n);
+        } else {
+            ops.add(-n);
+        }
+        return this;
+    }
+
+    public boolean isNoop() {
+        return ops.isEmpty() || (ops.size() == 1 && isRetain(ops.get(0)));
+    }
+
+    public String apply(String document) {
+        if (document.length() != baseLength) {
+            throw new IllegalArgumentException("Operation base length " + baseLength
+                    + " does not match document length " + document.length());
+        }
+        StringBuilder result = new StringBuilder(targetLength);
+        int index = 0;
+        for (Object op : ops) {
+            if (isRetain(op)) {
+                int n = (Integer) op;
+                result.append(document, index, index + n);
+                index += n;
+            } else if (isInsert(op)) {
+                result.append((String) op);
+            } else {
+                index -= (Integer) op;
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Transforms two concurrent operations against the same document so that
+     * {@code apply(apply(doc, a), result[1])} equals {@code apply(apply(doc, b), result[0])}.
+     * When both insert at the same offset, {@code a}'s text is placed first.
+     */
+    public static TextOperation[] transform(TextOperation a, TextOperation b) {
+        if (a.baseLength != b.baseLength) {
+            throw new IllegalArgumentException("Both operations have to have the same base length");
+        }
+        TextOperation aPrime = new TextOperation();
+        TextOperation bPrime = new TextOperation();
+        List<Object> ops1 = a.ops;
+        List<Object> ops2 = b.ops;
+        int i1 = 0;
+        int i2 = 0;
+        Object op1 = i1 < ops1.size() ? ops1.get(i1++) : null;
+        Object op2 = i2 < ops2.size() ? ops2.get(i2++) : null;
+
+        while (op1 != null || op2 != null) {
+            if (isInsert(op1)) {
+                aPrime.insert((String) op1);
+                bPrime.retain(((String) op1).length());
+                op1 = i1 < ops1.size() ? ops1.get(i1++) : null;
+                continue;
+            }
+            if (isInsert(op2)) {
+                aPrime.retain(((String) op2).length());
+                bPrime.insert((String) op2);
+                op2 = i2 < ops2.size() ? ops2.get(i2++) : null;
+                continue;
+            }
+            if (op1 == null || op2 == null) {
+                throw new IllegalArgumentException("Operations do not cover the same document");
+            }
+
+            int n1 = (Integer) op1;
+            int n2 = (Integer) op2;
+            if (n1 > 0 && n2 > 0) {
+                int min = Math.min(n1, n2);
+                aPrime.retain(min);
+                bPrime.retain(min);
+                n1 -= min;
+                n2 -= min;
+            } else if (n1 < 0 && n2 < 0) {
+                int min = Math.min(-n1, -n2);
+                n1 += min;
+                n2 += min;
+            } else if (n1 < 0) {
+                int min = Math.min(-n1, n2);
+                aPrime.delete(min);
+                n1 += min;
+                n2 -= min;
+            } else {
+                int min = Math.min(n1, -n2);
+                bPrime.delete(min);
+                n1 -= min;
+                n2 += min;
+            }
+            op1 = n1 != 0 ? Integer.valueOf(n1) : (i1 < ops1.size() ? ops1.get(i1++) : null);
+            op2 = n2 != 0 ? Integer.valueOf(n2) : (i2 < ops2.size() ? ops2.get(i2++) : null);
+        }
+        return new TextOperation[] { aPrime, bPrime };
+    }
+
+    /**
+     * Builds an operation from its wire representation (integers and strings).
+     */
+    public static TextOperation fromComponents(List<?> components) {
+        TextOperation operation = new TextOperation();
+        for (Object component : components) {
+            if (component instanceof String) {
+                operation.insert((String) component);
+            } else if (component instanceof Number) {
+                int n = ((Number) component).intValue();
+                if (n > 0) {
+                    operation.retain(n);
+                } else {
+                    operation.delete(n);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown operation component: " + component);
+            }
+        }
+        return operation;
+    }
+
+    /**
+     * Operation that turns {@code oldContent} into {@code newContent}. Only
+     * the span between their common prefix and suffix is replaced, so a
+     * full-content write that changed one line costs one line on the wire.
+     */
+    public static TextOperation replace(String oldContent, String newContent) {
+        int max = Math.min(oldContent.length(), newContent.length());
+        int prefix = 0;
+        while (prefix < max && oldContent.charAt(prefix) == newContent.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && oldContent.charAt(oldContent.length() - 1 - suffix) == newContent.charAt(newContent.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return new TextOperation()
+                .retain(prefix)
+                .delete(oldContent.length() - prefix - suffix)
+                .insert(newContent.substring(prefix, newContent.length() - suffix))
+                .retain(suffix);
+    }
+
+    public List<Object> getComponents() { return Collections.unmodifiableList(ops); }
+
+    public int getBaseLength() { return baseLength; }
+
+    public int getTargetLength() { return targetLength; }
+
+    private static boolean isRetain(Object op) {
+        return op instanceof Integer && (Integer) op > 0;
+    }
+
+    private static boolean isInsert(Object op) {
+        return op instanceof String;
+    }
+
+    private static boolean isDelete(Object op) {
+        return op instanceof Integer && (Integer) op < 0;
+    }
+}
@@ -0,0 +1,100 @@
+package com.codebuddy.protocol;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.List;
+
+/**
+ * Frames sent by clients. The server decodes them with
+ * {@link MessageCodec#decodeClient}; clients encode them with
+ * {@link MessageCodec#encode}, which writes the type name first.
+ */
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.PROPERTY, property = "type")
+@JsonSubTypes({
+    @JsonSubTypes.Type(value = ClientMessage.CodeOp.class, name = ClientMessage.CodeOp.TYPE),
+    @JsonSubTypes.Type(value = ClientMessage.CodeChange.class, name = ClientMessage.CodeChange.TYPE),
+    @JsonSubTypes.Type(value = ClientMessage.CursorPosition.class, name = ClientMessage.CursorPosition.TYPE),
+    @JsonSubTypes.Type(value = ClientMessage.FileCreate.class, name = ClientMessage.FileCreate.TYPE),
+    @JsonSubTypes.Type(value = ClientMessage.FileDelete.class, name = ClientMessage.FileDelete.TYPE),
+    @JsonSubTypes.Type(value = ClientMessage.Resume.class, name = ClientMessage.Resume.TYPE),
+    @JsonSubTypes.Type(value = ClientMessage.SnapshotRequest.class, name = ClientMessage.SnapshotRequest.TYPE),
+    @JsonSubTypes.Type(value = ClientMessage.ChatMessage.class, name = ClientMessage.ChatMessage.TYPE),
+    @JsonSubTypes.Type(value = ClientMessage.UserTyping.class, name = ClientMessage.UserTyping.TYPE),
+    @JsonSubTypes.Type(value = ClientMessage.AiRequest.class, name = ClientMessage.AiRequest.TYPE)
+})
+public sealed interface ClientMessage {
+
+    String type();
+
+    /**
+     * User the frame claims to come from, or null for frames without one.
+     */
+    String userId();
+
+    record CodeOp(String filename, long revision, String userId, List<Object> ops) implements ClientMessage {
+        public static final String TYPE = "code_op";
+        public String type() { return TYPE; }
+    }
+
+    record CodeChange(String filename, String content, String userId) implements ClientMessage {
+        public static final String TYPE = "code_change";
+        public String type() { return TYPE; }
+    }
+
+    record CursorPosition(String userId, int line, int column, JsonNode selection) implements ClientMessage {
+        public static final String TYPE = "cursor_position";
+        public String type() { return TYPE; }
+    }
+
+    record FileCreate(String filename, String userId) implements ClientMessage {
+        public static final String TYPE = "file_create";
+        public String type() { return TYPE; }
+    }
+
+    record FileDelete(String filename, String userId) implements ClientMessage {
+        public static final String TYPE = "file_delete";
+        public String type() { return TYPE; }
+    }
+
+    record Resume(String epoch, long lastSeq) implements ClientMessage {
+        public static final String TYPE = "resume";
+        public String type() { return TYPE; }
+        public String userId() { return null; }
+    }
+
+    record SnapshotRequest(List<String> files) implements ClientMessage {
+        public static final String TYPE = "snapshot_request";
+        public String type() { return TYPE; }
+        public String userId() { return null; }
+    }
+
+    record ChatMessage(String userId, String username, String content) implements ClientMessage {
+        public static final String TYPE = "chat_message";
+        public String type() { return TYPE; }
+    }
+
+    record UserTyping(String userId, String username, @JsonProperty("isTyping") boolean isTyping) implements ClientMessage {
+        public static final String TYPE = "user_typing";
+        public String type() { return TYPE; }
+    }
+
+    /**
+     * Asks the AI for help; the answer streams back to this connection as
+     * ai_chunk frames tagged with the client's requestId.
+     */
+    record AiRequest(String requestId, String userId, String action, String code, String language,
+                     String context, boolean bypassCache) implements ClientMessage {
+        public static final String TYPE = "ai_request";
+        public String type() { return TYPE; }
+    }
+
+    /**
+     * A frame of a type this server does not know; decoded so it can still be
+     * rate limited, then ignored.
+     */
+    record Unknown(String type, String userId) implements ClientMessage {
+    }
+}
@@ -0,0 +1,183 @@
+package com.codebuddy.protocol;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes protocol messages in either wire format. Client frames
+ * are read field by field from a streaming parser straight into their record,
+ * without building an intermediate tree; everything else goes through the
+ * readers and writers each {@link WireFormat} builds once up front.
+ */
+public final class MessageCodec {
+
+    private MessageCodec() {
+    }
+
+    public static byte[] encode(WireFormat format, Object message) throws IOException {
+        return format.writerFor(message.getClass()).writeValueAsBytes(message);
+    }
+
+    public static String encodeText(Object message) throws IOException {
+        return WireFormat.JSON.writerFor(message.getClass()).writeValueAsString(message);
+    }
+
+    /**
+     * Decodes a server frame; returns null for frame types this client does not know.
+     */
+    public static ServerMessage decodeServer(WireFormat format, byte[] frame) throws IOException {
+        return format.serverReader().readValue(frame);
+    }
+
+    public static ServerMessage decodeServer(String frame) throws IOException {
+        return WireFormat.JSON.serverReader().readValue(frame);
+    }
+
+    public static ClientMessage decodeClient(WireFormat format, byte[] frame) throws IOException {
+        try (JsonParser parser = format.getMapper().createParser(frame)) {
+            return decodeClient(parser);
+        }
+    }
+
+    public static ClientMessage decodeClient(String frame) throws IOException {
+        try (JsonParser parser = WireFormat.JSON.getMapper().createParser(frame)) {
+            return decodeClient(parser);
+        }
+    }
+
+    private static ClientMessage decodeClient(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Frame is not an object");
+        }
+        String type = null;
+        String filename = null;
+        String content = null;
+        String userId = null;
+        String username = null;
+        String epoch = null;
+        String requestId = null;
+        String action = null;
+        String code = null;
+        String language = null;
+        String context = null;
+        long revision = 0;
+        long lastSeq = -1;
+        int line = 0;
+        int column = 0;
+        boolean typing = false;
+        boolean bypassCache = false;
+        List<Object> ops = null;
+        List<String> files = null;
+        JsonNode selection = null;
+
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "type": type = parser.getValueAsString(); break;
+                case "filename": filename = parser.getValueAsString(); break;
+                case "content": content = parser.getValueAsString(); break;
+                case "userId": userId = parser.getValueAsString(); break;
+                case "username": username = parser.getValueAsString(); break;
+                case "epoch": epoch = parser.getValueAsString(); break;
+                case "requestId": requestId = parser.getValueAsString(); break;
+                case "action": action = parser.getValueAsString(); break;
+                case "code": code = parser.getValueAsString(); break;
+                case "language": language = parser.getValueAsString(); break;
+                case "context": context = parser.getValueAsString(); break;
+                case "revision": revision = parser.getValueAsLong(); break;
+                case "lastSeq": lastSeq = parser.getValueAsLong(-1); break;
+                case "line": line = parser.getValueAsInt(); break;
+                case "column": column = parser.getValueAsInt(); break;
+                case "isTyping": typing = parser.getValueAsBoolean(); break;
+                case "bypassCache": bypassCache = parser.getValueAsBoolean(); break;
+                case "ops": ops = readOps(parser, token); break;
+                case "files": files = readStrings(parser, token); break;
+                case "selection":
+                    selection = token == JsonToken.VALUE_NULL ? null : parser.readValueAsTree();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (type == null) {
+            throw new JsonParseException(parser, "Frame has no type");
+        }
+
+        switch (type) {
+            case ClientMessage.CodeOp.TYPE:
+                return new ClientMessage.CodeOp(require(parser, filename, "filename"), revision,
+                        require(parser, userId, "userId"), require(parser, ops, "ops"));
+            case ClientMessage.CodeChange.TYPE:
+                return new ClientMessage.CodeChange(require(parser, filename, "filename"),
+                        require(parser, content, "content"), require(parser, userId, "userId"));
+            case ClientMessage.CursorPosition.TYPE:
+                return new ClientMessage.CursorPosition(require(parser, userId, "userId"), line, column, selection);
+            case ClientMessage.FileCreate.TYPE:
+                return new ClientMessage.FileCreate(require(parser, filename, "filename"), require(parser, userId, "userId"));
+            case ClientMessage.FileDelete.TYPE:
+                return new ClientMessage.FileDelete(require(parser, filename, "filename"), require(parser, userId, "userId"));
+            case ClientMessage.Resume.TYPE:
+                return new ClientMessage.Resume(epoch != null ? epoch : "", lastSeq);
+            case ClientMessage.SnapshotRequest.TYPE:
+                return new ClientMessage.SnapshotRequest(files != null ? files : List.of());
+            case ClientMessage.ChatMessage.TYPE:
+                return new ClientMessage.ChatMessage(require(parser, userId, "userId"),
+                        require(parser, username, "username"), require(parser, content, "content"));
+            case ClientMessage.UserTyping.TYPE:
+                return new ClientMessage.UserTyping(require(parser, userId, "userId"),
+                        require(parser, username, "username"), typing);
+            case ClientMessage.AiRequest.TYPE:
+                return new ClientMessage.AiRequest(require(parser, requestId, "requestId"),
+                        require(parser, userId, "userId"), require(parser, action, "action"),
+                        require(parser, code, "code"), language, context, bypassCache);
+            default:
+                return new ClientMessage.Unknown(type, userId);
+        }
+    }
+
+    // Operation components are retain/delete counts and insert strings
+    private static List<Object> readOps(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "ops must be an array");
+        }
+        List<Object> ops = new ArrayList<>();
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == JsonToken.VALUE_STRING) {
+                ops.add(parser.getText());
+            } else if (token == JsonToken.VALUE_NUMBER_INT) {
+                ops.add(parser.getIntValue());
+            } else {
+                throw new JsonParseException(parser, "Invalid operation component");
+            }
+        }
+        return ops;
+    }
+
+    private static List<String> readStrings(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "Expected an array of strings");
+        }
+        List<String> values = new ArrayList<>();
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.VALUE_STRING) {
+                throw new JsonParseException(parser, "Expected an array of strings");
+            }
+            values.add(parser.getText());
+        }
+        return values;
+    }
+
+    private static <T> T require(JsonParser parser, T value, String field) throws JsonParseException {
+        if (value == null) {
+            throw new JsonParseException(parser, "Missing field: " + field);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,139 @@
+package com.codebuddy.protocol;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.List;
+
+/**
+ * Frames sent by the server. The type name is written first, so clients can
+ * dispatch on it while streaming the rest of the frame.
+ */
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, include = JsonTypeInfo.As.PROPERTY, property = "type")
+@JsonSubTypes({
+    @JsonSubTypes.Type(value = ServerMessage.ConnectionEstablished.class, name = "connection_established"),
+    @JsonSubTypes.Type(value = ServerMessage.CodeOp.class, name = "code_op"),
+    @JsonSubTypes.Type(value = ServerMessage.CodeOpAck.class, name = "code_op_ack"),
+    @JsonSubTypes.Type(value = ServerMessage.CodeChange.class, name = "code_change"),
+    @JsonSubTypes.Type(value = ServerMessage.CodeResync.class, name = "code_resync"),
+    @JsonSubTypes.Type(value = ServerMessage.FileCreate.class, name = "file_create"),
+    @JsonSubTypes.Type(value = ServerMessage.FileDelete.class, name = "file_delete"),
+    @JsonSubTypes.Type(value = ServerMessage.Presence.class, name = "presence"),
+    @JsonSubTypes.Type(value = ServerMessage.Resumed.class, name = "resumed"),
+    @JsonSubTypes.Type(value = ServerMessage.RoomManifest.class, name = "room_manifest"),
+    @JsonSubTypes.Type(value = ServerMessage.SnapshotChunk.class, name = "snapshot_chunk"),
+    @JsonSubTypes.Type(value = ServerMessage.SnapshotComplete.class, name = "snapshot_complete"),
+    @JsonSubTypes.Type(value = ServerMessage.Throttled.class, name = "throttled"),
+    @JsonSubTypes.Type(value = ServerMessage.ErrorMessage.class, name = "error"),
+    @JsonSubTypes.Type(value = ServerMessage.ChatMessage.class, name = "chat_message"),
+    @JsonSubTypes.Type(value = ServerMessage.ChatHistory.class, name = "chat_history"),
+    @JsonSubTypes.Type(value = ServerMessage.UserTyping.class, name = "user_typing"),
+    @JsonSubTypes.Type(value = ServerMessage.AiChunk.class, name = "ai_chunk"),
+    @JsonSubTypes.Type(value = ServerMessage.AiCodeBlock.class, name = "ai_code_block"),
+    @JsonSubTypes.Type(value = ServerMessage.AiComplete.class, name = "ai_complete")
+})
+public sealed interface ServerMessage {
+
+    /**
+     * Room broadcast that is stamped with the room's sequence number and kept
+     * for replay. An unstamped frame has seq 0, which is not written.
+     */
+    sealed interface Sequenced extends ServerMessage {
+        long seq();
+
+        Sequenced withSeq(long seq);
+    }
+
+    record ConnectionEstablished(String sessionId, String epoch, long seq, String message) implements ServerMessage {
+    }
+
+    record CodeOp(String filename, long revision, List<Object> ops, String userId, long timestamp,
+                  @JsonInclude(JsonInclude.Include.NON_DEFAULT) long seq) implements Sequenced {
+        public CodeOp withSeq(long seq) { return new CodeOp(filename, revision, ops, userId, timestamp, seq); }
+    }
+
+    record CodeOpAck(String filename, long revision, long seq) implements ServerMessage {
+    }
+
+    record CodeChange(String filename, String content, long revision, String userId, long timestamp,
+                      @JsonInclude(JsonInclude.Include.NON_DEFAULT) long seq) implements Sequenced {
+        public CodeChange withSeq(long seq) { return new CodeChange(filename, content, revision, userId, timestamp, seq); }
+    }
+
+    record CodeResync(String filename, String content, long revision) implements ServerMessage {
+    }
+
+    record FileCreate(String filename, String userId,
+                      @JsonInclude(JsonInclude.Include.NON_DEFAULT) long seq) implements Sequenced {
+        public FileCreate withSeq(long seq) { return new FileCreate(filename, userId, seq); }
+    }
+
+    record FileDelete(String filename, String userId,
+                      @JsonInclude(JsonInclude.Include.NON_DEFAULT) long seq) implements Sequenced {
+        public FileDelete withSeq(long seq) { return new FileDelete(filename, userId, seq); }
+    }
+
+    record Presence(List<Cursor> users, List<String> left) implements ServerMessage {
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record Cursor(String userId, int line, int column, JsonNode selection) {
+    }
+
+    record Resumed(String epoch, long seq, int replayed) implements ServerMessage {
+    }
+
+    record RoomManifest(String epoch, long seq, List<ManifestFile> files) implements ServerMessage {
+    }
+
+    record ManifestFile(String filename, String hash, long revision, int size) {
+    }
+
+    /**
+     * Part of a compressed file; data is binary in CBOR and base64 in JSON.
+     */
+    record SnapshotChunk(String filename, long revision, String hash, int index, int count,
+                         String encoding, byte[] data) implements ServerMessage {
+    }
+
+    record SnapshotComplete(List<String> remaining) implements ServerMessage {
+    }
+
+    record Throttled(String messageType, String category, String scope, long retryAfterMs) implements ServerMessage {
+    }
+
+    record ErrorMessage(String message) implements ServerMessage {
+    }
+
+    record ChatMessage(String id, String userId, String username, String content, String timestamp) implements ServerMessage {
+    }
+
+    /**
+     * Recent chat messages, oldest first, sent on join; nextCursor pages further back over REST.
+     */
+    record ChatHistory(List<ChatMessage> messages, String nextCursor) implements ServerMessage {
+    }
+
+    record UserTyping(String userId, String username, @JsonProperty("isTyping") boolean isTyping) implements ServerMessage {
+    }
+
+    /**
+     * The next tokens of a streamed AI answer; index counts the chunks of the request from 0.
+     */
+    record AiChunk(String requestId, int index, String text) implements ServerMessage {
+    }
+
+    record AiCodeBlock(String requestId, String code) implements ServerMessage {
+    }
+
+    /**
+     * End of a streamed AI answer with its full text, which replaces whatever chunks arrived.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record AiComplete(String requestId, boolean success, String response, String suggestedCode,
+                      String error) implements ServerMessage {
+    }
+}
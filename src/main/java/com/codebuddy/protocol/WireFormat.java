@@ -0,0 +1,72 @@
+package com.codebuddy.protocol;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.util.List;
+
+/**
+ * Encodings of the collaboration protocol, negotiated per connection through
+ * the WebSocket subprotocol. Clients that do not ask for one (the browser)
+ * get JSON text frames; the desktop client asks for CBOR binary frames.
+ * Both encodings carry the same message structure.
+ */
+public enum WireFormat {
+    CBOR("codebuddy.cbor", new ObjectMapper(new CBORFactory()), true),
+    JSON("codebuddy.json", new ObjectMapper(), false);
+
+    private static final List<String> SUBPROTOCOLS = List.of(CBOR.subprotocol, JSON.subprotocol);
+
+    private final String subprotocol;
+    private final ObjectMapper mapper;
+    private final boolean binary;
+    private final ObjectReader serverReader;
+    // One writer per message class, built on first use and reused for every frame
+    private final ClassValue<ObjectWriter> writers = new ClassValue<>() {
+        @Override
+        protected ObjectWriter computeValue(Class<?> type) {
+            return mapper.writerFor(type);
+        }
+    };
+
+    WireFormat(String subprotocol, ObjectMapper mapper, boolean binary) {
+        this.subprotocol = subprotocol;
+        this.mapper = mapper;
+        this.binary = binary;
+        // Clients tolerate fields and frame types added by newer servers
+        this.serverReader = mapper.readerFor(ServerMessage.class)
+                .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .without(DeserializationFeature.FAIL_ON_INVALID_SUBTYPE);
+    }
+
+    public String getSubprotocol() { return subprotocol; }
+
+    public ObjectMapper getMapper() { return mapper; }
+
+    public boolean isBinary() { return binary; }
+
+    ObjectWriter writerFor(Class<?> type) {
+        return writers.get(type);
+    }
+
+    ObjectReader serverReader() {
+        return serverReader;
+    }
+
+    /**
+     * Subprotocols the server accepts, in order of preference.
+     */
+    public static List<String> subprotocols() {
+        return SUBPROTOCOLS;
+    }
+
+    /**
+     * Resolves a negotiated subprotocol; no or unknown subprotocol means JSON.
+     */
+    public static WireFormat fromSubprotocol(String subprotocol) {
+        return CBOR.subprotocol.equals(subprotocol) ? CBOR : JSON;
+    }
+}
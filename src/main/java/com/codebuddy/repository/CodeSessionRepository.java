@@ -1,17 +1,45 @@
 package com.codebuddy.repository;
 
 import com.codebuddy.model.CodeSession;
+import com.codebuddy.model.SessionSummary;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
- * Repository for CodeSession entities
+ * Repository for CodeSession entities. Listings return summaries, newest
+ * update first; the Before variants continue after a (updatedAt, id) cursor.
  */
 @Repository
-public interface CodeSessionRepository extends MongoRepository<CodeSession, String> {
-    List<CodeSession> findByOwnerIdOrCollaboratorsContaining(String ownerId, String collaboratorId);
-    List<CodeSession> findByIsActiveTrue();
-    List<CodeSession> findByOwnerIdAndIsActiveTrue(String ownerId);
-}
\ No newline at end of file
+public interface CodeSessionRepository extends MongoRepository<CodeSession, String>, CodeSessionRepositoryCustom {
+    String USER = "'$or': [ { 'ownerId': ?0 }, { 'collaborators': ?0 } ]";
+    String NEWEST_FIRST = "{ 'updatedAt': -1, '_id': -1 }";
+
+    @Query(value = "{ " + USER + " }", fields = SessionSummary.FIELDS)
+    List<SessionSummary> findUserSessions(String userId, Pageable pageable);
+
+    @Query(value = "{ '$and': [ { " + USER + " }, "
+            + "{ '$or': [ { 'updatedAt': { '$lt': ?1 } }, { 'updatedAt': ?1, '_id': { '$lt': ?2 } } ] } ] }",
+            fields = SessionSummary.FIELDS)
+    List<SessionSummary> findUserSessionsBefore(String userId, LocalDateTime updatedAt, ObjectId id, Pageable pageable);
+
+    @Query(value = "{ " + USER + " }", fields = SessionSummary.FIELDS, sort = NEWEST_FIRST)
+    Stream<SessionSummary> streamUserSessions(String userId);
+
+    @Query(value = "{ 'isActive': true }", fields = SessionSummary.FIELDS)
+    List<SessionSummary> findActiveSessions(Pageable pageable);
+
+    @Query(value = "{ 'isActive': true, "
+            + "'$or': [ { 'updatedAt': { '$lt': ?0 } }, { 'updatedAt': ?0, '_id': { '$lt': ?1 } } ] }",
+            fields = SessionSummary.FIELDS)
+    List<SessionSummary> findActiveSessionsBefore(LocalDateTime updatedAt, ObjectId id, Pageable pageable);
+
+    @Query(value = "{ 'isActive': true }", fields = SessionSummary.FIELDS, sort = NEWEST_FIRST)
+    Stream<SessionSummary> streamActiveSessions();
+}
@@ -0,0 +1,23 @@
+package com.codebuddy.repository;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+/**
+ * Targeted updates of single session fields, applied atomically by MongoDB
+ * without reading or rewriting the rest of the document. Each method
+ * returns false if the session does not exist. Updates of anything but
+ * files also advance the stored version; file updates advance the
+ * session's version through their revisions.
+ */
+public interface CodeSessionRepositoryCustom {
+    /**
+     * Sets manifest entries.
+     */
+    boolean updateFiles(String sessionId, Map<String, String> fileHashes, Map<String, Long> fileRevisions,
+                        LocalDateTime updatedAt);
+
+    boolean addCollaborator(String sessionId, String userId, LocalDateTime updatedAt);
+
+    boolean updateActive(String sessionId, boolean active, LocalDateTime updatedAt);
+}
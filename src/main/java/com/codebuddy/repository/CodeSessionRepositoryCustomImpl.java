@@ -0,0 +1,61 @@
+package com.codebuddy.repository;
+
+import com.codebuddy.model.CodeSession;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+/**
+ * MongoTemplate implementation of the targeted session updates
+ */
+public class CodeSessionRepositoryCustomImpl implements CodeSessionRepositoryCustom {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public boolean updateFiles(String sessionId, Map<String, String> fileHashes, Map<String, Long> fileRevisions,
+                               LocalDateTime updatedAt) {
+        return apply(sessionId, files(fileHashes, fileRevisions, updatedAt));
+    }
+
+    @Override
+    public boolean addCollaborator(String sessionId, String userId, LocalDateTime updatedAt) {
+        // One atomic update; a repeated add leaves the set as it is but still counts as a write
+        return apply(sessionId,
+                new Update().addToSet("collaborators", userId).set("updatedAt", updatedAt).inc("version", 1));
+    }
+
+    @Override
+    public boolean updateActive(String sessionId, boolean active, LocalDateTime updatedAt) {
+        return applyIfChanged(sessionId, "isActive", active,
+                new Update().set("isActive", active).set("updatedAt", updatedAt).inc("version", 1));
+    }
+
+    private static Update files(Map<String, String> fileHashes, Map<String, Long> fileRevisions, LocalDateTime updatedAt) {
+        Update update = new Update().set("updatedAt", updatedAt);
+        fileHashes.forEach((filename, hash) -> update.set("fileHashes." + MongoConfig.escapeMapKey(filename), hash));
+        fileRevisions.forEach((filename, revision) ->
+                update.set("fileRevisions." + MongoConfig.escapeMapKey(filename), revision));
+        return update;
+    }
+
+    private boolean apply(String sessionId, Update update) {
+        Query query = Query.query(Criteria.where("id").is(sessionId));
+        return mongoTemplate.updateFirst(query, update, CodeSession.class).getMatchedCount() > 0;
+    }
+
+    // Updates only if the field does not already hold the value; a session that already did still counts as found
+    private boolean applyIfChanged(String sessionId, String field, Object value, Update update) {
+        Query query = Query.query(Criteria.where("id").is(sessionId).and(field).ne(value));
+        if (mongoTemplate.updateFirst(query, update, CodeSession.class).getMatchedCount() > 0) {
+            return true;
+        }
+        return mongoTemplate.exists(Query.query(Criteria.where("id").is(sessionId)), CodeSession.class);
+    }
+}
@@ -0,0 +1,17 @@
+package com.codebuddy.repository;
+
+import com.codebuddy.model.EditLogEntry;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * Repository for the session edit log
+ */
+@Repository
+public interface EditLogRepository extends MongoRepository<EditLogEntry, String>, EditLogRepositoryCustom {
+    List<EditLogEntry> findBySessionIdAndFilenameAndRevisionGreaterThanOrderByRevisionAsc(String sessionId, String filename, long revision);
+    void deleteBySessionIdAndFilenameAndRevisionLessThanEqual(String sessionId, String filename, long revision);
+    void deleteBySessionId(String sessionId);
+}
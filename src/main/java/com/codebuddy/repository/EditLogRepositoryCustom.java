@@ -0,0 +1,17 @@
+package com.codebuddy.repository;
+
+import com.codebuddy.model.EditLogEntry;
+
+import java.util.List;
+
+/**
+ * Batched appends to the edit log
+ */
+public interface EditLogRepositoryCustom {
+    /**
+     * Inserts entries, treating any already logged under the same session,
+     * file and revision as inserted. Returns the entries that still need to
+     * be retried; throws if the batch could not be sent at all.
+     */
+    List<EditLogEntry> insertNew(List<EditLogEntry> entries);
+}
@@ -0,0 +1,21 @@
+package com.codebuddy.repository;
+
+import com.codebuddy.model.EditLogEntry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.List;
+
+/**
+ * MongoTemplate implementation of the batched edit log appends
+ */
+public class EditLogRepositoryCustomImpl implements EditLogRepositoryCustom {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public List<EditLogEntry> insertNew(List<EditLogEntry> entries) {
+        return UnorderedInsert.insert(mongoTemplate, EditLogEntry.class, entries);
+    }
+}
@@ -0,0 +1,19 @@
+package com.codebuddy.repository;
+
+import com.codebuddy.model.FileBlob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Repository for content-addressed file blobs
+ */
+@Repository
+public interface FileBlobRepository extends MongoRepository<FileBlob, String> {
+    // Existence check that does not read the content back
+    @Query(value = "{ '_id': { '$in': ?0 } }", fields = "{ '_id': 1 }")
+    List<FileBlob> findHashesIn(Collection<String> hashes);
+}
@@ -0,0 +1,25 @@
+package com.codebuddy.repository;
+
+import com.codebuddy.model.Message;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Repository for chat history
+ */
+@Repository
+public interface MessageRepository extends MongoRepository<Message, String>, MessageRepositoryCustom {
+    List<Message> findBySessionId(String sessionId, Pageable pageable);
+
+    // Messages strictly older than (timestamp, id), for cursor pagination
+    @Query("{ 'sessionId': ?0, '$or': [ { 'timestamp': { '$lt': ?1 } }, { 'timestamp': ?1, '_id': { '$lt': ?2 } } ] }")
+    List<Message> findBySessionIdBefore(String sessionId, LocalDateTime timestamp, ObjectId id, Pageable pageable);
+
+    void deleteBySessionId(String sessionId);
+}
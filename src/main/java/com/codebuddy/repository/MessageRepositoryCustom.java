@@ -0,0 +1,17 @@
+package com.codebuddy.repository;
+
+import com.codebuddy.model.Message;
+
+import java.util.List;
+
+/**
+ * Batched inserts of chat messages
+ */
+public interface MessageRepositoryCustom {
+    /**
+     * Inserts messages, treating any already stored under the same id as
+     * inserted. Returns the messages that still need to be retried; throws
+     * if the batch could not be sent at all.
+     */
+    List<Message> insertNew(List<Message> messages);
+}
@@ -0,0 +1,21 @@
+package com.codebuddy.repository;
+
+import com.codebuddy.model.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.List;
+
+/**
+ * MongoTemplate implementation of the batched chat message inserts
+ */
+public class MessageRepositoryCustomImpl implements MessageRepositoryCustom {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public List<Message> insertNew(List<Message> messages) {
+        return UnorderedInsert.insert(mongoTemplate, Message.class, messages);
+    }
+}
@@ -0,0 +1,47 @@
+package com.codebuddy.repository;
+
+import com.codebuddy.model.EditLogEntry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.index.Index;
+
+/**
+ * MongoDB mapping configuration. Filenames are used as map keys, and a dot
+ * in a field name would be read as a path, so dots in map keys are stored
+ * as a full-width dot.
+ */
+@Configuration
+public class MongoConfig {
+
+    public static final String MAP_KEY_DOT_REPLACEMENT = "\uFF0E";
+
+    @Autowired
+    public void configureConverter(MappingMongoConverter converter) {
+        converter.setMapKeyDotReplacement(MAP_KEY_DOT_REPLACEMENT);
+    }
+
+    /**
+     * Creates the edit log's unique index at startup whether or not automatic
+     * index creation is enabled; without it two nodes could log the same
+     * revision of a file, and replay would read the log with a collection scan.
+     */
+    @Autowired
+    public void ensureEditLogIndex(MongoTemplate mongoTemplate) {
+        mongoTemplate.indexOps(EditLogEntry.class).ensureIndex(new Index()
+                .on("sessionId", Sort.Direction.ASC)
+                .on("filename", Sort.Direction.ASC)
+                .on("revision", Sort.Direction.ASC)
+                .unique()
+                .named("session_file_revision"));
+    }
+
+    /**
+     * Escapes a map key for use in an update path, the same way the converter does on save.
+     */
+    public static String escapeMapKey(String key) {
+        return key.replace(".", MAP_KEY_DOT_REPLACEMENT);
+    }
+}
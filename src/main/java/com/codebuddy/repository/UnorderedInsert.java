@@ -0,0 +1,45 @@
+package com.codebuddy.repository;
+
+import com.mongodb.bulk.BulkWriteError;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unordered bulk insert for append-only collections whose writes are
+ * retried. A batch that partly succeeded, or timed out after being
+ * written, is sent again as a whole; the documents already stored fail on
+ * their unique key and count as inserted, and the rest still go in.
+ */
+final class UnorderedInsert {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private UnorderedInsert() {
+    }
+
+    /**
+     * Inserts the documents and returns those that failed for a reason other
+     * than already being stored, in their original order.
+     */
+    static <T> List<T> insert(MongoTemplate mongoTemplate, Class<T> type, List<T> documents) {
+        if (documents.isEmpty()) {
+            return List.of();
+        }
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, type).insert(documents).execute();
+            return List.of();
+        } catch (BulkOperationException e) {
+            List<T> failed = new ArrayList<>();
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    failed.add(documents.get(error.getIndex()));
+                }
+            }
+            return failed;
+        }
+    }
+}
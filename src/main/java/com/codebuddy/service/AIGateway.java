@@ -0,0 +1,312 @@
+package com.codebuddy.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Long-lived client for the chat completions API. One HttpClient is shared
+ * by every call, so connections and TLS sessions are kept alive and reused.
+ * At most max-concurrency requests are in flight; further calls wait in a
+ * bounded queue without holding a thread.
+ */
+@Service
+public class AIGateway {
+
+    private static final String MODEL = "gpt-3.5-turbo";
+    // Longest answer asked for; the scheduler reserves this much of the token budget per call
+    static final int MAX_TOKENS = 1000;
+    private static final String SYSTEM_PROMPT =
+            "You are a helpful coding assistant. Provide clear, concise explanations and suggestions.";
+
+    @Value("${openai.api.key:}")
+    private String apiKey;
+
+    @Value("${openai.api.url:https://api.openai.com/v1/chat/completions}")
+    private String apiUrl;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final int maxQueued;
+    private final Semaphore permits;
+    // Calls waiting for a permit; each one sends its request when started
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Timer latency;
+    private final Timer firstToken;
+    private final Counter rejected;
+
+    public AIGateway(MeterRegistry meterRegistry,
+                     @Value("${codebuddy.ai.max-concurrency:16}") int maxConcurrency,
+                     @Value("${codebuddy.ai.max-queued:256}") int maxQueued,
+                     @Value("${codebuddy.ai.connect-timeout-ms:5000}") long connectTimeoutMs,
+                     @Value("${codebuddy.ai.request-timeout-ms:60000}") long requestTimeoutMs) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .build();
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMs);
+        this.maxQueued = maxQueued;
+        this.permits = new Semaphore(maxConcurrency);
+        this.latency = Timer.builder("codebuddy.ai.request.latency")
+                .description("Time from sending an AI request to its response")
+                .register(meterRegistry);
+        this.firstToken = Timer.builder("codebuddy.ai.stream.first-token")
+                .description("Time from sending a streamed AI request to its first token")
+                .register(meterRegistry);
+        this.rejected = meterRegistry.counter("codebuddy.ai.request.rejected");
+        meterRegistry.gauge("codebuddy.ai.request.inflight", permits, p -> maxConcurrency - p.availablePermits());
+        meterRegistry.gauge("codebuddy.ai.request.queued", queued);
+    }
+
+    public boolean isConfigured() {
+        return apiKey != null && !apiKey.isEmpty();
+    }
+
+    /**
+     * Sends a prompt and completes with the assistant's reply. Completes
+     * exceptionally with an {@link ApiException} when the API answers with
+     * an error, and on timeouts, transport errors and a full queue.
+     */
+    public CompletableFuture<String> complete(String prompt) {
+        return submit(requestBody(prompt, false), request ->
+                client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                        .thenApply(reply -> parseReply(reply.body())));
+    }
+
+    /**
+     * Like {@link #complete}, but passes each token to onToken as the API
+     * streams it. If onToken throws, the request is aborted and the future
+     * completes with that exception. The whole stream is bounded by the
+     * request timeout.
+     */
+    public CompletableFuture<String> stream(String prompt, Consumer<String> onToken) {
+        return submit(requestBody(prompt, true), request -> {
+            TokenStream tokens = new TokenStream(onToken, System.nanoTime());
+            CompletableFuture<HttpResponse<Void>> exchange =
+                    client.sendAsync(request, HttpResponse.BodyHandlers.fromLineSubscriber(tokens));
+            exchange.whenComplete((reply, error) -> {
+                if (error != null) {
+                    tokens.result.completeExceptionally(error);
+                }
+            });
+            // Cancelling the exchange closes its stream, so an abandoned completion stops costing tokens
+            tokens.result.orTimeout(requestTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .whenComplete((text, error) -> {
+                        if (error != null) {
+                            exchange.cancel(true);
+                        }
+                    });
+            return tokens.result;
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        client.shutdownNow();
+    }
+
+    private CompletableFuture<String> submit(ObjectNode body, Function<HttpRequest, CompletableFuture<String>> exchange) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(URI.create(apiUrl))
+                    .timeout(requestTimeout)
+                    .header("Authorization", "Bearer " + apiKey)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)))
+                    .build();
+        } catch (IOException | IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.increment();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many AI requests waiting"));
+        }
+        CompletableFuture<String> result = new CompletableFuture<>();
+        waiting.add(() -> send(request, exchange, result));
+        drain();
+        return result;
+    }
+
+    private void send(HttpRequest request, Function<HttpRequest, CompletableFuture<String>> exchange,
+                      CompletableFuture<String> result) {
+        long start = System.nanoTime();
+        CompletableFuture<String> reply;
+        try {
+            reply = exchange.apply(request);
+        } catch (RuntimeException e) {
+            reply = CompletableFuture.failedFuture(e);
+        }
+        reply.whenComplete((text, error) -> {
+            latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            release();
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(text);
+            }
+        });
+    }
+
+    private void release() {
+        permits.release();
+        drain();
+    }
+
+    // Both enqueueing and releasing drain afterwards, so a waiting call is never left behind a free permit
+    private void drain() {
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+                permits.release();
+                return;
+            }
+            queued.decrementAndGet();
+            next.run();
+        }
+    }
+
+    private ObjectNode requestBody(String prompt, boolean stream) {
+        ObjectNode body = objectMapper.createObjectNode();
+        body.put("model", MODEL);
+        if (stream) {
+            body.put("stream", true);
+        }
+        ArrayNode messages = body.putArray("messages");
+        messages.addObject().put("role", "system").put("content", SYSTEM_PROMPT);
+        messages.addObject().put("role", "user").put("content", prompt);
+        body.put("max_tokens", MAX_TOKENS);
+        body.put("temperature", 0.7);
+        return body;
+    }
+
+    private String parseReply(byte[] body) {
+        JsonNode jsonResponse;
+        try {
+            jsonResponse = objectMapper.readTree(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (jsonResponse.has("choices") && jsonResponse.get("choices").size() > 0) {
+            return jsonResponse.get("choices").get(0).get("message").get("content").asText();
+        } else if (jsonResponse.has("error")) {
+            throw new ApiException(jsonResponse.get("error").path("message").asText());
+        } else {
+            throw new ApiException("Unexpected response from AI service.");
+        }
+    }
+
+    /**
+     * The API answered, but with an error instead of a completion.
+     */
+    public static class ApiException extends RuntimeException {
+        public ApiException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads a streamed completion line by line. Tokens arrive as server-sent
+     * events; anything else is the body of an error response.
+     */
+    private class TokenStream implements Flow.Subscriber<String> {
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final Consumer<String> onToken;
+        private final long startNanos;
+        private final StringBuilder text = new StringBuilder();
+        private final StringBuilder other = new StringBuilder();
+        private Flow.Subscription subscription;
+
+        private TokenStream(Consumer<String> onToken, long startNanos) {
+            this.onToken = onToken;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(String line) {
+            if (result.isDone()) {
+                return;
+            }
+            if (!line.startsWith("data:")) {
+                other.append(line).append('\n');
+                return;
+            }
+            String data = line.substring(5).trim();
+            if (data.isEmpty() || data.equals("[DONE]")) {
+                return;
+            }
+            String token;
+            try {
+                token = objectMapper.readTree(data).path("choices").path(0).path("delta").path("content").asText("");
+            } catch (IOException e) {
+                // Not a completion chunk; keep reading
+                return;
+            }
+            if (token.isEmpty()) {
+                return;
+            }
+            if (text.isEmpty()) {
+                firstToken.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+            text.append(token);
+            try {
+                onToken.accept(token);
+            } catch (RuntimeException e) {
+                subscription.cancel();
+                result.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            result.completeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete() {
+            if (!text.isEmpty() || other.isEmpty()) {
+                result.complete(text.toString());
+                return;
+            }
+            try {
+                result.complete(parseReply(other.toString().getBytes(StandardCharsets.UTF_8)));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.AIRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Answers to AI requests, keyed by the action, language, context and code
+ * they were asked about. Entries live in a bounded in-memory LRU and, if
+ * enabled, in a directory on disk so they survive restarts; both expire
+ * after the TTL.
+ */
+@Service
+public class AIResponseCache {
+
+    private static final Logger log = LoggerFactory.getLogger(AIResponseCache.class);
+
+    /**
+     * A cached answer: the response text and its first code block.
+     */
+    public record Entry(String response, String suggestedCode, long createdAtMillis) {
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final long ttlMs;
+    // Null when the disk tier is disabled
+    private final Path directory;
+    private final int diskMaxEntries;
+    // Least recently used first
+    private final Map<String, Entry> entries;
+    private final Counter memoryHits;
+    private final Counter diskHits;
+    private final Counter misses;
+    private final Counter bypasses;
+
+    public AIResponseCache(MeterRegistry meterRegistry,
+                           @Value("${codebuddy.ai.cache.max-entries:1000}") int maxEntries,
+                           @Value("${codebuddy.ai.cache.ttl-ms:86400000}") long ttlMs,
+                           @Value("${codebuddy.ai.cache.disk.enabled:false}") boolean diskEnabled,
+                           @Value("${codebuddy.ai.cache.disk.path:${java.io.tmpdir}/codebuddy-ai-cache}") String diskPath,
+                           @Value("${codebuddy.ai.cache.disk.max-entries:10000}") int diskMaxEntries) throws IOException {
+        this.ttlMs = ttlMs;
+        this.diskMaxEntries = diskMaxEntries;
+        this.directory = diskEnabled ? Files.createDirectories(Path.of(diskPath)) : null;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.memoryHits = meterRegistry.counter("codebuddy.ai.cache.lookups", "result", "memory");
+        this.diskHits = meterRegistry.counter("codebuddy.ai.cache.lookups", "result", "disk");
+        this.misses = meterRegistry.counter("codebuddy.ai.cache.lookups", "result", "miss");
+        this.bypasses = meterRegistry.counter("codebuddy.ai.cache.lookups", "result", "bypass");
+        meterRegistry.gauge("codebuddy.ai.cache.size", this, AIResponseCache::size);
+    }
+
+    /**
+     * Cache key of a request. Line endings, trailing whitespace and blank
+     * lines around the code are normalized; indentation is kept, since it
+     * is significant in some languages.
+     */
+    public static String key(AIRequest request) {
+        StringBuilder key = new StringBuilder()
+                .append(request.getAction()).append('\0')
+                .append(request.getLanguage() != null ? request.getLanguage().toLowerCase() : "").append('\0')
+                .append(request.getContext() != null ? request.getContext().strip() : "").append('\0');
+        String code = request.getCode() != null ? request.getCode() : "";
+        for (String line : code.strip().split("\r\n|\r|\n", -1)) {
+            key.append(line.stripTrailing()).append('\n');
+        }
+        return CollaborativeDocument.hash(key.toString());
+    }
+
+    /**
+     * Returns the cached answer for a key, or null if there is none that is still fresh.
+     */
+    public Entry get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && now - entry.createdAtMillis() < ttlMs) {
+                memoryHits.increment();
+                return entry;
+            }
+            entries.remove(key);
+        }
+        Entry entry = readDisk(key, now);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        diskHits.increment();
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    public void recordBypass() {
+        bypasses.increment();
+    }
+
+    public void put(String key, String response, String suggestedCode) {
+        Entry entry = new Entry(response, suggestedCode, System.currentTimeMillis());
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        writeDisk(key, entry);
+    }
+
+    /**
+     * Drops expired entries, and on disk the oldest ones beyond the disk bound.
+     */
+    @Scheduled(fixedDelayString = "${codebuddy.ai.cache.sweep-interval-ms:600000}")
+    public void evictExpired() {
+        long cutoff = System.currentTimeMillis() - ttlMs;
+        synchronized (entries) {
+            entries.values().removeIf(entry -> entry.createdAtMillis() < cutoff);
+        }
+        if (directory == null) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(path -> path.toString().endsWith(".json")).forEach(files::add);
+        } catch (IOException e) {
+            log.warn("Could not list AI cache directory {}", directory, e);
+            return;
+        }
+        files.sort(Comparator.comparing(AIResponseCache::lastModified).reversed());
+        for (int i = 0; i < files.size(); i++) {
+            if (i >= diskMaxEntries || lastModified(files.get(i)).toMillis() < cutoff) {
+                deleteQuietly(files.get(i));
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Entry readDisk(String key, long now) {
+        if (directory == null) {
+            return null;
+        }
+        Path file = directory.resolve(key + ".json");
+        try (InputStream in = Files.newInputStream(file)) {
+            Entry entry = objectMapper.readValue(in, Entry.class);
+            if (now - entry.createdAtMillis() < ttlMs) {
+                return entry;
+            }
+            deleteQuietly(file);
+        } catch (NoSuchFileException e) {
+            // Not cached on disk
+        } catch (IOException e) {
+            if (Files.exists(file)) {
+                log.warn("Dropping unreadable AI cache file {}", file, e);
+                deleteQuietly(file);
+            }
+        }
+        return null;
+    }
+
+    // Written to a temporary file first, so a reader never sees half an entry
+    private void writeDisk(String key, Entry entry) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try {
+                objectMapper.writeValue(temp.toFile(), entry);
+                Files.move(temp, directory.resolve(key + ".json"),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            log.warn("Could not write AI cache entry {}", key, e);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Could not delete AI cache file {}", file, e);
+        }
+    }
+}
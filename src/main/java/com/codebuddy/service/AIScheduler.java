@@ -0,0 +1,377 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.AIRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Decides which AI call goes upstream next. Calls queue by the priority of
+ * their action; within a priority, sessions take turns and so do the users
+ * of a session, so one busy session cannot hold back the others. A call
+ * starts only while fewer than max-concurrency are running and the global
+ * requests-per-minute and tokens-per-minute budgets allow it. A queue whose
+ * oldest call has waited past the aging limit is served ahead of higher
+ * priorities, so heavy interactive use cannot starve reviews forever.
+ */
+@Service
+public class AIScheduler {
+
+    public enum Priority {
+        HIGH, NORMAL, LOW;
+
+        private static Priority defaultFor(AIRequest.AIAction action) {
+            return switch (action) {
+                case EXPLAIN, FIX_BUGS -> HIGH;
+                case ADD_COMMENTS, GENERATE_FUNCTION -> NORMAL;
+                case OPTIMIZE, REVIEW -> LOW;
+            };
+        }
+    }
+
+    // Rough characters per token, to size a prompt before the API has counted it
+    private static final int CHARS_PER_TOKEN = 4;
+
+    private final Map<AIRequest.AIAction, Priority> priorities = new EnumMap<>(AIRequest.AIAction.class);
+    private final Level[] levels = new Level[Priority.values().length];
+    // Map of sessionId -> calls it has waiting, across priorities
+    private final Map<String, Integer> queuedPerSession = new HashMap<>();
+    private final ScheduledExecutorService dispatcher;
+    private final Budget requestBudget;
+    private final Budget tokenBudget;
+    private final int maxConcurrency;
+    private final int maxQueued;
+    private final int maxQueuedPerSession;
+    private final long agingNanos;
+    private final Map<Priority, Timer> waitTimes = new EnumMap<>(Priority.class);
+    private final Counter queueRejections;
+    private final Counter sessionRejections;
+    // Guarded by this, like the queues and budgets
+    private int queued;
+    private int running;
+    private ScheduledFuture<?> wakeup;
+
+    public AIScheduler(MeterRegistry meterRegistry, Environment environment,
+                       @Value("${codebuddy.ai.max-concurrency:16}") int maxConcurrency,
+                       @Value("${codebuddy.ai.scheduler.max-queued:256}") int maxQueued,
+                       @Value("${codebuddy.ai.scheduler.max-queued-per-session:16}") int maxQueuedPerSession,
+                       @Value("${codebuddy.ai.scheduler.requests-per-minute:3500}") long requestsPerMinute,
+                       @Value("${codebuddy.ai.scheduler.tokens-per-minute:60000}") long tokensPerMinute,
+                       @Value("${codebuddy.ai.scheduler.aging-ms:30000}") long agingMs) {
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerSession = maxQueuedPerSession;
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMs);
+        this.requestBudget = new Budget(requestsPerMinute);
+        this.tokenBudget = new Budget(tokensPerMinute);
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ai-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (AIRequest.AIAction action : AIRequest.AIAction.values()) {
+            priorities.put(action, environment.getProperty(
+                    "codebuddy.ai.scheduler.priority." + action.name().toLowerCase(),
+                    Priority.class, Priority.defaultFor(action)));
+        }
+        for (Priority priority : Priority.values()) {
+            Level level = new Level();
+            levels[priority.ordinal()] = level;
+            String tag = priority.name().toLowerCase();
+            waitTimes.put(priority, Timer.builder("codebuddy.ai.scheduler.wait")
+                    .description("Time an AI call waited in the scheduler before it was sent")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+            meterRegistry.gauge("codebuddy.ai.scheduler.queued", Tags.of("priority", tag), level, l -> l.size);
+        }
+        this.queueRejections = meterRegistry.counter("codebuddy.ai.scheduler.rejected", "reason", "queue");
+        this.sessionRejections = meterRegistry.counter("codebuddy.ai.scheduler.rejected", "reason", "session");
+        meterRegistry.gauge("codebuddy.ai.scheduler.running", this, scheduler -> scheduler.running);
+    }
+
+    /**
+     * Queues an upstream call for a request and completes with its result
+     * once it has been sent and answered. Completes exceptionally with a
+     * RejectedExecutionException if the queue or the session's share of it
+     * is full.
+     */
+    public CompletableFuture<String> submit(AIRequest request, String prompt, Supplier<CompletableFuture<String>> call) {
+        long promptTokens = estimateTokens(prompt);
+        // A call larger than the whole token budget is charged the whole budget, or it could never start
+        long reserved = (long) Math.min(promptTokens + AIGateway.MAX_TOKENS, tokenBudget.capacity);
+        Job job = new Job(priorities.get(request.getAction()), keyOf(request.getSessionId()),
+                keyOf(request.getUserId()), promptTokens, reserved, call);
+        synchronized (this) {
+            if (queued >= maxQueued) {
+                queueRejections.increment();
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Too many AI requests waiting"));
+            }
+            int sessionQueued = queuedPerSession.getOrDefault(job.sessionId, 0);
+            if (sessionQueued >= maxQueuedPerSession) {
+                sessionRejections.increment();
+                return CompletableFuture.failedFuture(
+                        new RejectedExecutionException("Too many AI requests waiting for this session"));
+            }
+            queuedPerSession.put(job.sessionId, sessionQueued + 1);
+            queued++;
+            levels[job.priority.ordinal()].add(job);
+        }
+        wake();
+        return job.result;
+    }
+
+    @PreDestroy
+    public void close() {
+        dispatcher.shutdownNow();
+        List<Job> abandoned = new ArrayList<>();
+        synchronized (this) {
+            for (Level level : levels) {
+                while (level.size > 0) {
+                    abandoned.add(level.poll());
+                }
+            }
+            queued = 0;
+            queuedPerSession.clear();
+        }
+        for (Job job : abandoned) {
+            job.result.completeExceptionally(new RejectedExecutionException("AI scheduler is shutting down"));
+        }
+    }
+
+    private void wake() {
+        try {
+            dispatcher.execute(this::dispatch);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; close() fails whatever is still queued
+        }
+    }
+
+    // Runs on the dispatcher thread only; calls are started outside the lock
+    private void dispatch() {
+        List<Job> ready = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            while (running < maxConcurrency) {
+                Level level = nextLevel(now);
+                if (level == null) {
+                    break;
+                }
+                Job job = level.peek();
+                // The next call waits for budget rather than letting smaller ones past, so large calls are not starved
+                long wait = Math.max(requestBudget.nanosUntil(1, now), tokenBudget.nanosUntil(job.reservedTokens, now));
+                if (wait > 0) {
+                    if (wakeup == null || wakeup.isDone()) {
+                        wakeup = dispatcher.schedule(this::dispatch, wait, TimeUnit.NANOSECONDS);
+                    }
+                    break;
+                }
+                level.poll();
+                requestBudget.take(1);
+                tokenBudget.take(job.reservedTokens);
+                queued--;
+                queuedPerSession.computeIfPresent(job.sessionId, (id, count) -> count > 1 ? count - 1 : null);
+                running++;
+                waitTimes.get(job.priority).record(now - job.enqueuedNanos, TimeUnit.NANOSECONDS);
+                ready.add(job);
+            }
+        }
+        for (Job job : ready) {
+            start(job);
+        }
+    }
+
+    private void start(Job job) {
+        CompletableFuture<String> reply;
+        try {
+            reply = job.call.get();
+        } catch (RuntimeException e) {
+            reply = CompletableFuture.failedFuture(e);
+        }
+        reply.whenComplete((text, error) -> {
+            // The reservation assumed a full-length answer; give back what the answer did not use
+            long used = job.promptTokens + (text != null ? estimateTokens(text) : 0);
+            synchronized (this) {
+                running--;
+                tokenBudget.refund(job.reservedTokens - used);
+            }
+            wake();
+            if (error != null) {
+                job.result.completeExceptionally(error);
+            } else {
+                job.result.complete(text);
+            }
+        });
+    }
+
+    private Level nextLevel(long now) {
+        // An overdue queue goes first, the lowest priority before the others
+        for (int i = levels.length - 1; i > 0; i--) {
+            Job oldest = levels[i].oldest();
+            if (oldest != null && now - oldest.enqueuedNanos > agingNanos) {
+                return levels[i];
+            }
+        }
+        for (Level level : levels) {
+            if (level.size > 0) {
+                return level;
+            }
+        }
+        return null;
+    }
+
+    private static long estimateTokens(String text) {
+        return (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+
+    private static String keyOf(String id) {
+        return id != null ? id : "";
+    }
+
+    private static class Job {
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final Priority priority;
+        private final String sessionId;
+        private final String userId;
+        private final long promptTokens;
+        private final long reservedTokens;
+        private final Supplier<CompletableFuture<String>> call;
+        private final long enqueuedNanos = System.nanoTime();
+        private boolean dispatched;
+
+        private Job(Priority priority, String sessionId, String userId, long promptTokens, long reservedTokens,
+                    Supplier<CompletableFuture<String>> call) {
+            this.priority = priority;
+            this.sessionId = sessionId;
+            this.userId = userId;
+            this.promptTokens = promptTokens;
+            this.reservedTokens = reservedTokens;
+            this.call = call;
+        }
+    }
+
+    /**
+     * The calls waiting at one priority. Sessions with waiting calls form a
+     * ring, each holding a ring of its users; taking a call moves both
+     * rings on by one.
+     */
+    private static class Level {
+        private final ArrayDeque<SessionTurn> sessions = new ArrayDeque<>();
+        private final Map<String, SessionTurn> bySession = new HashMap<>();
+        // Calls in arrival order, dispatched ones removed lazily, to find the longest waiting
+        private final ArrayDeque<Job> arrivals = new ArrayDeque<>();
+        private volatile int size;
+
+        private void add(Job job) {
+            SessionTurn session = bySession.computeIfAbsent(job.sessionId, id -> {
+                SessionTurn created = new SessionTurn();
+                sessions.addLast(created);
+                return created;
+            });
+            UserTurn user = session.byUser.computeIfAbsent(job.userId, id -> {
+                UserTurn created = new UserTurn();
+                session.users.addLast(created);
+                return created;
+            });
+            user.jobs.addLast(job);
+            arrivals.addLast(job);
+            size++;
+        }
+
+        private Job peek() {
+            return sessions.peekFirst().users.peekFirst().jobs.peekFirst();
+        }
+
+        private Job poll() {
+            SessionTurn session = sessions.pollFirst();
+            UserTurn user = session.users.pollFirst();
+            Job job = user.jobs.pollFirst();
+            if (user.jobs.isEmpty()) {
+                session.byUser.remove(job.userId);
+            } else {
+                session.users.addLast(user);
+            }
+            if (session.users.isEmpty()) {
+                bySession.remove(job.sessionId);
+            } else {
+                sessions.addLast(session);
+            }
+            job.dispatched = true;
+            size--;
+            return job;
+        }
+
+        private Job oldest() {
+            while (!arrivals.isEmpty() && arrivals.peekFirst().dispatched) {
+                arrivals.pollFirst();
+            }
+            return arrivals.peekFirst();
+        }
+    }
+
+    private static class SessionTurn {
+        private final ArrayDeque<UserTurn> users = new ArrayDeque<>();
+        private final Map<String, UserTurn> byUser = new HashMap<>();
+    }
+
+    private static class UserTurn {
+        private final ArrayDeque<Job> jobs = new ArrayDeque<>();
+    }
+
+    /**
+     * A per-minute allowance that refills continuously, up to one minute's
+     * worth. A non-positive limit means no limit.
+     */
+    private static class Budget {
+        private final double capacity;
+        private final double perNano;
+        private double available;
+        private long updatedNanos = System.nanoTime();
+
+        private Budget(long perMinute) {
+            this.capacity = perMinute > 0 ? perMinute : Double.POSITIVE_INFINITY;
+            this.perNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+            this.available = capacity;
+        }
+
+        /**
+         * Returns 0 if the amount is available now, otherwise the nanoseconds until it will be.
+         */
+        private long nanosUntil(double amount, long now) {
+            if (Double.isInfinite(capacity)) {
+                return 0;
+            }
+            available = Math.min(capacity, available + (now - updatedNanos) * perNano);
+            updatedNanos = now;
+            return available >= amount ? 0 : (long) Math.ceil((amount - available) / perNano);
+        }
+
+        private void take(double amount) {
+            available -= amount;
+        }
+
+        private void refund(double amount) {
+            if (amount > 0) {
+                available = Math.min(capacity, available + amount);
+            }
+        }
+    }
+}
@@ -2,55 +2,172 @@ package com.codebuddy.service;
 
 import com.codebuddy.model.AIRequest;
 import com.codebuddy.model.AIResponse;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.hc.client5.http.classic.methods.HttpPost;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.core5.http.io.entity.StringEntity;
-import org.springframework.beans.factory.annotation.Value;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for AI assistance using OpenAI API
+ * Service for AI assistance using OpenAI API. Answers are cached by request,
+ * so asking the same thing about the same code again skips the API, and
+ * identical requests that arrive while one is running share its call. Calls
+ * that do go upstream wait their turn in the {@link AIScheduler}.
  */
 @Service
 public class AIService {
 
-    @Value("${openai.api.key:}")
-    private String openaiApiKey;
+    @Autowired
+    private AIGateway aiGateway;
 
-    @Value("${openai.api.url:https://api.openai.com/v1/chat/completions}")
-    private String openaiApiUrl;
+    @Autowired
+    private AIScheduler aiScheduler;
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    @Autowired
+    private AIResponseCache responseCache;
 
-    public AIResponse processRequest(AIRequest request) {
+    // Map of cache key -> upstream call in progress
+    private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+    private final Counter coalesced;
+
+    public AIService(MeterRegistry meterRegistry) {
+        this.coalesced = meterRegistry.counter("codebuddy.ai.requests.coalesced");
+        meterRegistry.gauge("codebuddy.ai.requests.inflight.keys", inFlight, Map::size);
+    }
+
+    /**
+     * Asks the AI for help with a request. The future never completes
+     * exceptionally; failures become an unsuccessful response.
+     */
+    public CompletableFuture<AIResponse> processRequest(AIRequest request) {
+        if (!aiGateway.isConfigured()) {
+            return CompletableFuture.completedFuture(toResponse(request,
+                    "AI service is not configured. Please set your OpenAI API key."));
+        }
+        String key = AIResponseCache.key(request);
+        AIResponseCache.Entry cached = lookup(request, key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(fromCache(request, cached));
+        }
+        return join(request, key, null).result
+                .thenApply(aiResponse -> toResponse(request, aiResponse))
+                .exceptionally(e -> errorResponse(request, e));
+    }
+
+    /**
+     * Like {@link #processRequest}, but hands the answer to the listener
+     * token by token while it is generated. The future completes with the
+     * full response once the stream ends.
+     */
+    public CompletableFuture<AIResponse> streamRequest(AIRequest request, AIStreamListener listener) {
+        if (!aiGateway.isConfigured()) {
+            String message = "AI service is not configured. Please set your OpenAI API key.";
+            listener.onToken(message);
+            return CompletableFuture.completedFuture(toResponse(request, message));
+        }
+        String key = AIResponseCache.key(request);
+        AIResponseCache.Entry cached = lookup(request, key);
+        if (cached != null) {
+            // A cached answer goes out as a single token
+            if (!new CodeBlockScanner(listener).relay(cached.response())) {
+                return CompletableFuture.completedFuture(errorResponse(request,
+                        new IllegalStateException("Listener failed")));
+            }
+            return CompletableFuture.completedFuture(fromCache(request, cached));
+        }
+        return join(request, key, listener).result
+                .thenApply(aiResponse -> toResponse(request, aiResponse))
+                .exceptionally(e -> errorResponse(request, e));
+    }
+
+    /**
+     * Joins the call in progress for a key, or starts one; a listener makes
+     * it a streaming request. The call that finishes stores its answer in
+     * the cache before it stops being joinable, so a request arriving later
+     * finds one or the other.
+     */
+    private Flight join(AIRequest request, String key, AIStreamListener listener) {
+        boolean streaming = listener != null;
+        Flight created = new Flight(streaming);
+        Flight existing = inFlight.putIfAbsent(key, created);
+        Flight flight = existing != null ? existing : created;
+        // Registered before the call starts, so no token can arrive while nobody is listening
+        if (streaming) {
+            flight.subscribe(listener);
+        } else {
+            flight.await();
+        }
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        CompletableFuture<String> reply;
         try {
             String prompt = buildPrompt(request);
-            String aiResponse = callOpenAI(prompt);
-            
-            AIResponse response = new AIResponse(request.getSessionId(), request.getUserId(), aiResponse);
-            
-            // Extract code suggestions if present
-            if (aiResponse.contains("```")) {
-                String suggestedCode = extractCodeFromResponse(aiResponse);
-                response.setSuggestedCode(suggestedCode);
+            reply = aiScheduler.submit(request, prompt, streaming
+                    ? () -> aiGateway.stream(prompt, created::onToken)
+                    : () -> aiGateway.complete(prompt));
+        } catch (RuntimeException e) {
+            reply = CompletableFuture.failedFuture(e);
+        }
+        reply.whenComplete((text, error) -> {
+            if (error == null) {
+                responseCache.put(key, text, extractCodeFromResponse(text));
+                created.finish(text);
+            }
+            inFlight.remove(key, created);
+            if (error != null) {
+                created.result.completeExceptionally(error);
+            } else {
+                created.result.complete(text);
             }
-            
-            return response;
-        } catch (Exception e) {
-            AIResponse errorResponse = new AIResponse();
-            errorResponse.setSessionId(request.getSessionId());
-            errorResponse.setUserId(request.getUserId());
-            errorResponse.setSuccess(false);
-            errorResponse.setError("AI service error: " + e.getMessage());
-            return errorResponse;
+        });
+        return created;
+    }
+
+    private AIResponseCache.Entry lookup(AIRequest request, String key) {
+        if (request.isBypassCache()) {
+            responseCache.recordBypass();
+            return null;
+        }
+        return responseCache.get(key);
+    }
+
+    private AIResponse fromCache(AIRequest request, AIResponseCache.Entry cached) {
+        AIResponse response = new AIResponse(request.getSessionId(), request.getUserId(), cached.response());
+        response.setSuggestedCode(cached.suggestedCode());
+        response.setCached(true);
+        return response;
+    }
+
+    private AIResponse toResponse(AIRequest request, String aiResponse) {
+        AIResponse response = new AIResponse(request.getSessionId(), request.getUserId(), aiResponse);
+        
+        // Extract code suggestions if present
+        if (aiResponse.contains("```")) {
+            String suggestedCode = extractCodeFromResponse(aiResponse);
+            response.setSuggestedCode(suggestedCode);
         }
+        
+        return response;
+    }
+
+    private AIResponse errorResponse(AIRequest request, Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        AIResponse errorResponse = new AIResponse();
+        errorResponse.setSessionId(request.getSessionId());
+        errorResponse.setUserId(request.getUserId());
+        errorResponse.setSuccess(false);
+        errorResponse.setError("AI service error: " + e.getMessage());
+        return errorResponse;
     }
 
     private String buildPrompt(AIRequest request) {
@@ -88,51 +205,6 @@ public class AIService {
         return prompt.toString();
     }
 
-    private String callOpenAI(String prompt) throws IOException {
-        if (openaiApiKey == null || openaiApiKey.isEmpty()) {
-            return "AI service is not configured. Please set your OpenAI API key.";
-        }
-
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpPost post = new HttpPost(openaiApiUrl);
-            post.setHeader("Authorization", "Bearer " + openaiApiKey);
-            post.setHeader("Content-Type", "application/json");
-
-            String requestBody = String.format("""
-                {
-                    "model": "gpt-3.5-turbo",
-                    "messages": [
-                        {
-                            "role": "system",
-                            "content": "You are a helpful coding assistant. Provide clear, concise explanations and suggestions."
-                        },
-                        {
-                            "role": "user",
-                            "content": "%s"
-                        }
-                    ],
-                    "max_tokens": 1000,
-                    "temperature": 0.7
-                }
-                """, prompt.replace("\"", "\\\"").replace("\n", "\\n"));
-
-            post.setEntity(new StringEntity(requestBody, StandardCharsets.UTF_8));
-
-            try (CloseableHttpResponse response = client.execute(post)) {
-                String responseBody = new String(response.getEntity().getContent().readAllBytes(), StandardCharsets.UTF_8);
-                JsonNode jsonResponse = objectMapper.readTree(responseBody);
-                
-                if (jsonResponse.has("choices") && jsonResponse.get("choices").size() > 0) {
-                    return jsonResponse.get("choices").get(0).get("message").get("content").asText();
-                } else if (jsonResponse.has("error")) {
-                    return "AI Error: " + jsonResponse.get("error").get("message").asText();
-                } else {
-                    return "Unexpected response from AI service.";
-                }
-            }
-        }
-    }
-
     private String extractCodeFromResponse(String response) {
         int startIndex = response.indexOf("```");
         if (startIndex == -1) return null;
@@ -140,7 +212,10 @@ public class AIService {
         int endIndex = response.indexOf("```", startIndex + 3);
         if (endIndex == -1) return null;
         
-        String codeBlock = response.substring(startIndex + 3, endIndex);
+        return stripLanguage(response.substring(startIndex + 3, endIndex));
+    }
+
+    private static String stripLanguage(String codeBlock) {
         // Remove language identifier if present
         int newlineIndex = codeBlock.indexOf('\n');
         if (newlineIndex > 0 && newlineIndex < 20) {
@@ -149,4 +224,98 @@ public class AIService {
         
         return codeBlock;
     }
-}
\ No newline at end of file
+
+    /**
+     * One upstream call shared by every identical request that arrives while
+     * it runs. Streaming subscribers that join late are first caught up with
+     * the text so far.
+     */
+    private static class Flight {
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final boolean streaming;
+        private final StringBuilder text = new StringBuilder();
+        private final List<CodeBlockScanner> subscribers = new ArrayList<>();
+        private int waiters;
+
+        private Flight(boolean streaming) {
+            this.streaming = streaming;
+        }
+
+        // A non-streaming request keeps the call going even when every subscriber has left
+        private synchronized void await() {
+            waiters++;
+        }
+
+        private synchronized void subscribe(AIStreamListener listener) {
+            CodeBlockScanner subscriber = new CodeBlockScanner(listener);
+            if (text.isEmpty() || subscriber.relay(text.toString())) {
+                subscribers.add(subscriber);
+            }
+        }
+
+        /**
+         * Relays a streamed token. Throws, which aborts the call, once
+         * nobody is left to receive the answer.
+         */
+        private synchronized void onToken(String token) {
+            text.append(token);
+            subscribers.removeIf(subscriber -> !subscriber.relay(token));
+            if (subscribers.isEmpty() && waiters == 0) {
+                throw new IllegalStateException("Nobody is waiting for the answer");
+            }
+        }
+
+        // A call that did not stream hands its subscribers the whole answer at once
+        private synchronized void finish(String answer) {
+            if (!streaming) {
+                text.append(answer);
+                subscribers.removeIf(subscriber -> !subscriber.relay(answer));
+            }
+        }
+    }
+
+    /**
+     * Relays a completion to a listener and finds code blocks in it as it
+     * grows, so each one can be handed out when its closing fence arrives.
+     * Fences may be split across tokens.
+     */
+    private static class CodeBlockScanner {
+        private final AIStreamListener listener;
+        private final StringBuilder text = new StringBuilder();
+        private int scanFrom;
+        private int blockStart = -1;
+
+        private CodeBlockScanner(AIStreamListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Passes a token on; returns false if the listener failed and should be dropped.
+         */
+        private boolean relay(String token) {
+            try {
+                listener.onToken(token);
+                append(token);
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        private void append(String token) {
+            text.append(token);
+            int fence;
+            while ((fence = text.indexOf("```", scanFrom)) >= 0) {
+                if (blockStart < 0) {
+                    blockStart = fence + 3;
+                } else {
+                    listener.onCodeBlock(stripLanguage(text.substring(blockStart, fence)));
+                    blockStart = -1;
+                }
+                scanFrom = fence + 3;
+            }
+            // The last two characters may be the start of a fence that the next token completes
+            scanFrom = Math.max(scanFrom, text.length() - 2);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.codebuddy.service;
+
+/**
+ * Receives an AI completion while it is being generated. Callbacks come one
+ * at a time, in order; throwing from one aborts the request.
+ */
+public interface AIStreamListener {
+
+    void onToken(String token);
+
+    /**
+     * Called with the content of each code block as soon as its closing fence arrives.
+     */
+    void onCodeBlock(String code);
+}
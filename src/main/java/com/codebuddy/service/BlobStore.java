@@ -0,0 +1,200 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.CodeSession;
+import com.codebuddy.model.FileBlob;
+import com.codebuddy.repository.FileBlobRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content-addressed storage of file contents. Sessions persist a manifest
+ * of filename to hash; a blob is written once per distinct content and
+ * never updated, so files that did not change cost nothing on save.
+ */
+@Service
+public class BlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(BlobStore.class);
+
+    @Autowired
+    private FileBlobRepository blobRepository;
+
+    // Hashes known to be stored, least recently used first, so repeated saves skip the existence check
+    private final Map<String, Boolean> knownHashes;
+    private final Counter written;
+    private final Counter deduplicated;
+
+    public BlobStore(MeterRegistry meterRegistry,
+                     @Value("${codebuddy.blobs.known-hashes:100000}") int knownHashCapacity) {
+        this.knownHashes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > knownHashCapacity;
+            }
+        };
+        this.written = meterRegistry.counter("codebuddy.blobs.written");
+        this.deduplicated = meterRegistry.counter("codebuddy.blobs.deduplicated");
+    }
+
+    /**
+     * Moves content embedded by older versions into the session's files,
+     * where the next full save stores it as blobs. The embedded copy is
+     * kept until that save has succeeded. Must be called under the session
+     * lock; does no I/O.
+     */
+    public void adoptLegacyFiles(CodeSession session) {
+        Map<String, String> legacy = session.getLegacyFiles();
+        if (legacy != null) {
+            legacy.forEach((filename, content) -> {
+                if (!session.getFileHashes().containsKey(filename)) {
+                    session.getFiles().putIfAbsent(filename, content);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the content of those files whose content changed since it was
+     * last hashed, by filename; only these need their blobs stored. Must be
+     * called under the session lock; does no I/O.
+     */
+    public Map<String, String> changedFiles(CodeSession session, Collection<String> filenames) {
+        Map<String, String> changed = new HashMap<>();
+        for (String filename : filenames) {
+            String content = session.getFiles().get(filename);
+            // Live edits replace the content string, so an identical instance means an unchanged file
+            if (content != null && session.getHashedContent().get(filename) != content) {
+                changed.put(filename, content);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Records the hashes of stored contents in the session's manifest, for
+     * the files that still hold the content that was stored. Must be called
+     * under the session lock.
+     */
+    public void recordHashes(CodeSession session, Map<String, String> stored, Map<String, String> hashes) {
+        stored.forEach((filename, content) -> {
+            if (session.getFiles().get(filename) == content) {
+                session.getFileHashes().put(filename, hashes.get(filename));
+                session.getHashedContent().put(filename, content);
+            }
+        });
+    }
+
+    /**
+     * Stores the contents of files and returns their hashes by filename.
+     */
+    public Map<String, String> store(Map<String, String> files) {
+        Map<String, String> hashes = new HashMap<>();
+        Map<String, String> blobs = new HashMap<>();
+        files.forEach((filename, content) -> {
+            String hash = CollaborativeDocument.hash(content);
+            hashes.put(filename, hash);
+            blobs.put(hash, content);
+        });
+        storeBlobs(blobs);
+        return hashes;
+    }
+
+    /**
+     * Loads the file contents of sessions read from the database, with one
+     * query for all of their blobs.
+     */
+    public void hydrate(Collection<CodeSession> sessions) {
+        Set<String> hashes = new HashSet<>();
+        for (CodeSession session : sessions) {
+            hashes.addAll(session.getFileHashes().values());
+        }
+        Map<String, String> contents = new HashMap<>();
+        if (!hashes.isEmpty()) {
+            for (FileBlob blob : blobRepository.findAllById(hashes)) {
+                contents.put(blob.getHash(), blob.getContent());
+            }
+            markKnown(contents.keySet());
+        }
+
+        for (CodeSession session : sessions) {
+            for (Map.Entry<String, String> entry : session.getFileHashes().entrySet()) {
+                String content = contents.get(entry.getValue());
+                if (content == null) {
+                    log.warn("Session {} refers to missing blob {} for {}", session.getId(), entry.getValue(), entry.getKey());
+                    continue;
+                }
+                session.getFiles().put(entry.getKey(), content);
+                session.getHashedContent().put(entry.getKey(), content);
+            }
+            if (session.getLegacyFiles() != null) {
+                session.getLegacyFiles().forEach(session.getFiles()::putIfAbsent);
+            }
+        }
+    }
+
+    private void storeBlobs(Map<String, String> blobs) {
+        List<String> unknown = new ArrayList<>();
+        synchronized (knownHashes) {
+            for (String hash : blobs.keySet()) {
+                if (knownHashes.get(hash) == null) {
+                    unknown.add(hash);
+                }
+            }
+        }
+        deduplicated.increment(blobs.size() - unknown.size());
+        if (unknown.isEmpty()) {
+            return;
+        }
+
+        Set<String> existing = new HashSet<>();
+        for (FileBlob blob : blobRepository.findHashesIn(unknown)) {
+            existing.add(blob.getHash());
+        }
+        deduplicated.increment(existing.size());
+        List<FileBlob> missing = new ArrayList<>();
+        for (String hash : unknown) {
+            if (!existing.contains(hash)) {
+                missing.add(new FileBlob(hash, blobs.get(hash)));
+            }
+        }
+        if (!missing.isEmpty()) {
+            try {
+                blobRepository.insert(missing);
+            } catch (DuplicateKeyException e) {
+                // Another writer stored some of the same content meanwhile; blobs are immutable, so skip those
+                for (FileBlob blob : missing) {
+                    try {
+                        blobRepository.insert(blob);
+                    } catch (DuplicateKeyException ignored) {
+                        // Already stored
+                    }
+                }
+            }
+            written.increment(missing.size());
+        }
+        markKnown(unknown);
+    }
+
+    private void markKnown(Collection<String> hashes) {
+        synchronized (knownHashes) {
+            for (String hash : hashes) {
+                knownHashes.put(hash, Boolean.TRUE);
+            }
+        }
+    }
+}
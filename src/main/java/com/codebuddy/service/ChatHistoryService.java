@@ -0,0 +1,295 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.Message;
+import com.codebuddy.model.MessagePage;
+import com.codebuddy.model.PageCursor;
+import com.codebuddy.repository.MessageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Chat history of each session. New messages are inserted in batches, and
+ * the most recent messages of every active room are kept in memory so that
+ * joins and the first pages of scrollback are served without a query.
+ * Older pages are read from MongoDB with a (timestamp, id) cursor.
+ * Messages that could not be inserted are retried up to a bound, past
+ * which the oldest are dropped.
+ */
+@Service
+public class ChatHistoryService {
+
+    private static final Logger log = LoggerFactory.getLogger(ChatHistoryService.class);
+
+    private static final Comparator<Message> ORDER =
+            Comparator.comparing(Message::getTimestamp).thenComparing(Message::getId);
+    private static final Sort NEWEST_FIRST = Sort.by(Sort.Direction.DESC, "timestamp", "id");
+
+    @Autowired
+    private MessageRepository messageRepository;
+
+    private final int recentSize;
+    private final int maxPageSize;
+    private final long retentionMs;
+    private final int maxPending;
+    private final List<Message> pending = new ArrayList<>();
+    // Serializes inserts; a lock so a virtual thread blocked on an insert does not pin its carrier
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Counter memoryReads;
+    private final Counter databaseReads;
+    private final Counter dropped;
+    private final DistributionSummary batchSize;
+
+    public ChatHistoryService(MeterRegistry meterRegistry,
+                              @Value("${codebuddy.chat.history.recent-size:200}") int recentSize,
+                              @Value("${codebuddy.chat.history.max-page-size:100}") int maxPageSize,
+                              @Value("${codebuddy.chat.history.retention-ms:600000}") long retentionMs,
+                              @Value("${codebuddy.chat.history.max-pending:10000}") int maxPending) {
+        this.recentSize = recentSize;
+        this.maxPageSize = maxPageSize;
+        this.retentionMs = retentionMs;
+        this.maxPending = maxPending;
+        this.memoryReads = meterRegistry.counter("codebuddy.chat.history.reads", "source", "memory");
+        this.databaseReads = meterRegistry.counter("codebuddy.chat.history.reads", "source", "database");
+        this.dropped = meterRegistry.counter("codebuddy.chat.history.dropped");
+        this.batchSize = DistributionSummary.builder("codebuddy.chat.history.flush.batch.size")
+                .description("Chat messages inserted per flush")
+                .register(meterRegistry);
+        meterRegistry.gauge("codebuddy.chat.history.rooms", rooms, Map::size);
+    }
+
+    /**
+     * Stores a new chat message of a session and returns it with its id and
+     * timestamp assigned. The message is readable right away; it reaches
+     * MongoDB with the next flush.
+     */
+    public Message record(String sessionId, String userId, String username, String content) {
+        Message message = new Message(sessionId, userId, username, content, Message.MessageType.CHAT);
+        message.setId(new ObjectId().toHexString());
+        // MongoDB keeps milliseconds; truncating here keeps cursors from memory and from the database identical
+        message.setTimestamp(message.getTimestamp().truncatedTo(ChronoUnit.MILLIS));
+        synchronized (pending) {
+            pending.add(message);
+        }
+        Room room = room(sessionId);
+        synchronized (room) {
+            room.add(message);
+        }
+        return message;
+    }
+
+    /**
+     * Adds a message recorded by another node to this node's recent history,
+     * if the room is held here at all.
+     */
+    public void remember(Message message) {
+        Room room = rooms.get(message.getSessionId());
+        if (room != null) {
+            synchronized (room) {
+                room.add(message);
+            }
+        }
+    }
+
+    /**
+     * Returns up to limit messages older than the cursor, or the latest
+     * messages without one. Throws IllegalArgumentException for a malformed cursor.
+     * Only rooms already held in memory are served from it; reading a page
+     * does not make a room held, so any session id can be paged without
+     * growing the set of rooms.
+     */
+    public MessagePage page(String sessionId, String before, int limit) {
+        int size = Math.max(1, Math.min(limit, maxPageSize));
+        PageCursor cursor = before != null ? PageCursor.parse(before) : null;
+        return page(sessionId, cursor, size, rooms.get(sessionId));
+    }
+
+    /**
+     * Returns the latest messages of a room a client has joined and holds
+     * its recent history in memory from now on.
+     */
+    public MessagePage join(String sessionId, int limit) {
+        int size = Math.max(1, Math.min(limit, maxPageSize));
+        return page(sessionId, null, size, room(sessionId));
+    }
+
+    private MessagePage page(String sessionId, PageCursor cursor, int size, Room room) {
+        if (room != null) {
+            synchronized (room) {
+                room.touchedMillis = System.currentTimeMillis();
+                List<Message> older = new ArrayList<>(size);
+                Iterator<Message> newestFirst = room.recent.descendingIterator();
+                while (newestFirst.hasNext() && older.size() < size) {
+                    Message message = newestFirst.next();
+                    if (cursor == null || isBefore(message, cursor)) {
+                        older.add(message);
+                    }
+                }
+                // The buffer is the room's latest messages without gaps, so it answers any page it can fill
+                if (older.size() == size || room.complete) {
+                    memoryReads.increment();
+                    return toPage(older, size);
+                }
+            }
+        }
+
+        flush();
+        PageRequest pageRequest = PageRequest.of(0, size, NEWEST_FIRST);
+        List<Message> older = cursor == null
+                ? messageRepository.findBySessionId(sessionId, pageRequest)
+                : messageRepository.findBySessionIdBefore(sessionId, cursor.getTimestamp(),
+                        cursor.getObjectId(), pageRequest);
+        databaseReads.increment();
+        return toPage(older, size);
+    }
+
+    public void deleteSession(String sessionId) {
+        synchronized (pending) {
+            pending.removeIf(message -> sessionId.equals(message.getSessionId()));
+        }
+        rooms.remove(sessionId);
+        messageRepository.deleteBySessionId(sessionId);
+    }
+
+    @Scheduled(fixedDelayString = "${codebuddy.chat.history.flush-interval-ms:1000}")
+    @PreDestroy
+    public void flush() {
+        flushLock.lock();
+        try {
+            flushPending();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushPending() {
+        List<Message> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        try {
+            // Unordered, and messages already stored by an earlier attempt (same id) count as written
+            List<Message> failed = messageRepository.insertNew(batch);
+            batchSize.record(batch.size() - failed.size());
+            if (!failed.isEmpty()) {
+                log.warn("Failed to insert {} of {} chat messages, will retry", failed.size(), batch.size());
+                requeue(failed);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to insert {} chat messages, will retry", batch.size(), e);
+            requeue(batch);
+        }
+    }
+
+    private void requeue(List<Message> failed) {
+        int overflow;
+        synchronized (pending) {
+            pending.addAll(0, failed);
+            overflow = pending.size() - maxPending;
+            if (overflow > 0) {
+                pending.subList(0, overflow).clear();
+            }
+        }
+        if (overflow > 0) {
+            dropped.increment(overflow);
+            log.error("Chat history retry queue is full, dropped the {} oldest messages", overflow);
+        }
+    }
+
+    /**
+     * Drops the recent history of rooms nobody has read or written for the
+     * retention period; it is reloaded from MongoDB on next use.
+     */
+    @Scheduled(fixedDelayString = "${codebuddy.chat.history.retention-ms:600000}")
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - retentionMs;
+        rooms.entrySet().removeIf(entry -> {
+            synchronized (entry.getValue()) {
+                return entry.getValue().touchedMillis < cutoff;
+            }
+        });
+    }
+
+    private Room room(String sessionId) {
+        Room room = rooms.get(sessionId);
+        if (room != null) {
+            return room;
+        }
+        // Pending messages are written first so the seed query sees them
+        flush();
+        List<Message> latest = messageRepository.findBySessionId(sessionId, PageRequest.of(0, recentSize, NEWEST_FIRST));
+        databaseReads.increment();
+        Room loaded = new Room();
+        for (int i = latest.size() - 1; i >= 0; i--) {
+            loaded.recent.addLast(latest.get(i));
+        }
+        loaded.complete = latest.size() < recentSize;
+        Room existing = rooms.putIfAbsent(sessionId, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    private static MessagePage toPage(List<Message> newestFirst, int size) {
+        List<Message> messages = new ArrayList<>(newestFirst);
+        Collections.reverse(messages);
+        // The cursor is the timestamp and id of the oldest message already seen
+        String nextCursor = messages.size() == size
+                ? new PageCursor(messages.get(0).getTimestamp(), messages.get(0).getId()).toString()
+                : null;
+        return new MessagePage(messages, nextCursor);
+    }
+
+    private static boolean isBefore(Message message, PageCursor cursor) {
+        int byTime = message.getTimestamp().compareTo(cursor.getTimestamp());
+        return byTime < 0 || byTime == 0 && message.getId().compareTo(cursor.getId()) < 0;
+    }
+
+    private class Room {
+        private final ArrayDeque<Message> recent = new ArrayDeque<>();
+        // True while the buffer holds every message the room has
+        private boolean complete;
+        private long touchedMillis = System.currentTimeMillis();
+
+        private void add(Message message) {
+            // Messages relayed from other nodes can arrive slightly out of order
+            List<Message> newer = new ArrayList<>();
+            while (!recent.isEmpty() && ORDER.compare(recent.peekLast(), message) > 0) {
+                newer.add(recent.pollLast());
+            }
+            recent.addLast(message);
+            for (int i = newer.size() - 1; i >= 0; i--) {
+                recent.addLast(newer.get(i));
+            }
+            while (recent.size() > recentSize) {
+                recent.pollFirst();
+                complete = false;
+            }
+            touchedMillis = System.currentTimeMillis();
+        }
+    }
+}
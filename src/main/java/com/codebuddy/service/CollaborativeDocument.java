@@ -0,0 +1,110 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.TextOperation;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Server-side copy of one file in a live session. Incoming operations are
+ * transformed against every operation applied since the client's base
+ * revision, so concurrent edits converge on the same text.
+ */
+public class CollaborativeDocument {
+
+    private final int maxHistory;
+    private final List<TextOperation> history = new ArrayList<>();
+    private long historyStart;
+    private long revision;
+    private long snapshotRevision;
+    private String content;
+    private String contentHash;
+    private long contentHashRevision = -1;
+
+    public CollaborativeDocument(String content, long revision, long snapshotRevision, int maxHistory) {
+        this.content = content != null ? content : "";
+        this.revision = revision;
+        this.historyStart = revision;
+        this.snapshotRevision = snapshotRevision;
+        this.maxHistory = maxHistory;
+    }
+
+    /**
+     * Applies an operation that was created against {@code baseRevision} and
+     * returns it transformed against the current revision.
+     */
+    public synchronized TextOperation apply(long baseRevision, TextOperation operation) {
+        if (baseRevision < historyStart || baseRevision > revision) {
+            throw new RevisionOutOfRangeException(baseRevision, revision);
+        }
+        int from = (int) (baseRevision - historyStart);
+        for (int i = from; i < history.size(); i++) {
+            operation = TextOperation.transform(operation, history.get(i))[0];
+        }
+        content = operation.apply(content);
+        history.add(operation);
+        revision++;
+
+        if (history.size() > maxHistory * 2) {
+            int trimmed = history.size() - maxHistory;
+            history.subList(0, trimmed).clear();
+            historyStart += trimmed;
+        }
+        return operation;
+    }
+
+    /**
+     * Replaces the whole text, recording it as a regular operation so that
+     * clients working on older revisions can still be transformed.
+     */
+    public synchronized TextOperation replace(String newContent) {
+        return apply(revision, TextOperation.replace(content, newContent != null ? newContent : ""));
+    }
+
+    public synchronized String getContent() { return content; }
+
+    public synchronized long getRevision() { return revision; }
+
+    /**
+     * SHA-256 of the current text, computed at most once per revision.
+     */
+    public synchronized String getContentHash() {
+        if (contentHashRevision != revision) {
+            contentHash = hash(content);
+            contentHashRevision = revision;
+        }
+        return contentHash;
+    }
+
+    public static String hash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Revision of the last snapshot persisted for this file; operations after
+     * it only exist in the edit log.
+     */
+    public synchronized long getSnapshotRevision() { return snapshotRevision; }
+
+    public synchronized void markSnapshot(long snapshotRevision) {
+        this.snapshotRevision = Math.max(this.snapshotRevision, snapshotRevision);
+    }
+
+    /**
+     * Thrown when a client's base revision has already been trimmed from the history.
+     */
+    public static class RevisionOutOfRangeException extends RuntimeException {
+        public RevisionOutOfRangeException(long baseRevision, long currentRevision) {
+            super("Revision " + baseRevision + " cannot be applied at revision " + currentRevision);
+        }
+    }
+}
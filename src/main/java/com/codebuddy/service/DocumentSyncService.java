@@ -0,0 +1,248 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.CodeSession;
+import com.codebuddy.model.EditLogEntry;
+import com.codebuddy.model.TextOperation;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Service holding the live, operation-based state of every open file.
+ * Applied operations are appended to the edit log; full file snapshots are
+ * only written when a room is compacted, after which the log is truncated.
+ */
+@Service
+public class DocumentSyncService {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentSyncService.class);
+
+    @Autowired
+    private SessionService sessionService;
+
+    @Autowired
+    private EditLogService editLogService;
+
+    @Autowired
+    private RoomExecutor roomExecutor;
+
+    @Value("${codebuddy.sync.history-size:500}")
+    private int historySize;
+
+    @Value("${codebuddy.editlog.compaction-threshold:500}")
+    private long compactionThreshold;
+
+    @Value("${codebuddy.sync.idle-release-ms:600000}")
+    private long idleReleaseMs;
+
+    // Map of sessionId -> (filename -> live document)
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, CollaborativeDocument>> documents = new ConcurrentHashMap<>();
+
+    // Sessions with a compaction already waiting in their room mailbox
+    private final Set<String> compactionQueued = ConcurrentHashMap.newKeySet();
+
+    // Map of sessionId -> when one of its documents was last used
+    private final ConcurrentHashMap<String, Long> lastUsedMillis = new ConcurrentHashMap<>();
+
+    public CollaborativeDocument getDocument(String sessionId, String filename) {
+        lastUsedMillis.put(sessionId, System.currentTimeMillis());
+        return documents.computeIfAbsent(sessionId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(filename, k -> loadDocument(sessionId, filename));
+    }
+
+    public AppliedOperation applyOperation(String sessionId, String filename, long baseRevision, TextOperation operation) {
+        CollaborativeDocument document = getDocument(sessionId, filename);
+        TextOperation transformed;
+        long revision;
+        String content;
+        synchronized (document) {
+            transformed = document.apply(baseRevision, operation);
+            revision = document.getRevision();
+            content = document.getContent();
+        }
+        recordOperation(sessionId, filename, document, transformed, revision, content);
+        return new AppliedOperation(transformed, revision);
+    }
+
+    public AppliedOperation replaceContent(String sessionId, String filename, String content) {
+        CollaborativeDocument document = getDocument(sessionId, filename);
+        TextOperation operation;
+        long revision;
+        synchronized (document) {
+            operation = document.replace(content);
+            revision = document.getRevision();
+        }
+        recordOperation(sessionId, filename, document, operation, revision, content);
+        return new AppliedOperation(operation, revision);
+    }
+
+    public void removeDocument(String sessionId, String filename) {
+        ConcurrentHashMap<String, CollaborativeDocument> files = documents.get(sessionId);
+        if (files != null) {
+            files.remove(filename);
+        }
+    }
+
+    public void releaseSession(String sessionId) {
+        compactSession(sessionId);
+        documents.remove(sessionId);
+        lastUsedMillis.remove(sessionId);
+    }
+
+    /**
+     * Drops the live documents of a deleted session without writing them back.
+     */
+    public void discardSession(String sessionId) {
+        documents.remove(sessionId);
+        lastUsedMillis.remove(sessionId);
+        compactionQueued.remove(sessionId);
+    }
+
+    /**
+     * Releases rooms whose documents have not been used for the idle period,
+     * such as those only edited over REST, which no connection close releases.
+     * The check is repeated in the room's mailbox, after any pending edits.
+     */
+    @Scheduled(fixedDelayString = "${codebuddy.sync.idle-release-ms:600000}")
+    public void releaseIdle() {
+        long cutoff = System.currentTimeMillis() - idleReleaseMs;
+        lastUsedMillis.forEach((sessionId, lastUsed) -> {
+            if (lastUsed < cutoff) {
+                roomExecutor.execute(sessionId, () -> {
+                    Long current = lastUsedMillis.get(sessionId);
+                    if (current != null && current < cutoff) {
+                        releaseSession(sessionId);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Periodically snapshots every open room. Each compaction runs in the
+     * room's mailbox so it never interleaves with the room's edits.
+     */
+    @Scheduled(fixedDelayString = "${codebuddy.editlog.compaction-interval-ms:30000}")
+    public void compactAll() {
+        documents.keySet().forEach(this::scheduleCompaction);
+    }
+
+    @PreDestroy
+    public void compactOnShutdown() {
+        documents.keySet().forEach(this::compactSession);
+    }
+
+    /**
+     * Writes a snapshot of every file changed since its last snapshot and, once
+     * the snapshot is persisted, drops the log entries it covers.
+     */
+    public void compactSession(String sessionId) {
+        compactionQueued.remove(sessionId);
+        Map<String, CollaborativeDocument> files = documents.get(sessionId);
+        if (files == null) {
+            return;
+        }
+        Map<String, Long> snapshots = new HashMap<>();
+        files.forEach((filename, document) -> {
+            String content;
+            long revision;
+            synchronized (document) {
+                content = document.getContent();
+                revision = document.getRevision();
+            }
+            if (revision > document.getSnapshotRevision()) {
+                sessionService.updateSessionCode(sessionId, filename, content, revision);
+                snapshots.put(filename, revision);
+            }
+        });
+        if (snapshots.isEmpty() || !sessionService.flushSession(sessionId)) {
+            return;
+        }
+        snapshots.forEach((filename, revision) -> {
+            try {
+                editLogService.truncate(sessionId, filename, revision);
+                CollaborativeDocument document = files.get(filename);
+                if (document != null) {
+                    document.markSnapshot(revision);
+                }
+            } catch (RuntimeException e) {
+                // Entries at or below the snapshot revision are skipped on replay, so retry next time
+                log.warn("Failed to truncate edit log of {}/{}", sessionId, filename, e);
+            }
+        });
+    }
+
+    private void recordOperation(String sessionId, String filename, CollaborativeDocument document,
+                                 TextOperation operation, long revision, String content) {
+        editLogService.append(sessionId, filename, revision, operation);
+        sessionService.applyLiveEdit(sessionId, filename, content, revision);
+        if (revision - document.getSnapshotRevision() >= compactionThreshold) {
+            scheduleCompaction(sessionId);
+        }
+    }
+
+    private void scheduleCompaction(String sessionId) {
+        if (compactionQueued.add(sessionId)) {
+            roomExecutor.execute(sessionId, () -> compactSession(sessionId));
+        }
+    }
+
+    /**
+     * Rebuilds a file from its last snapshot plus the logged operations after it.
+     */
+    private CollaborativeDocument loadDocument(String sessionId, String filename) {
+        Optional<CodeSession> session = sessionService.getSession(sessionId);
+        String content = session.map(CodeSession::getFiles)
+                .map(files -> files.get(filename))
+                .orElse("");
+        long snapshotRevision = session.map(CodeSession::getFileRevisions)
+                .map(revisions -> revisions.get(filename))
+                .orElse(0L);
+
+        long revision = snapshotRevision;
+        for (EditLogEntry entry : editLogService.readTail(sessionId, filename, snapshotRevision)) {
+            if (entry.getRevision() != revision + 1) {
+                log.warn("Edit log of {}/{} has a gap after revision {}", sessionId, filename, revision);
+                break;
+            }
+            try {
+                content = TextOperation.fromComponents(entry.getOps()).apply(content);
+            } catch (IllegalArgumentException e) {
+                log.warn("Stopping edit log replay of {}/{} at revision {}", sessionId, filename, revision, e);
+                break;
+            }
+            revision = entry.getRevision();
+        }
+        if (revision > snapshotRevision) {
+            sessionService.applyLiveEdit(sessionId, filename, content, revision);
+        }
+        return new CollaborativeDocument(content, revision, snapshotRevision, historySize);
+    }
+
+    /**
+     * Result of applying an operation: the operation as it must be applied by
+     * other clients and the document revision it produced.
+     */
+    public static class AppliedOperation {
+        private final TextOperation operation;
+        private final long revision;
+
+        public AppliedOperation(TextOperation operation, long revision) {
+            this.operation = operation;
+            this.revision = revision;
+        }
+
+        public TextOperation getOperation() { return operation; }
+        public long getRevision() { return revision; }
+    }
+}
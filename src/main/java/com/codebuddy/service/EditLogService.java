@@ -0,0 +1,134 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.EditLogEntry;
+import com.codebuddy.model.TextOperation;
+import com.codebuddy.repository.EditLogRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only log of applied edit operations. Appends are batched into one
+ * insert per flush; the log is truncated once a snapshot of the file has
+ * been written to the session document. Entries that could not be written
+ * are retried up to a bound, past which the oldest are dropped; the next
+ * snapshot of their file makes up for them.
+ */
+@Service
+public class EditLogService {
+
+    private static final Logger log = LoggerFactory.getLogger(EditLogService.class);
+
+    @Autowired
+    private EditLogRepository editLogRepository;
+
+    private final int maxPending;
+    private final List<EditLogEntry> pending = new ArrayList<>();
+    // Serializes inserts; a lock so a virtual thread blocked on an insert does not pin its carrier
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Counter appended;
+    private final Counter dropped;
+    private final DistributionSummary batchSize;
+
+    public EditLogService(MeterRegistry meterRegistry,
+                          @Value("${codebuddy.editlog.max-pending:100000}") int maxPending) {
+        this.maxPending = maxPending;
+        this.appended = meterRegistry.counter("codebuddy.editlog.appended");
+        this.dropped = meterRegistry.counter("codebuddy.editlog.dropped");
+        this.batchSize = DistributionSummary.builder("codebuddy.editlog.flush.batch.size")
+                .description("Log entries inserted per flush")
+                .register(meterRegistry);
+    }
+
+    public void append(String sessionId, String filename, long revision, TextOperation operation) {
+        EditLogEntry entry = new EditLogEntry(sessionId, filename, revision, new ArrayList<>(operation.getComponents()));
+        synchronized (pending) {
+            pending.add(entry);
+        }
+        appended.increment();
+    }
+
+    @Scheduled(fixedDelayString = "${codebuddy.editlog.flush-interval-ms:200}")
+    @PreDestroy
+    public void flush() {
+        flushLock.lock();
+        try {
+            flushPending();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushPending() {
+        List<EditLogEntry> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        try {
+            // Unordered, and entries already logged by an earlier attempt count as written
+            List<EditLogEntry> failed = editLogRepository.insertNew(batch);
+            batchSize.record(batch.size() - failed.size());
+            if (!failed.isEmpty()) {
+                log.warn("Failed to append {} of {} edit log entries, will retry", failed.size(), batch.size());
+                requeue(failed);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to append {} edit log entries, will retry", batch.size(), e);
+            requeue(batch);
+        }
+    }
+
+    private void requeue(List<EditLogEntry> failed) {
+        int overflow;
+        synchronized (pending) {
+            pending.addAll(0, failed);
+            overflow = pending.size() - maxPending;
+            if (overflow > 0) {
+                pending.subList(0, overflow).clear();
+            }
+        }
+        if (overflow > 0) {
+            dropped.increment(overflow);
+            log.error("Edit log retry queue is full, dropped the {} oldest entries", overflow);
+        }
+    }
+
+    /**
+     * Returns the logged operations of a file newer than the given revision, oldest first.
+     */
+    public List<EditLogEntry> readTail(String sessionId, String filename, long afterRevision) {
+        flush();
+        return editLogRepository.findBySessionIdAndFilenameAndRevisionGreaterThanOrderByRevisionAsc(
+                sessionId, filename, afterRevision);
+    }
+
+    /**
+     * Drops log entries already contained in a persisted snapshot.
+     */
+    public void truncate(String sessionId, String filename, long uptoRevision) {
+        flush();
+        editLogRepository.deleteBySessionIdAndFilenameAndRevisionLessThanEqual(sessionId, filename, uptoRevision);
+    }
+
+    public void deleteSession(String sessionId) {
+        synchronized (pending) {
+            pending.removeIf(entry -> sessionId.equals(entry.getSessionId()));
+        }
+        editLogRepository.deleteBySessionId(sessionId);
+    }
+}
@@ -0,0 +1,149 @@
+package com.codebuddy.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs work for a room one task at a time, in submission order, on a shared
+ * worker pool. Each room has a mailbox that is scheduled onto the pool while
+ * it has work, so a room never runs on two threads at once while unrelated
+ * rooms still proceed in parallel.
+ */
+@Service
+public class RoomExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(RoomExecutor.class);
+
+    // Tasks a mailbox runs before yielding its worker to other rooms
+    private static final int THROUGHPUT = 64;
+
+    // Room tasks block on MongoDB (document loads, edit-log reads, compaction), so the default
+    // pool is sized for threads that mostly wait rather than one per CPU
+    private static final int BLOCKING_THREADS_PER_CPU = 8;
+
+    private final ExecutorService workers;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+    private final DistributionSummary mailboxDepth;
+
+    public RoomExecutor(MeterRegistry meterRegistry,
+                        @Value("${codebuddy.rooms.worker-threads:0}") int workerThreads,
+                        @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        if (virtualThreads) {
+            // A room task that blocks on Mongo parks its virtual thread instead of holding a worker
+            this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("room-worker-", 1).factory());
+        } else {
+            int threads = workerThreads > 0
+                    ? workerThreads
+                    : Runtime.getRuntime().availableProcessors() * BLOCKING_THREADS_PER_CPU;
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "room-worker-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.mailboxDepth = DistributionSummary.builder("codebuddy.rooms.mailbox.depth")
+                .description("Mailbox depth seen by each newly submitted room task")
+                .register(meterRegistry);
+        meterRegistry.gauge("codebuddy.rooms.mailbox.queued", queuedTasks);
+        meterRegistry.gauge("codebuddy.rooms.mailboxes", mailboxes, Map::size);
+    }
+
+    public void execute(String roomId, Runnable task) {
+        Mailbox mailbox = mailboxes.compute(roomId, (id, existing) -> {
+            Mailbox target = existing != null ? existing : new Mailbox(id);
+            target.enqueue(task);
+            return target;
+        });
+        mailbox.scheduleIfNeeded();
+    }
+
+    public <T> CompletableFuture<T> submit(String roomId, Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(roomId, () -> {
+            try {
+                result.complete(task.get());
+            } catch (Throwable e) {
+                // Errors too, or a caller joining the future would wait forever
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private class Mailbox implements Runnable {
+        private final String roomId;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private Mailbox(String roomId) {
+            this.roomId = roomId;
+        }
+
+        private void enqueue(Runnable task) {
+            tasks.add(task);
+            mailboxDepth.record(depth.incrementAndGet());
+            queuedTasks.incrementAndGet();
+        }
+
+        private void scheduleIfNeeded() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        private boolean isIdle() {
+            return !scheduled.get() && tasks.isEmpty();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < THROUGHPUT; i++) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    depth.decrementAndGet();
+                    queuedTasks.decrementAndGet();
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        // The mailbox keeps going; one failed task must not strand the room's later ones
+                        log.error("Room task failed", e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                if (tasks.isEmpty()) {
+                    // Enqueueing happens inside compute(), so an idle mailbox can be dropped without losing work
+                    mailboxes.computeIfPresent(roomId, (id, mailbox) -> mailbox == this && isIdle() ? null : mailbox);
+                }
+                // Pick up tasks that arrived while running, or the remainder after yielding
+                scheduleIfNeeded();
+            }
+        }
+    }
+}
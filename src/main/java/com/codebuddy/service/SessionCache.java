@@ -0,0 +1,183 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.CodeSession;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded in-memory cache of live {@link CodeSession} documents. The bound is
+ * the total size of cached file contents; sessions with open WebSocket
+ * connections are pinned and only become evictable once idle.
+ */
+@Service
+public class SessionCache {
+
+    @Value("${codebuddy.cache.max-content-bytes:67108864}")
+    private long maxContentBytes;
+
+    @Value("${codebuddy.cache.idle-eviction-ms:60000}")
+    private long idleEvictionMs;
+
+    // Access-ordered so iteration starts at the least recently used session
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Connection counts are kept apart from entries so a session can be pinned before it is loaded
+    private final Map<String, Integer> connections = new ConcurrentHashMap<>();
+    private long contentBytes;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public SessionCache(MeterRegistry meterRegistry) {
+        this.hits = meterRegistry.counter("codebuddy.session.cache.hits");
+        this.misses = meterRegistry.counter("codebuddy.session.cache.misses");
+        this.evictions = meterRegistry.counter("codebuddy.session.cache.evictions");
+        meterRegistry.gauge("codebuddy.session.cache.content.bytes", this, SessionCache::getContentBytes);
+        meterRegistry.gauge("codebuddy.session.cache.size", this, SessionCache::size);
+    }
+
+    public synchronized CodeSession get(String sessionId) {
+        Entry entry = entries.get(sessionId);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.touch();
+        return entry.session;
+    }
+
+    /**
+     * Looks up a cached session without counting towards the hit statistics
+     * or keeping it from going idle.
+     */
+    public synchronized CodeSession peek(String sessionId) {
+        Entry entry = entries.get(sessionId);
+        return entry != null ? entry.session : null;
+    }
+
+    /**
+     * Caches a session loaded from the database. If another thread cached the
+     * same session in the meantime, that instance wins and is returned.
+     */
+    public synchronized CodeSession put(CodeSession session) {
+        Entry existing = entries.get(session.getId());
+        if (existing != null) {
+            existing.touch();
+            return existing.session;
+        }
+        // Cached instances are shared across threads, so make their collections safe for concurrent use
+        session.setFiles(session.getFiles() != null ? new ConcurrentHashMap<>(session.getFiles()) : new ConcurrentHashMap<>());
+        session.setFileRevisions(session.getFileRevisions() != null
+                ? new ConcurrentHashMap<>(session.getFileRevisions()) : new ConcurrentHashMap<>());
+        Set<String> collaborators = ConcurrentHashMap.newKeySet();
+        if (session.getCollaborators() != null) {
+            collaborators.addAll(session.getCollaborators());
+        }
+        session.setCollaborators(collaborators);
+
+        Entry entry = new Entry(session);
+        entries.put(session.getId(), entry);
+        contentBytes += entry.bytes;
+        evictOverCapacity();
+        return session;
+    }
+
+    /**
+     * Updates one file of a cached session and keeps the size accounting in step.
+     */
+    public synchronized void putFile(String sessionId, String filename, String content) {
+        Entry entry = entries.get(sessionId);
+        if (entry == null) {
+            return;
+        }
+        entry.touch();
+        String previous = entry.session.getFiles().put(filename, content);
+        long delta = sizeOf(content) - sizeOf(previous);
+        entry.bytes += delta;
+        contentBytes += delta;
+        evictOverCapacity();
+    }
+
+    public synchronized void invalidate(String sessionId) {
+        Entry entry = entries.remove(sessionId);
+        if (entry != null) {
+            contentBytes -= entry.bytes;
+        }
+    }
+
+    public synchronized void pin(String sessionId) {
+        connections.merge(sessionId, 1, Integer::sum);
+    }
+
+    public synchronized void unpin(String sessionId) {
+        Integer remaining = connections.computeIfPresent(sessionId, (id, count) -> count > 1 ? count - 1 : null);
+        if (remaining == null) {
+            Entry entry = entries.get(sessionId);
+            if (entry != null) {
+                entry.touch();
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${codebuddy.cache.idle-sweep-ms:10000}")
+    public synchronized void evictIdle() {
+        long cutoff = System.nanoTime() - Duration.ofMillis(idleEvictionMs).toNanos();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> next = iterator.next();
+            if (!connections.containsKey(next.getKey()) && next.getValue().idleSinceNanos - cutoff <= 0) {
+                iterator.remove();
+                contentBytes -= next.getValue().bytes;
+                evictions.increment();
+            }
+        }
+    }
+
+    public synchronized long getContentBytes() { return contentBytes; }
+
+    public synchronized int size() { return entries.size(); }
+
+    private void evictOverCapacity() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (contentBytes > maxContentBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> next = iterator.next();
+            if (!connections.containsKey(next.getKey())) {
+                iterator.remove();
+                contentBytes -= next.getValue().bytes;
+                evictions.increment();
+            }
+        }
+    }
+
+    private static long sizeOf(String content) {
+        // Java strings hold UTF-16 code units
+        return content != null ? 2L * content.length() : 0;
+    }
+
+    private static class Entry {
+        private final CodeSession session;
+        private long bytes;
+        // Last access, or when the last connection left; an unpinned entry is idle since then
+        private long idleSinceNanos = System.nanoTime();
+
+        private Entry(CodeSession session) {
+            this.session = session;
+            this.bytes = session.getFiles().values().stream().mapToLong(SessionCache::sizeOf).sum();
+        }
+
+        private void touch() {
+            idleSinceNanos = System.nanoTime();
+        }
+    }
+}
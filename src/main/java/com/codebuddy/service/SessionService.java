@@ -1,13 +1,20 @@
 package com.codebuddy.service;
 
 import com.codebuddy.model.CodeSession;
+import com.codebuddy.model.PageCursor;
+import com.codebuddy.model.SessionPage;
+import com.codebuddy.model.SessionSummary;
 import com.codebuddy.repository.CodeSessionRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * Service for managing coding sessions
@@ -18,59 +25,178 @@ public class SessionService {
     @Autowired
     private CodeSessionRepository sessionRepository;
 
+    @Autowired
+    private SessionWriteBehindService writeBehindService;
+
+    @Autowired
+    private SessionCache sessionCache;
+
+    @Autowired
+    private EditLogService editLogService;
+
+    @Autowired
+    private ChatHistoryService chatHistoryService;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Value("${codebuddy.sessions.max-page-size:100}")
+    private int maxPageSize;
+
+    private static final Sort NEWEST_FIRST = Sort.by(Sort.Direction.DESC, "updatedAt", "id");
+
     public CodeSession createSession(String name, String ownerId, String language) {
         CodeSession session = new CodeSession(name, ownerId, language);
-        return sessionRepository.save(session);
+        return sessionCache.put(writeBehindService.save(session));
     }
 
     public Optional<CodeSession> getSession(String sessionId) {
-        return sessionRepository.findById(sessionId);
+        CodeSession cached = sessionCache.get(sessionId);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<CodeSession> session = sessionRepository.findById(sessionId);
+        session.ifPresent(loaded -> blobStore.hydrate(List.of(loaded)));
+        // Overlay snapshots that are still waiting in the write-behind buffer
+        session.ifPresent(writeBehindService::overlayPending);
+        return session.map(sessionCache::put);
     }
 
-    public List<CodeSession> getUserSessions(String userId) {
-        return sessionRepository.findByOwnerIdOrCollaboratorsContaining(userId, userId);
+    /**
+     * Returns a page of the sessions a user owns or collaborates on, older than
+     * the given cursor. Throws IllegalArgumentException for a malformed cursor.
+     */
+    public SessionPage getUserSessions(String userId, String before, int limit) {
+        PageRequest page = pageRequest(limit);
+        PageCursor cursor = before != null ? PageCursor.parse(before) : null;
+        List<SessionSummary> sessions = cursor == null
+                ? sessionRepository.findUserSessions(userId, page)
+                : sessionRepository.findUserSessionsBefore(userId, cursor.getTimestamp(), cursor.getObjectId(), page);
+        return toPage(sessions, page.getPageSize());
     }
 
-    public List<CodeSession> getActiveSessions() {
-        return sessionRepository.findByIsActiveTrue();
+    public SessionPage getActiveSessions(String before, int limit) {
+        PageRequest page = pageRequest(limit);
+        PageCursor cursor = before != null ? PageCursor.parse(before) : null;
+        List<SessionSummary> sessions = cursor == null
+                ? sessionRepository.findActiveSessions(page)
+                : sessionRepository.findActiveSessionsBefore(cursor.getTimestamp(), cursor.getObjectId(), page);
+        return toPage(sessions, page.getPageSize());
     }
 
-    public CodeSession updateSessionCode(String sessionId, String filename, String content) {
-        Optional<CodeSession> sessionOpt = sessionRepository.findById(sessionId);
-        if (sessionOpt.isPresent()) {
-            CodeSession session = sessionOpt.get();
-            session.getFiles().put(filename, content);
-            session.setUpdatedAt(LocalDateTime.now());
-            return sessionRepository.save(session);
-        }
-        return null;
+    /**
+     * Streams every session of a user from an open cursor; the caller must close the stream.
+     */
+    public Stream<SessionSummary> streamUserSessions(String userId) {
+        return sessionRepository.streamUserSessions(userId);
+    }
+
+    public Stream<SessionSummary> streamActiveSessions() {
+        return sessionRepository.streamActiveSessions();
+    }
+
+    /**
+     * Applies a live edit to the cached session only; the operation itself is
+     * persisted through the edit log.
+     */
+    public void applyLiveEdit(String sessionId, String filename, String content, long revision) {
+        getSession(sessionId).ifPresent(session -> putFile(session, filename, content, revision));
     }
 
+    /**
+     * Stores a snapshot of a file at the given edit log revision; it is
+     * persisted by the write-behind flush.
+     */
+    public void updateSessionCode(String sessionId, String filename, String content, long revision) {
+        String text = content != null ? content : "";
+        getSession(sessionId).ifPresent(session -> putFile(session, filename, text, revision));
+        writeBehindService.bufferFile(sessionId, filename, text, revision);
+    }
+
+    /**
+     * Writes buffered snapshots of a session now; returns false if the write failed.
+     */
+    public boolean flushSession(String sessionId) {
+        return writeBehindService.flushSession(sessionId);
+    }
+
+    /**
+     * Adds a collaborator; adding one that is already there leaves the
+     * collaborators as they are, but moves updatedAt and the version like
+     * any other write. Returns null if the session does not exist.
+     */
     public CodeSession addCollaborator(String sessionId, String userId) {
-        Optional<CodeSession> sessionOpt = sessionRepository.findById(sessionId);
-        if (sessionOpt.isPresent()) {
-            CodeSession session = sessionOpt.get();
-            if (!session.getCollaborators().contains(userId)) {
-                session.getCollaborators().add(userId);
-                session.setUpdatedAt(LocalDateTime.now());
-                return sessionRepository.save(session);
+        LocalDateTime now = LocalDateTime.now();
+        if (!sessionRepository.addCollaborator(sessionId, userId, now)) {
+            return null;
+        }
+        CodeSession cached = sessionCache.peek(sessionId);
+        if (cached != null) {
+            synchronized (cached) {
+                // Mirrors the stored update, which bumps the version either way
+                cached.getCollaborators().add(userId);
+                cached.setUpdatedAt(now);
+                cached.setSettingsVersion(cached.getSettingsVersion() + 1);
             }
         }
-        return null;
+        return getSession(sessionId).orElse(null);
     }
 
     public void deleteSession(String sessionId) {
+        writeBehindService.discard(sessionId);
+        sessionCache.invalidate(sessionId);
+        editLogService.deleteSession(sessionId);
+        chatHistoryService.deleteSession(sessionId);
         sessionRepository.deleteById(sessionId);
     }
 
     public CodeSession deactivateSession(String sessionId) {
-        Optional<CodeSession> sessionOpt = sessionRepository.findById(sessionId);
-        if (sessionOpt.isPresent()) {
-            CodeSession session = sessionOpt.get();
-            session.setActive(false);
-            session.setUpdatedAt(LocalDateTime.now());
-            return sessionRepository.save(session);
+        LocalDateTime now = LocalDateTime.now();
+        if (!sessionRepository.updateActive(sessionId, false, now)) {
+            return null;
+        }
+        CodeSession cached = sessionCache.peek(sessionId);
+        if (cached != null) {
+            synchronized (cached) {
+                if (cached.isActive()) {
+                    cached.setActive(false);
+                    cached.setUpdatedAt(now);
+                    cached.setSettingsVersion(cached.getSettingsVersion() + 1);
+                }
+            }
+        }
+        return getSession(sessionId).orElse(null);
+    }
+
+    /**
+     * Called when a WebSocket joins a session room; keeps the session cached while connected.
+     */
+    public void connectionOpened(String sessionId) {
+        sessionCache.pin(sessionId);
+    }
+
+    /**
+     * Called when a WebSocket leaves a session room; the session becomes idle-evictable once the room is empty.
+     */
+    public void connectionClosed(String sessionId) {
+        sessionCache.unpin(sessionId);
+    }
+
+    private PageRequest pageRequest(int limit) {
+        return PageRequest.of(0, Math.max(1, Math.min(limit, maxPageSize)), NEWEST_FIRST);
+    }
+
+    private static SessionPage toPage(List<SessionSummary> sessions, int size) {
+        SessionSummary last = sessions.size() == size ? sessions.get(sessions.size() - 1) : null;
+        return new SessionPage(sessions, last != null ? new PageCursor(last.getUpdatedAt(), last.getId()).toString() : null);
+    }
+
+    // Content and revision change together so a concurrent save never persists a mismatched pair;
+    // the new revision is what moves the session's version
+    private void putFile(CodeSession session, String filename, String content, long revision) {
+        synchronized (session) {
+            sessionCache.putFile(session.getId(), filename, content != null ? content : "");
+            session.getFileRevisions().put(filename, revision);
         }
-        return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,267 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.CodeSession;
+import com.codebuddy.repository.CodeSessionRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind buffer for session file snapshots. Snapshots are kept in
+ * memory and coalesced so that each dirty session is persisted once per
+ * flush, no matter how many files changed in between.
+ */
+@Service
+public class SessionWriteBehindService {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionWriteBehindService.class);
+
+    @Autowired
+    private CodeSessionRepository sessionRepository;
+
+    @Autowired
+    private SessionCache sessionCache;
+
+    @Autowired
+    private BlobStore blobStore;
+
+    @Value("${codebuddy.persistence.flush-interval-ms:500}")
+    private long flushIntervalMs;
+
+    @Value("${codebuddy.persistence.max-pending-chars:262144}")
+    private long maxPendingChars;
+
+    // Map of sessionId -> edits not yet written to MongoDB
+    private final ConcurrentHashMap<String, PendingSession> pending = new ConcurrentHashMap<>();
+    // A lock rather than a monitor, so a virtual thread waiting on a save does not pin its carrier
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final Timer flushLag;
+    private final DistributionSummary batchSize;
+
+    public SessionWriteBehindService(MeterRegistry meterRegistry) {
+        this.flushLag = Timer.builder("codebuddy.persistence.flush.lag")
+                .description("Time between the first buffered edit of a session and its write")
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("codebuddy.persistence.flush.batch.size")
+                .description("Number of files written per session flush")
+                .register(meterRegistry);
+        meterRegistry.gauge("codebuddy.persistence.pending.sessions", pending, Map::size);
+    }
+
+    public void bufferFile(String sessionId, String filename, String content, long revision) {
+        PendingSession entry = pending.compute(sessionId, (id, existing) -> {
+            PendingSession session = existing != null ? existing : new PendingSession();
+            session.put(filename, content, revision);
+            return session;
+        });
+        if (entry.pendingChars >= maxPendingChars) {
+            flushSession(sessionId);
+        }
+    }
+
+    /**
+     * Overlays the buffered, not yet persisted snapshots of a session on a copy loaded from the database.
+     */
+    public void overlayPending(CodeSession session) {
+        pending.computeIfPresent(session.getId(), (id, batch) -> {
+            session.getFiles().putAll(batch.files);
+            session.getFileRevisions().putAll(batch.revisions);
+            return batch;
+        });
+    }
+
+    public void discard(String sessionId) {
+        pending.remove(sessionId);
+    }
+
+    @Scheduled(fixedDelayString = "${codebuddy.persistence.flush-interval-ms:500}")
+    public void flushDue() {
+        long cutoff = System.nanoTime() - Duration.ofMillis(flushIntervalMs).toNanos();
+        pending.forEach((sessionId, session) -> {
+            if (session.firstDirtyNanos - cutoff <= 0) {
+                flushSession(sessionId);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        pending.keySet().forEach(this::flushSession);
+    }
+
+    /**
+     * Writes every buffered edit of a session in one save. Flushes are
+     * serialized so an older batch can never overwrite a newer one.
+     * Returns false if the write failed and the edits were put back.
+     */
+    public boolean flushSession(String sessionId) {
+        flushLock.lock();
+        try {
+            return flushPending(sessionId);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private boolean flushPending(String sessionId) {
+        PendingSession batch = pending.remove(sessionId);
+        if (batch == null) {
+            return true;
+        }
+        try {
+            // A cached session already holds the buffered snapshots (or newer live edits)
+            CodeSession cached = sessionCache.peek(sessionId);
+            if (cached != null) {
+                saveFiles(cached, batch.files.keySet());
+            } else {
+                // Only the batch's files change, so they are set in place without reading the session
+                Map<String, String> hashes = blobStore.store(batch.files);
+                sessionRepository.updateFiles(sessionId, hashes, batch.revisions, LocalDateTime.now());
+            }
+            batchSize.record(batch.files.size());
+            flushLag.record(System.nanoTime() - batch.firstDirtyNanos, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("Failed to flush session {}, will retry", sessionId, e);
+            // Put the batch back without overriding edits that arrived meanwhile
+            pending.merge(sessionId, batch, (newer, older) -> {
+                older.files.forEach(newer.files::putIfAbsent);
+                older.revisions.forEach(newer.revisions::putIfAbsent);
+                newer.firstDirtyNanos = older.firstDirtyNanos;
+                newer.recount();
+                return newer;
+            });
+            return false;
+        }
+    }
+
+    /**
+     * Saves a session right away: blobs of changed files first, then the
+     * session with its manifest. The session lock is only held to take a
+     * copy of the files, hashes and revisions; live edits update files and
+     * revisions together under it, so the saved pair always matches. The
+     * database round-trips run outside it, so editors never wait on them.
+     */
+    public CodeSession save(CodeSession session) {
+        CodeSession copy;
+        Map<String, String> changed;
+        boolean legacy;
+        synchronized (session) {
+            legacy = session.getLegacyFiles() != null;
+            blobStore.adoptLegacyFiles(session);
+            changed = blobStore.changedFiles(session, session.getFiles().keySet());
+            copy = persistentCopy(session);
+        }
+        Map<String, String> hashes = blobStore.store(changed);
+        copy.getFileHashes().putAll(hashes);
+        CodeSession saved = sessionRepository.save(copy);
+        synchronized (session) {
+            session.setId(saved.getId());
+            blobStore.recordHashes(session, changed, hashes);
+            if (legacy) {
+                // The embedded content is now stored as blobs
+                session.setLegacyFiles(null);
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Writes the current content and revision of some files of a cached
+     * session as targeted updates of their manifest entries. Like save, it
+     * only holds the session lock while copying.
+     */
+    private void saveFiles(CodeSession session, Collection<String> filenames) {
+        LocalDateTime now = LocalDateTime.now();
+        Map<String, String> changed;
+        Map<String, String> hashes = new HashMap<>();
+        Map<String, Long> revisions = new HashMap<>();
+        synchronized (session) {
+            session.setUpdatedAt(now);
+            if (session.getLegacyFiles() != null) {
+                // Moving embedded content to blobs rewrites the whole document once
+                changed = null;
+            } else {
+                changed = blobStore.changedFiles(session, filenames);
+                // Hashes of changed files are known once their blobs are stored
+                for (String filename : filenames) {
+                    Long revision = session.getFileRevisions().get(filename);
+                    String hash = session.getFileHashes().get(filename);
+                    if (revision != null && (changed.containsKey(filename) || hash != null)) {
+                        revisions.put(filename, revision);
+                        if (!changed.containsKey(filename)) {
+                            hashes.put(filename, hash);
+                        }
+                    }
+                }
+            }
+        }
+        if (changed == null) {
+            save(session);
+            return;
+        }
+        Map<String, String> stored = blobStore.store(changed);
+        synchronized (session) {
+            blobStore.recordHashes(session, changed, stored);
+        }
+        stored.forEach((filename, hash) -> {
+            if (revisions.containsKey(filename)) {
+                hashes.put(filename, hash);
+            }
+        });
+        sessionRepository.updateFiles(session.getId(), hashes, revisions, now);
+    }
+
+    // A detached copy of what is persisted, so it can be written without holding the session lock
+    private static CodeSession persistentCopy(CodeSession session) {
+        CodeSession copy = new CodeSession();
+        copy.setId(session.getId());
+        copy.setName(session.getName());
+        copy.setOwnerId(session.getOwnerId());
+        copy.setCollaborators(session.getCollaborators() != null
+                ? new LinkedHashSet<>(session.getCollaborators()) : new LinkedHashSet<>());
+        copy.setLanguage(session.getLanguage());
+        copy.setCreatedAt(session.getCreatedAt());
+        copy.setUpdatedAt(session.getUpdatedAt());
+        copy.setActive(session.isActive());
+        copy.setSettingsVersion(session.getSettingsVersion());
+        copy.setFileRevisions(new HashMap<>(session.getFileRevisions()));
+        copy.setFileHashes(new HashMap<>(session.getFileHashes()));
+        return copy;
+    }
+
+    private static class PendingSession {
+        private final Map<String, String> files = new HashMap<>();
+        private final Map<String, Long> revisions = new HashMap<>();
+        private volatile long firstDirtyNanos = System.nanoTime();
+        private long pendingChars;
+
+        private void put(String filename, String content, long revision) {
+            String previous = files.put(filename, content);
+            revisions.put(filename, revision);
+            pendingChars += content.length() - (previous != null ? previous.length() : 0);
+        }
+
+        private void recount() {
+            pendingChars = files.values().stream().mapToLong(String::length).sum();
+        }
+    }
+}
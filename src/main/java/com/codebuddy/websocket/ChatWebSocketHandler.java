@@ -1,12 +1,21 @@
 package com.codebuddy.websocket;
 
+import com.codebuddy.messaging.RoomMessageBus;
 import com.codebuddy.model.Message;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.codebuddy.model.MessagePage;
+import com.codebuddy.protocol.ClientMessage;
+import com.codebuddy.protocol.ServerMessage;
+import com.codebuddy.protocol.WireFormat;
+import com.codebuddy.service.ChatHistoryService;
+import com.codebuddy.service.RoomExecutor;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
 
-import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -14,18 +23,68 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * WebSocket handler for real-time chat
  */
 @Component
-public class ChatWebSocketHandler implements WebSocketHandler {
+public class ChatWebSocketHandler implements WebSocketHandler, SubProtocolCapable {
+
+    @Autowired
+    private OutboundMessageDispatcher outboundDispatcher;
+
+    @Autowired
+    private RoomMessageBus roomMessageBus;
+
+    @Autowired
+    private RoomExecutor roomExecutor;
+
+    @Autowired
+    private IngressRateLimiter rateLimiter;
+
+    @Autowired
+    private ChatHistoryService chatHistoryService;
+
+    @Value("${codebuddy.chat.history.join-size:50}")
+    private int joinHistorySize;
+
+    private static final String BUS_CHANNEL = "chat";
+    private static final String MAILBOX_PREFIX = "chat:";
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    
     // Map of sessionId -> Set of WebSocket sessions
     private final ConcurrentHashMap<String, CopyOnWriteArraySet<WebSocketSession>> chatConnections = new ConcurrentHashMap<>();
 
+    @PostConstruct
+    public void subscribeToRoomBus() {
+        // Broadcasts from other nodes go to every local peer; their sender is connected elsewhere
+        roomMessageBus.subscribe(BUS_CHANNEL, (sessionId, payload) ->
+                roomExecutor.execute(MAILBOX_PREFIX + sessionId, () -> {
+                    if (payload instanceof ServerMessage.ChatMessage chat) {
+                        chatHistoryService.remember(toMessage(sessionId, chat));
+                    }
+                    deliverLocally(sessionId, new OutboundFrame(payload), null, frameKindOf(payload));
+                }));
+    }
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         String sessionId = extractSessionId(session);
+        outboundDispatcher.register(session);
         if (sessionId != null) {
-            chatConnections.computeIfAbsent(sessionId, k -> new CopyOnWriteArraySet<>()).add(session);
+            // Joined in the mailbox, so the history ends exactly where the live messages begin
+            roomExecutor.execute(MAILBOX_PREFIX + sessionId, () -> join(session, sessionId));
+        }
+    }
+
+    private void join(WebSocketSession session, String sessionId) {
+        if (!session.isOpen()) {
+            return;
+        }
+        chatConnections.computeIfAbsent(sessionId, k -> new CopyOnWriteArraySet<>()).add(session);
+        try {
+            MessagePage page = chatHistoryService.join(sessionId, joinHistorySize);
+            List<ServerMessage.ChatMessage> messages = page.getMessages().stream()
+                    .map(ChatWebSocketHandler::toChatMessage)
+                    .toList();
+            outboundDispatcher.send(session, new ServerMessage.ChatHistory(messages, page.getNextCursor()),
+                    OutboundMessageDispatcher.FrameKind.CHAT);
+        } catch (Exception e) {
+            sendErrorMessage(session, "Error loading chat history: " + e.getMessage());
         }
     }
 
@@ -34,78 +93,93 @@ public class ChatWebSocketHandler implements WebSocketHandler {
         String sessionId = extractSessionId(session);
         if (sessionId == null) return;
 
+        ClientMessage clientMessage;
+        try {
+            clientMessage = FrameCodec.read(message);
+        } catch (Exception e) {
+            sendErrorMessage(session, "Error processing chat message: " + e.getMessage());
+            return;
+        }
+        // Over-limit frames are answered and dropped before any work is queued for them
+        ServerMessage.Throttled throttled = rateLimiter.admit(session, clientMessage);
+        if (throttled != null) {
+            outboundDispatcher.send(session, throttled, OutboundMessageDispatcher.FrameKind.CONTROL);
+            return;
+        }
+        // Chat frames of one room are handled in arrival order, apart from the room's code mailbox
+        roomExecutor.execute(MAILBOX_PREFIX + sessionId, () -> dispatchMessage(sessionId, clientMessage, session));
+    }
+
+    private void dispatchMessage(String sessionId, ClientMessage message, WebSocketSession session) {
         try {
-            JsonNode messageNode = objectMapper.readTree(message.getPayload().toString());
-            String type = messageNode.get("type").asText();
-            
-            if ("chat_message".equals(type)) {
-                handleChatMessage(sessionId, messageNode, session);
-            } else if ("user_typing".equals(type)) {
-                handleUserTyping(sessionId, messageNode, session);
+            if (message instanceof ClientMessage.ChatMessage chat) {
+                handleChatMessage(sessionId, chat, session);
+            } else if (message instanceof ClientMessage.UserTyping typing) {
+                handleUserTyping(sessionId, typing, session);
             }
         } catch (Exception e) {
             sendErrorMessage(session, "Error processing chat message: " + e.getMessage());
         }
     }
 
-    private void handleChatMessage(String sessionId, JsonNode messageNode, WebSocketSession senderSession) throws IOException {
-        String userId = messageNode.get("userId").asText();
-        String username = messageNode.get("username").asText();
-        String content = messageNode.get("content").asText();
-        
-        Message chatMessage = new Message(sessionId, userId, username, content, Message.MessageType.CHAT);
-        
-        String broadcastMessage = objectMapper.writeValueAsString(Map.of(
-            "type", "chat_message",
-            "userId", userId,
-            "username", username,
-            "content", content,
-            "timestamp", chatMessage.getTimestamp().toString()
-        ));
+    private void handleChatMessage(String sessionId, ClientMessage.ChatMessage message, WebSocketSession senderSession) {
+        Message chatMessage = chatHistoryService.record(sessionId, message.userId(), message.username(),
+                message.content());
+        ServerMessage.ChatMessage broadcastMessage = toChatMessage(chatMessage);
         
-        broadcastToSession(sessionId, broadcastMessage, null); // Include sender
+        broadcastToSession(sessionId, broadcastMessage, null, OutboundMessageDispatcher.FrameKind.CHAT); // Include sender
     }
 
-    private void handleUserTyping(String sessionId, JsonNode messageNode, WebSocketSession senderSession) throws IOException {
-        String userId = messageNode.get("userId").asText();
-        String username = messageNode.get("username").asText();
-        boolean isTyping = messageNode.get("isTyping").asBoolean();
+    private void handleUserTyping(String sessionId, ClientMessage.UserTyping message, WebSocketSession senderSession) {
+        ServerMessage.UserTyping broadcastMessage = new ServerMessage.UserTyping(
+            message.userId(),
+            message.username(),
+            message.isTyping()
+        );
         
-        String broadcastMessage = objectMapper.writeValueAsString(Map.of(
-            "type", "user_typing",
-            "userId", userId,
-            "username", username,
-            "isTyping", isTyping
-        ));
-        
-        broadcastToSession(sessionId, broadcastMessage, senderSession);
+        broadcastToSession(sessionId, broadcastMessage, senderSession, OutboundMessageDispatcher.FrameKind.PRESENCE);
+    }
+
+    private void broadcastToSession(String sessionId, ServerMessage payload, WebSocketSession excludeSession,
+                                    OutboundMessageDispatcher.FrameKind kind) {
+        deliverLocally(sessionId, new OutboundFrame(payload), excludeSession, kind);
+        roomMessageBus.publish(BUS_CHANNEL, sessionId, payload);
     }
 
-    private void broadcastToSession(String sessionId, String message, WebSocketSession excludeSession) {
+    private void deliverLocally(String sessionId, OutboundFrame frame, WebSocketSession excludeSession,
+                                OutboundMessageDispatcher.FrameKind kind) {
         CopyOnWriteArraySet<WebSocketSession> sessions = chatConnections.get(sessionId);
-        if (sessions != null) {
-            sessions.forEach(session -> {
-                if (session != excludeSession && session.isOpen()) {
-                    try {
-                        session.sendMessage(new TextMessage(message));
-                    } catch (IOException e) {
-                        sessions.remove(session);
-                    }
-                }
-            });
+        if (sessions == null) {
+            return;
         }
+        // Encoded lazily, once per wire format; every recipient shares the same frame
+        for (WebSocketSession session : sessions) {
+            if (session != excludeSession && session.isOpen()) {
+                outboundDispatcher.send(session, frame, kind);
+            }
+        }
+    }
+
+    private static OutboundMessageDispatcher.FrameKind frameKindOf(ServerMessage payload) {
+        return payload instanceof ServerMessage.UserTyping
+                ? OutboundMessageDispatcher.FrameKind.PRESENCE
+                : OutboundMessageDispatcher.FrameKind.CHAT;
+    }
+
+    private static ServerMessage.ChatMessage toChatMessage(Message message) {
+        return new ServerMessage.ChatMessage(message.getId(), message.getUserId(), message.getUsername(),
+                message.getContent(), message.getTimestamp().toString());
+    }
+
+    private static Message toMessage(String sessionId, ServerMessage.ChatMessage chat) {
+        Message message = new Message(sessionId, chat.userId(), chat.username(), chat.content(), Message.MessageType.CHAT);
+        message.setId(chat.id());
+        message.setTimestamp(LocalDateTime.parse(chat.timestamp()));
+        return message;
     }
 
     private void sendErrorMessage(WebSocketSession session, String error) {
-        try {
-            String errorMessage = objectMapper.writeValueAsString(Map.of(
-                "type", "error",
-                "message", error
-            ));
-            session.sendMessage(new TextMessage(errorMessage));
-        } catch (IOException e) {
-            // Log error
-        }
+        outboundDispatcher.send(session, new ServerMessage.ErrorMessage(error), OutboundMessageDispatcher.FrameKind.CONTROL);
     }
 
     private String extractSessionId(WebSocketSession session) {
@@ -127,18 +201,27 @@ public class ChatWebSocketHandler implements WebSocketHandler {
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        outboundDispatcher.unregister(session);
         String sessionId = extractSessionId(session);
         if (sessionId != null) {
-            CopyOnWriteArraySet<WebSocketSession> sessions = chatConnections.get(sessionId);
-            if (sessions != null) {
-                sessions.remove(session);
-                if (sessions.isEmpty()) {
-                    chatConnections.remove(sessionId);
+            // Left in the mailbox too, so a leave can never be overtaken by its own join
+            roomExecutor.execute(MAILBOX_PREFIX + sessionId, () -> {
+                CopyOnWriteArraySet<WebSocketSession> sessions = chatConnections.get(sessionId);
+                if (sessions != null) {
+                    sessions.remove(session);
+                    if (sessions.isEmpty()) {
+                        chatConnections.remove(sessionId);
+                    }
                 }
-            }
+            });
         }
     }
 
+    @Override
+    public List<String> getSubProtocols() {
+        return WireFormat.subprotocols();
+    }
+
     @Override
     public boolean supportsPartialMessages() {
         return false;
@@ -1,43 +1,149 @@
 package com.codebuddy.websocket;
 
+import com.codebuddy.messaging.RoomMessageBus;
+import com.codebuddy.model.AIRequest;
+import com.codebuddy.model.TextOperation;
+import com.codebuddy.protocol.ClientMessage;
+import com.codebuddy.protocol.ServerMessage;
+import com.codebuddy.protocol.WireFormat;
+import com.codebuddy.service.AIService;
+import com.codebuddy.service.AIStreamListener;
+import com.codebuddy.service.CollaborativeDocument;
+import com.codebuddy.service.DocumentSyncService;
+import com.codebuddy.service.RoomExecutor;
 import com.codebuddy.service.SessionService;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
+import org.springframework.web.util.UriComponents;
+import org.springframework.web.util.UriComponentsBuilder;
 
-import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * WebSocket handler for real-time code synchronization
  */
 @Component
-public class CodeWebSocketHandler implements WebSocketHandler {
+public class CodeWebSocketHandler implements WebSocketHandler, SubProtocolCapable {
+
+    private static final Logger log = LoggerFactory.getLogger(CodeWebSocketHandler.class);
 
     @Autowired
     private SessionService sessionService;
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    
+    @Autowired
+    private DocumentSyncService documentSyncService;
+
+    @Autowired
+    private OutboundMessageDispatcher outboundDispatcher;
+
+    @Autowired
+    private RoomMessageBus roomMessageBus;
+
+    @Autowired
+    private PresenceTracker presenceTracker;
+
+    @Autowired
+    private RoomExecutor roomExecutor;
+
+    @Autowired
+    private IngressRateLimiter rateLimiter;
+
+    @Autowired
+    private RoomReplayBuffer replayBuffer;
+
+    @Autowired
+    private RoomSnapshotter roomSnapshotter;
+
+    @Autowired
+    private AIService aiService;
+
+    private static final String PRESENCE_USER_ATTRIBUTE = "presenceUserId";
+
+    private static final String BUS_CHANNEL = "code";
+
+    @Value("${codebuddy.presence.tick-ms:40}")
+    private long presenceTickMs;
+
+    // The presence tick has its own thread; on the shared scheduler it would wait behind the Mongo flushes
+    private final ScheduledExecutorService presenceTicker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence-tick");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     // Map of sessionId -> Set of WebSocket sessions
     private final ConcurrentHashMap<String, CopyOnWriteArraySet<WebSocketSession>> sessionConnections = new ConcurrentHashMap<>();
 
+    @PostConstruct
+    public void subscribeToRoomBus() {
+        // Broadcasts from other nodes go to every local peer; their sender is connected elsewhere.
+        // They pass through the room's mailbox so they are sequenced in line with local edits.
+        roomMessageBus.subscribe(BUS_CHANNEL, (sessionId, payload) -> {
+            if (!routesOverBus(payload)) {
+                log.debug("Ignoring {} for room {} from another node", payload.getClass().getSimpleName(), sessionId);
+                return;
+            }
+            roomExecutor.execute(sessionId, () -> deliverLocally(sessionId, payload, null, frameKindOf(payload)));
+        });
+    }
+
+    @PostConstruct
+    public void startPresenceTick() {
+        presenceTicker.scheduleAtFixedRate(() -> {
+            try {
+                flushPresence();
+            } catch (RuntimeException e) {
+                // A failed tick must not cancel the schedule
+                log.warn("Presence tick failed", e);
+            }
+        }, presenceTickMs, presenceTickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stopPresenceTick() {
+        presenceTicker.shutdownNow();
+    }
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         String sessionId = extractSessionId(session);
         if (sessionId != null) {
+            outboundDispatcher.register(session);
             sessionConnections.computeIfAbsent(sessionId, k -> new CopyOnWriteArraySet<>()).add(session);
+            replayBuffer.attach(sessionId, session.getId());
+            sessionService.connectionOpened(sessionId);
             
-            // Send welcome message
-            String welcomeMessage = objectMapper.writeValueAsString(Map.of(
-                "type", "connection_established",
-                "sessionId", sessionId,
-                "message", "Connected to coding session"
-            ));
-            session.sendMessage(new TextMessage(welcomeMessage));
+            // Send welcome message; epoch and seq let the client resume this room later
+            outboundDispatcher.send(session, new ServerMessage.ConnectionEstablished(
+                sessionId,
+                replayBuffer.getEpoch(sessionId),
+                replayBuffer.getLastSeq(sessionId),
+                "Connected to coding session"
+            ), OutboundMessageDispatcher.FrameKind.CONTROL);
+
+            // A reconnecting client passes ?epoch=&lastSeq= and is caught up by replay;
+            // everyone else is pushed the room manifest to fetch the files it lacks
+            UriComponents uri = UriComponentsBuilder.fromUri(session.getUri()).build();
+            String epoch = uri.getQueryParams().getFirst("epoch");
+            String lastSeq = uri.getQueryParams().getFirst("lastSeq");
+            roomExecutor.execute(sessionId, () -> {
+                if (epoch == null || lastSeq == null || !replayMissed(sessionId, epoch, parseSeq(lastSeq), session)) {
+                    roomSnapshotter.sendManifest(session, sessionId);
+                }
+            });
         }
     }
 
@@ -46,119 +152,298 @@ public class CodeWebSocketHandler implements WebSocketHandler {
         String sessionId = extractSessionId(session);
         if (sessionId == null) return;
 
+        ClientMessage clientMessage;
         try {
-            JsonNode messageNode = objectMapper.readTree(message.getPayload().toString());
-            String type = messageNode.get("type").asText();
-            
-            switch (type) {
-                case "code_change":
-                    handleCodeChange(sessionId, messageNode, session);
-                    break;
-                case "cursor_position":
-                    handleCursorPosition(sessionId, messageNode, session);
-                    break;
-                case "file_create":
-                    handleFileCreate(sessionId, messageNode, session);
-                    break;
-                case "file_delete":
-                    handleFileDelete(sessionId, messageNode, session);
-                    break;
+            clientMessage = FrameCodec.read(message);
+        } catch (Exception e) {
+            sendErrorMessage(session, "Error processing message: " + e.getMessage());
+            return;
+        }
+        // Over-limit frames are answered and dropped before any work is queued for them
+        ServerMessage.Throttled throttled = rateLimiter.admit(session, clientMessage);
+        if (throttled != null) {
+            outboundDispatcher.send(session, throttled, OutboundMessageDispatcher.FrameKind.CONTROL);
+            return;
+        }
+        // Frames of one room are applied one at a time, in arrival order
+        roomExecutor.execute(sessionId, () -> dispatchMessage(sessionId, clientMessage, session));
+    }
+
+    private void dispatchMessage(String sessionId, ClientMessage message, WebSocketSession session) {
+        try {
+            if (message instanceof ClientMessage.CodeOp op) {
+                handleCodeOperation(sessionId, op, session);
+            } else if (message instanceof ClientMessage.CodeChange change) {
+                handleCodeChange(sessionId, change, session);
+            } else if (message instanceof ClientMessage.CursorPosition cursor) {
+                handleCursorPosition(sessionId, cursor, session);
+            } else if (message instanceof ClientMessage.FileCreate create) {
+                handleFileCreate(sessionId, create, session);
+            } else if (message instanceof ClientMessage.FileDelete delete) {
+                handleFileDelete(sessionId, delete, session);
+            } else if (message instanceof ClientMessage.Resume resume) {
+                handleResume(sessionId, resume, session);
+            } else if (message instanceof ClientMessage.SnapshotRequest request) {
+                roomSnapshotter.sendFiles(session, sessionId, request.files());
+            } else if (message instanceof ClientMessage.AiRequest request) {
+                handleAiRequest(sessionId, request, session);
             }
         } catch (Exception e) {
             sendErrorMessage(session, "Error processing message: " + e.getMessage());
         }
     }
 
-    private void handleCodeChange(String sessionId, JsonNode messageNode, WebSocketSession senderSession) throws IOException {
-        String filename = messageNode.get("filename").asText();
-        String content = messageNode.get("content").asText();
-        String userId = messageNode.get("userId").asText();
-        
-        // Update session in database
-        sessionService.updateSessionCode(sessionId, filename, content);
+    private void handleCodeOperation(String sessionId, ClientMessage.CodeOp message, WebSocketSession senderSession) {
+        String filename = message.filename();
+
+        DocumentSyncService.AppliedOperation applied;
+        try {
+            applied = documentSyncService.applyOperation(sessionId, filename, message.revision(),
+                    TextOperation.fromComponents(message.ops()));
+        } catch (CollaborativeDocument.RevisionOutOfRangeException | IllegalArgumentException e) {
+            // Client is too far behind or out of sync; hand it the authoritative text
+            sendResync(sessionId, filename, senderSession);
+            return;
+        }
+
+        // Only the transformed delta is sent to the other clients
+        ServerMessage.CodeOp broadcastMessage = new ServerMessage.CodeOp(
+            filename,
+            applied.getRevision(),
+            applied.getOperation().getComponents(),
+            message.userId(),
+            System.currentTimeMillis(),
+            0
+        );
+
+        long seq = broadcastToSession(sessionId, broadcastMessage, senderSession, OutboundMessageDispatcher.FrameKind.EDIT);
+
+        // The ack carries the broadcast's seq so a resuming sender is not replayed its own operation
+        outboundDispatcher.send(senderSession, new ServerMessage.CodeOpAck(filename, applied.getRevision(), seq),
+                OutboundMessageDispatcher.FrameKind.EDIT);
+    }
+
+    private void handleCodeChange(String sessionId, ClientMessage.CodeChange message, WebSocketSession senderSession) {
+        // Full-content fallback: recorded as a replace operation so operation-based clients stay in step
+        DocumentSyncService.AppliedOperation applied = documentSyncService.replaceContent(
+                sessionId, message.filename(), message.content());
         
         // Broadcast to all other clients in the session
-        String broadcastMessage = objectMapper.writeValueAsString(Map.of(
-            "type", "code_change",
-            "filename", filename,
-            "content", content,
-            "userId", userId,
-            "timestamp", System.currentTimeMillis()
-        ));
+        ServerMessage.CodeChange broadcastMessage = new ServerMessage.CodeChange(
+            message.filename(),
+            message.content(),
+            applied.getRevision(),
+            message.userId(),
+            System.currentTimeMillis(),
+            0
+        );
         
-        broadcastToSession(sessionId, broadcastMessage, senderSession);
+        broadcastToSession(sessionId, broadcastMessage, senderSession, OutboundMessageDispatcher.FrameKind.EDIT);
     }
 
-    private void handleCursorPosition(String sessionId, JsonNode messageNode, WebSocketSession senderSession) throws IOException {
-        String userId = messageNode.get("userId").asText();
-        int line = messageNode.get("line").asInt();
-        int column = messageNode.get("column").asInt();
-        
-        String broadcastMessage = objectMapper.writeValueAsString(Map.of(
-            "type", "cursor_position",
-            "userId", userId,
-            "line", line,
-            "column", column
-        ));
-        
-        broadcastToSession(sessionId, broadcastMessage, senderSession);
+    /**
+     * Tells every peer of a room about an edit that did not come from one of
+     * them, e.g. a REST write. Must be called from the room's mailbox, right
+     * after the operation was applied, so it is sequenced in edit order.
+     */
+    public void broadcastOperation(String sessionId, String filename, DocumentSyncService.AppliedOperation applied,
+                                   String userId) {
+        broadcastToSession(sessionId, new ServerMessage.CodeOp(
+            filename,
+            applied.getRevision(),
+            applied.getOperation().getComponents(),
+            userId,
+            System.currentTimeMillis(),
+            0
+        ), null, OutboundMessageDispatcher.FrameKind.EDIT);
     }
 
-    private void handleFileCreate(String sessionId, JsonNode messageNode, WebSocketSession senderSession) throws IOException {
-        String filename = messageNode.get("filename").asText();
-        String userId = messageNode.get("userId").asText();
-        
+    /**
+     * Drops the live state of a deleted session's room. Must be called from
+     * the room's mailbox so no pending edit brings the documents back.
+     */
+    public void discardRoom(String sessionId) {
+        documentSyncService.discardSession(sessionId);
+        replayBuffer.remove(sessionId);
+        presenceTracker.removeRoom(sessionId);
+    }
+
+    private void sendResync(String sessionId, String filename, WebSocketSession session) {
+        CollaborativeDocument document = documentSyncService.getDocument(sessionId, filename);
+        String content;
+        long revision;
+        synchronized (document) {
+            content = document.getContent();
+            revision = document.getRevision();
+        }
+        outboundDispatcher.send(session, new ServerMessage.CodeResync(filename, content, revision),
+                OutboundMessageDispatcher.FrameKind.EDIT);
+    }
+
+    private void handleResume(String sessionId, ClientMessage.Resume message, WebSocketSession session) {
+        if (!replayMissed(sessionId, message.epoch(), message.lastSeq(), session)) {
+            roomSnapshotter.sendManifest(session, sessionId);
+        }
+    }
+
+    /**
+     * Catches a reconnecting client up from its last seen sequence number.
+     * Returns false when the missed frames are no longer buffered, in which
+     * case the client has to be sent the room manifest instead. Runs in the
+     * room's mailbox, so nothing is sequenced in between.
+     */
+    private boolean replayMissed(String sessionId, String epoch, long lastSeq, WebSocketSession session) {
+        List<RoomReplayBuffer.Entry> missed = replayBuffer.framesAfter(sessionId, epoch, lastSeq);
+        // Replaying more than half a queue would trip the overflow policy; a snapshot is smaller then
+        if (missed == null || missed.size() > outboundDispatcher.getCapacity() / 2) {
+            return false;
+        }
+        for (RoomReplayBuffer.Entry entry : missed) {
+            outboundDispatcher.send(session, entry.getFrame(), entry.getKind());
+        }
+        outboundDispatcher.send(session, new ServerMessage.Resumed(epoch, replayBuffer.getLastSeq(sessionId), missed.size()),
+                OutboundMessageDispatcher.FrameKind.EDIT);
+        return true;
+    }
+
+    private static long parseSeq(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Starts an AI request and streams its answer back to the asking
+     * connection only. Nothing waits for the answer in the room's mailbox.
+     */
+    private void handleAiRequest(String sessionId, ClientMessage.AiRequest message, WebSocketSession session) {
+        AIRequest request = new AIRequest(sessionId, message.userId(), message.code(),
+                message.language() != null ? message.language() : "text", AIRequest.AIAction.valueOf(message.action().toUpperCase(Locale.ROOT)));
+        request.setContext(message.context());
+        request.setBypassCache(message.bypassCache());
+        String requestId = message.requestId();
+        AtomicInteger index = new AtomicInteger();
+        aiService.streamRequest(request, new AIStreamListener() {
+            @Override
+            public void onToken(String token) {
+                // Aborts the AI request once nobody is listening
+                if (!session.isOpen()) {
+                    throw new IllegalStateException("Connection closed");
+                }
+                outboundDispatcher.send(session, new ServerMessage.AiChunk(requestId, index.getAndIncrement(), token),
+                        OutboundMessageDispatcher.FrameKind.AI);
+            }
+
+            @Override
+            public void onCodeBlock(String code) {
+                outboundDispatcher.send(session, new ServerMessage.AiCodeBlock(requestId, code),
+                        OutboundMessageDispatcher.FrameKind.AI);
+            }
+        }).thenAccept(response -> outboundDispatcher.send(session, new ServerMessage.AiComplete(requestId,
+                response.isSuccess(), response.getResponse(), response.getSuggestedCode(), response.getError()),
+                OutboundMessageDispatcher.FrameKind.AI));
+    }
+
+    private void handleCursorPosition(String sessionId, ClientMessage.CursorPosition message, WebSocketSession senderSession) {
+        // Only the latest position is kept; it goes out with the next presence tick
+        senderSession.getAttributes().put(PRESENCE_USER_ATTRIBUTE, message.userId());
+        presenceTracker.update(sessionId, message.userId(), message.line(), message.column(), message.selection());
+    }
+
+    /**
+     * Sends one batched presence frame per room containing the users whose cursor changed since the last tick.
+     */
+    public void flushPresence() {
+        for (String sessionId : presenceTracker.getRoomIds()) {
+            ServerMessage.Presence frame = presenceTracker.drainChanges(sessionId);
+            if (frame != null) {
+                broadcastToSession(sessionId, frame, null, OutboundMessageDispatcher.FrameKind.PRESENCE);
+            }
+        }
+    }
+
+    private void handleFileCreate(String sessionId, ClientMessage.FileCreate message, WebSocketSession senderSession) {
         // Create empty file in session
-        sessionService.updateSessionCode(sessionId, filename, "");
+        DocumentSyncService.AppliedOperation applied = documentSyncService.replaceContent(sessionId, message.filename(), "");
         
-        String broadcastMessage = objectMapper.writeValueAsString(Map.of(
-            "type", "file_create",
-            "filename", filename,
-            "userId", userId
-        ));
+        ServerMessage.FileCreate broadcastMessage = new ServerMessage.FileCreate(message.filename(), message.userId(), 0);
         
-        broadcastToSession(sessionId, broadcastMessage, senderSession);
+        broadcastToSession(sessionId, broadcastMessage, senderSession, OutboundMessageDispatcher.FrameKind.EDIT);
+        // Clearing the file took a revision; peers holding it need the operation to stay in step
+        broadcastOperation(sessionId, message.filename(), applied, message.userId());
     }
 
-    private void handleFileDelete(String sessionId, JsonNode messageNode, WebSocketSession senderSession) throws IOException {
-        String filename = messageNode.get("filename").asText();
-        String userId = messageNode.get("userId").asText();
+    private void handleFileDelete(String sessionId, ClientMessage.FileDelete message, WebSocketSession senderSession) {
+        documentSyncService.removeDocument(sessionId, message.filename());
         
-        String broadcastMessage = objectMapper.writeValueAsString(Map.of(
-            "type", "file_delete",
-            "filename", filename,
-            "userId", userId
-        ));
+        ServerMessage.FileDelete broadcastMessage = new ServerMessage.FileDelete(message.filename(), message.userId(), 0);
         
-        broadcastToSession(sessionId, broadcastMessage, senderSession);
+        broadcastToSession(sessionId, broadcastMessage, senderSession, OutboundMessageDispatcher.FrameKind.EDIT);
     }
 
-    private void broadcastToSession(String sessionId, String message, WebSocketSession excludeSession) {
+    /**
+     * Broadcasts to the room on every node that may carry the frame (see
+     * {@link #routesOverBus}) and returns the frame's sequence number, or 0
+     * for presence frames, which are not sequenced.
+     */
+    private long broadcastToSession(String sessionId, ServerMessage payload, WebSocketSession excludeSession,
+                                    OutboundMessageDispatcher.FrameKind kind) {
+        long seq = deliverLocally(sessionId, payload, excludeSession, kind);
+        if (routesOverBus(payload)) {
+            roomMessageBus.publish(BUS_CHANNEL, sessionId, payload);
+        }
+        return seq;
+    }
+
+    /**
+     * Whether a frame may be relayed to other nodes. Document edits may not:
+     * every node transforms operations against its own document and revision
+     * history, so an edit relayed without being applied there would leave the
+     * nodes' documents apart and let two nodes log the same revision. Edits
+     * stay on the node that applied them until a room has one owning node.
+     */
+    private static boolean routesOverBus(ServerMessage payload) {
+        return !(payload instanceof ServerMessage.CodeOp
+                || payload instanceof ServerMessage.CodeChange
+                || payload instanceof ServerMessage.FileCreate
+                || payload instanceof ServerMessage.FileDelete);
+    }
+
+    private long deliverLocally(String sessionId, ServerMessage payload, WebSocketSession excludeSession,
+                                OutboundMessageDispatcher.FrameKind kind) {
+        OutboundFrame frame;
+        long seq = 0;
+        // Presence is superseded every tick, so only durable frames are sequenced and kept for replay
+        if (payload instanceof ServerMessage.Sequenced sequenced) {
+            RoomReplayBuffer.Entry entry = replayBuffer.record(sessionId, sequenced, kind);
+            frame = entry.getFrame();
+            seq = entry.getSeq();
+        } else {
+            frame = new OutboundFrame(payload);
+        }
         CopyOnWriteArraySet<WebSocketSession> sessions = sessionConnections.get(sessionId);
-        if (sessions != null) {
-            sessions.forEach(session -> {
-                if (session != excludeSession && session.isOpen()) {
-                    try {
-                        session.sendMessage(new TextMessage(message));
-                    } catch (IOException e) {
-                        // Remove broken connection
-                        sessions.remove(session);
-                    }
-                }
-            });
+        if (sessions == null) {
+            return seq;
+        }
+        // Encoded lazily, once per wire format; every recipient shares the same frame
+        for (WebSocketSession session : sessions) {
+            if (session != excludeSession && session.isOpen()) {
+                outboundDispatcher.send(session, frame, kind);
+            }
         }
+        return seq;
+    }
+
+    private static OutboundMessageDispatcher.FrameKind frameKindOf(ServerMessage payload) {
+        return payload instanceof ServerMessage.Presence
+                ? OutboundMessageDispatcher.FrameKind.PRESENCE
+                : OutboundMessageDispatcher.FrameKind.EDIT;
     }
 
     private void sendErrorMessage(WebSocketSession session, String error) {
-        try {
-            String errorMessage = objectMapper.writeValueAsString(Map.of(
-                "type", "error",
-                "message", error
-            ));
-            session.sendMessage(new TextMessage(errorMessage));
-        } catch (IOException e) {
-            // Log error
-        }
+        outboundDispatcher.send(session, new ServerMessage.ErrorMessage(error), OutboundMessageDispatcher.FrameKind.CONTROL);
     }
 
     private String extractSessionId(WebSocketSession session) {
@@ -182,17 +467,36 @@ public class CodeWebSocketHandler implements WebSocketHandler {
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
         String sessionId = extractSessionId(session);
+        outboundDispatcher.unregister(session);
         if (sessionId != null) {
+            sessionService.connectionClosed(sessionId);
+            replayBuffer.detach(sessionId, session.getId());
+            Object presenceUserId = session.getAttributes().get(PRESENCE_USER_ATTRIBUTE);
+            if (presenceUserId != null) {
+                presenceTracker.remove(sessionId, presenceUserId.toString());
+            }
             CopyOnWriteArraySet<WebSocketSession> sessions = sessionConnections.get(sessionId);
             if (sessions != null) {
                 sessions.remove(session);
                 if (sessions.isEmpty()) {
                     sessionConnections.remove(sessionId);
+                    // Release room state from the room's own mailbox so it runs after any pending edits
+                    roomExecutor.execute(sessionId, () -> {
+                        if (!sessionConnections.containsKey(sessionId)) {
+                            documentSyncService.releaseSession(sessionId);
+                            presenceTracker.removeRoom(sessionId);
+                        }
+                    });
                 }
             }
         }
     }
 
+    @Override
+    public List<String> getSubProtocols() {
+        return WireFormat.subprotocols();
+    }
+
     @Override
     public boolean supportsPartialMessages() {
         return false;
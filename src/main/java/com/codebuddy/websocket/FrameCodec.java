@@ -0,0 +1,45 @@
+package com.codebuddy.websocket;
+
+import com.codebuddy.protocol.ClientMessage;
+import com.codebuddy.protocol.MessageCodec;
+import com.codebuddy.protocol.WireFormat;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads inbound frames in the wire format negotiated by their connection
+ */
+public final class FrameCodec {
+
+    private FrameCodec() {
+    }
+
+    public static WireFormat formatOf(WebSocketSession session) {
+        return WireFormat.fromSubprotocol(session.getAcceptedProtocol());
+    }
+
+    public static ClientMessage read(WebSocketMessage<?> message) throws IOException {
+        if (message instanceof BinaryMessage) {
+            return MessageCodec.decodeClient(WireFormat.CBOR, toBytes(((BinaryMessage) message).getPayload()));
+        }
+        if (message instanceof TextMessage) {
+            return MessageCodec.decodeClient(((TextMessage) message).getPayload());
+        }
+        throw new IOException("Unsupported message type: " + message.getClass().getSimpleName());
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
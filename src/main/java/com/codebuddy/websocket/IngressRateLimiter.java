@@ -0,0 +1,211 @@
+package com.codebuddy.websocket;
+
+import com.codebuddy.protocol.ClientMessage;
+import com.codebuddy.protocol.ServerMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.InetSocketAddress;
+import java.security.Principal;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for inbound WebSocket frames. Every frame is charged to a
+ * token bucket of its connection and one of its user, per message category,
+ * before any work is queued for it. Buckets use GCRA on a single AtomicLong,
+ * so accounting is one compare-and-set on the hot path.
+ * <p>
+ * The defaults live in {@link Category}; any of them can be overridden with
+ * {@code codebuddy.ws.ratelimit.<category>.(connection|user)-(rate|burst)}.
+ */
+@Component
+public class IngressRateLimiter {
+
+    public enum Category {
+        EDIT(50, 100, 100, 200),
+        CURSOR(30, 60, 60, 120),
+        CHAT(5, 10, 5, 10),
+        TYPING(5, 10, 10, 20),
+        AI(0.5, 3, 0.5, 5),
+        CONTROL(10, 20, 20, 40);
+
+        private final double connectionRate;
+        private final int connectionBurst;
+        private final double userRate;
+        private final int userBurst;
+
+        Category(double connectionRate, int connectionBurst, double userRate, int userBurst) {
+            this.connectionRate = connectionRate;
+            this.connectionBurst = connectionBurst;
+            this.userRate = userRate;
+            this.userBurst = userBurst;
+        }
+
+        public static Category of(ClientMessage message) {
+            if (message instanceof ClientMessage.CodeOp || message instanceof ClientMessage.CodeChange
+                    || message instanceof ClientMessage.FileCreate || message instanceof ClientMessage.FileDelete) {
+                return EDIT;
+            }
+            if (message instanceof ClientMessage.CursorPosition) {
+                return CURSOR;
+            }
+            if (message instanceof ClientMessage.ChatMessage) {
+                return CHAT;
+            }
+            if (message instanceof ClientMessage.UserTyping) {
+                return TYPING;
+            }
+            if (message instanceof ClientMessage.AiRequest) {
+                return AI;
+            }
+            return CONTROL;
+        }
+    }
+
+    private static final String BUCKETS_ATTRIBUTE = "ingressBuckets";
+
+    private final Map<Category, Limit> connectionLimits = new EnumMap<>(Category.class);
+    private final Map<Category, Limit> userLimits = new EnumMap<>(Category.class);
+    // Map of category:userId -> bucket shared by all of the user's connections
+    private final ConcurrentHashMap<String, Bucket> userBuckets = new ConcurrentHashMap<>();
+    private final Map<Category, Counter> connectionRejections = new EnumMap<>(Category.class);
+    private final Map<Category, Counter> userRejections = new EnumMap<>(Category.class);
+
+    public IngressRateLimiter(MeterRegistry meterRegistry, Environment environment) {
+        for (Category category : Category.values()) {
+            String prefix = "codebuddy.ws.ratelimit." + category.name().toLowerCase() + ".";
+            connectionLimits.put(category, new Limit(prefix + "connection",
+                    environment.getProperty(prefix + "connection-rate", Double.class, category.connectionRate),
+                    environment.getProperty(prefix + "connection-burst", Integer.class, category.connectionBurst)));
+            userLimits.put(category, new Limit(prefix + "user",
+                    environment.getProperty(prefix + "user-rate", Double.class, category.userRate),
+                    environment.getProperty(prefix + "user-burst", Integer.class, category.userBurst)));
+            connectionRejections.put(category, meterRegistry.counter("codebuddy.ws.ratelimit.rejected",
+                    "category", category.name().toLowerCase(), "scope", "connection"));
+            userRejections.put(category, meterRegistry.counter("codebuddy.ws.ratelimit.rejected",
+                    "category", category.name().toLowerCase(), "scope", "user"));
+        }
+        meterRegistry.gauge("codebuddy.ws.ratelimit.user.buckets", userBuckets, Map::size);
+    }
+
+    /**
+     * Charges a frame to its connection and user. Returns null if it is
+     * admitted, otherwise the throttled response to send back. The user is
+     * the authenticated principal if there is one, else the address the
+     * connection was opened from; the userId a frame claims is never used,
+     * since a client could rotate it or spend someone else's budget with it.
+     */
+    public ServerMessage.Throttled admit(WebSocketSession session, ClientMessage message) {
+        Category category = Category.of(message);
+        String type = message.type();
+
+        long wait = connectionBuckets(session).get(category).take(connectionLimits.get(category));
+        if (wait > 0) {
+            connectionRejections.get(category).increment();
+            return throttled(type, category, "connection", wait);
+        }
+
+        String user = identityOf(session);
+        if (user != null) {
+            Bucket bucket = userBuckets.computeIfAbsent(category.name() + ":" + user, k -> new Bucket());
+            wait = bucket.take(userLimits.get(category));
+            if (wait > 0) {
+                userRejections.get(category).increment();
+                return throttled(type, category, "user", wait);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops user buckets that have refilled completely; they are recreated full on next use.
+     */
+    @Scheduled(fixedDelayString = "${codebuddy.ws.ratelimit.sweep-interval-ms:60000}")
+    public void evictIdle() {
+        long now = System.nanoTime();
+        userBuckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Category, Bucket> connectionBuckets(WebSocketSession session) {
+        return (Map<Category, Bucket>) session.getAttributes().computeIfAbsent(BUCKETS_ATTRIBUTE, k -> {
+            Map<Category, Bucket> buckets = new EnumMap<>(Category.class);
+            for (Category category : Category.values()) {
+                buckets.put(category, new Bucket());
+            }
+            return buckets;
+        });
+    }
+
+    // Both are fixed when the connection is established, so no frame can change them
+    private static String identityOf(WebSocketSession session) {
+        Principal principal = session.getPrincipal();
+        if (principal != null) {
+            return "user:" + principal.getName();
+        }
+        InetSocketAddress remote = session.getRemoteAddress();
+        if (remote != null && remote.getAddress() != null) {
+            return "address:" + remote.getAddress().getHostAddress();
+        }
+        return null;
+    }
+
+    private static ServerMessage.Throttled throttled(String type, Category category, String scope, long waitNanos) {
+        return new ServerMessage.Throttled(type, category.name().toLowerCase(), scope,
+                Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+    }
+
+    private static class Limit {
+        // Nanoseconds one frame costs, and how far ahead of time the bucket may run
+        private final long emissionInterval;
+        private final long tolerance;
+
+        private Limit(String name, double ratePerSecond, int burst) {
+            if (!(ratePerSecond > 0) || Double.isInfinite(ratePerSecond)) {
+                throw new IllegalStateException(name + "-rate must be a positive number, was " + ratePerSecond);
+            }
+            if (burst < 1) {
+                throw new IllegalStateException(name + "-burst must be at least 1, was " + burst);
+            }
+            this.emissionInterval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+            this.tolerance = emissionInterval * burst;
+        }
+    }
+
+    /**
+     * Generic cell rate algorithm: the bucket only stores the theoretical
+     * arrival time of the next frame.
+     */
+    private static class Bucket {
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+        /**
+         * Returns 0 if the frame is admitted, otherwise the nanoseconds until it would be.
+         */
+        private long take(Limit limit) {
+            long now = System.nanoTime();
+            while (true) {
+                long tat = theoreticalArrival.get();
+                long next = Math.max(tat - now, 0) + limit.emissionInterval;
+                if (next > limit.tolerance) {
+                    return next - limit.tolerance;
+                }
+                if (theoreticalArrival.compareAndSet(tat, now + next)) {
+                    return 0;
+                }
+            }
+        }
+
+        private boolean isFull(long now) {
+            return theoreticalArrival.get() - now <= 0;
+        }
+    }
+}
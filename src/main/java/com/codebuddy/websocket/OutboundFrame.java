@@ -0,0 +1,47 @@
+package com.codebuddy.websocket;
+
+import com.codebuddy.protocol.MessageCodec;
+import com.codebuddy.protocol.ServerMessage;
+import com.codebuddy.protocol.WireFormat;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+
+/**
+ * Outbound message shared by all recipients of a broadcast. The payload is
+ * encoded at most once per wire format, on first use, and the encoded bytes
+ * are reused for every connection using that format.
+ */
+public class OutboundFrame {
+
+    private final ServerMessage payload;
+    private final EnumMap<WireFormat, byte[]> encoded = new EnumMap<>(WireFormat.class);
+    private TextMessage textMessage;
+
+    public OutboundFrame(ServerMessage payload) {
+        this.payload = payload;
+    }
+
+    public ServerMessage getPayload() { return payload; }
+
+    public synchronized WebSocketMessage<?> messageFor(WireFormat format) throws IOException {
+        byte[] bytes = encoded.get(format);
+        if (bytes == null) {
+            bytes = MessageCodec.encode(format, payload);
+            encoded.put(format, bytes);
+        }
+        if (format.isBinary()) {
+            // The container consumes the buffer position while sending, so every
+            // recipient gets its own buffer over the same shared bytes
+            return new BinaryMessage(bytes);
+        }
+        if (textMessage == null) {
+            textMessage = new TextMessage(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return textMessage;
+    }
+}
@@ -0,0 +1,295 @@
+package com.codebuddy.websocket;
+
+import com.codebuddy.protocol.ServerMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.NativeWebSocketSession;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends outbound WebSocket frames through a bounded queue per connection,
+ * drained on a shared sender pool. A slow client only fills its own queue
+ * instead of blocking the thread that handles the inbound message, and a
+ * send that takes longer than the send time limit disconnects the client,
+ * so stalled clients cannot hold the sender threads.
+ */
+@Component
+public class OutboundMessageDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboundMessageDispatcher.class);
+
+    /**
+     * Frame categories; each has its own overflow policy.
+     */
+    public enum FrameKind { EDIT, PRESENCE, CHAT, AI, CONTROL }
+
+    public enum OverflowPolicy {
+        /** Drop the oldest queued frame of the same kind (or the new one if there is none) */
+        DROP_OLDEST,
+        /** Close the connection; the client has to reconnect and resynchronize */
+        DISCONNECT
+    }
+
+    private static final String TOMCAT_BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+    private final int capacity;
+    private final Map<FrameKind, OverflowPolicy> policies = new EnumMap<>(FrameKind.class);
+    private final ExecutorService senders;
+    private final ConcurrentHashMap<String, OutboundQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private final MeterRegistry meterRegistry;
+    private final long sendTimeLimitNanos;
+    private final ScheduledExecutorService watchdog;
+    private final Counter sendTimeouts;
+
+    public OutboundMessageDispatcher(MeterRegistry meterRegistry,
+                                     @Value("${codebuddy.ws.outbound.capacity:256}") int capacity,
+                                     @Value("${codebuddy.ws.outbound.sender-threads:8}") int senderThreads,
+                                     @Value("${codebuddy.ws.outbound.overflow.edit:DISCONNECT}") OverflowPolicy editPolicy,
+                                     @Value("${codebuddy.ws.outbound.overflow.presence:DROP_OLDEST}") OverflowPolicy presencePolicy,
+                                     @Value("${codebuddy.ws.outbound.overflow.chat:DISCONNECT}") OverflowPolicy chatPolicy,
+                                     @Value("${codebuddy.ws.outbound.overflow.ai:DROP_OLDEST}") OverflowPolicy aiPolicy,
+                                     @Value("${codebuddy.ws.outbound.overflow.control:DROP_OLDEST}") OverflowPolicy controlPolicy,
+                                     @Value("${codebuddy.ws.outbound.send-time-limit-ms:5000}") long sendTimeLimitMs,
+                                     @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.meterRegistry = meterRegistry;
+        this.capacity = capacity;
+        this.sendTimeLimitNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMs);
+        this.policies.put(FrameKind.EDIT, editPolicy);
+        this.policies.put(FrameKind.PRESENCE, presencePolicy);
+        this.policies.put(FrameKind.CHAT, chatPolicy);
+        this.policies.put(FrameKind.AI, aiPolicy);
+        this.policies.put(FrameKind.CONTROL, controlPolicy);
+
+        if (virtualThreads) {
+            // A connection with a slow socket parks its own virtual thread rather than a shared sender
+            this.senders = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ws-outbound-", 1).factory());
+        } else {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.senders = Executors.newFixedThreadPool(senderThreads, runnable -> {
+                Thread thread = new Thread(runnable, "ws-outbound-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        // Checks often enough that a stalled send is caught within about 1.25 time limits
+        long checkIntervalMs = Math.max(50, sendTimeLimitMs / 4);
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ws-outbound-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.watchdog.scheduleWithFixedDelay(this::abortStalledSends, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+        this.sendTimeouts = meterRegistry.counter("codebuddy.ws.outbound.send.timeouts");
+
+        meterRegistry.gauge("codebuddy.ws.outbound.queued", queuedFrames);
+        meterRegistry.gauge("codebuddy.ws.outbound.connections", queues, Map::size);
+    }
+
+    public void register(WebSocketSession session) {
+        // Tomcat bounds each blocking write itself, which frees the sender thread; other containers rely on the watchdog
+        if (session instanceof NativeWebSocketSession nativeSession) {
+            jakarta.websocket.Session standard = nativeSession.getNativeSession(jakarta.websocket.Session.class);
+            if (standard != null) {
+                standard.getUserProperties().put(TOMCAT_BLOCKING_SEND_TIMEOUT, TimeUnit.NANOSECONDS.toMillis(sendTimeLimitNanos));
+            }
+        }
+        queues.put(session.getId(), new OutboundQueue(session));
+    }
+
+    public void unregister(WebSocketSession session) {
+        OutboundQueue queue = queues.remove(session.getId());
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Queues a frame for the given connection, encoded in the connection's
+     * wire format, and returns immediately.
+     */
+    public void send(WebSocketSession session, OutboundFrame frame, FrameKind kind) {
+        OutboundQueue queue = queues.get(session.getId());
+        if (queue != null && session.isOpen()) {
+            try {
+                queue.offer(frame.messageFor(FrameCodec.formatOf(session)), kind);
+            } catch (IOException e) {
+                log.warn("Could not encode {} frame for connection {}", kind, session.getId(), e);
+            }
+        }
+    }
+
+    public void send(WebSocketSession session, ServerMessage payload, FrameKind kind) {
+        send(session, new OutboundFrame(payload), kind);
+    }
+
+    public int getCapacity() { return capacity; }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+        senders.shutdown();
+    }
+
+    /**
+     * Disconnects clients whose current send has taken longer than the limit.
+     */
+    private void abortStalledSends() {
+        long now = System.nanoTime();
+        for (OutboundQueue queue : queues.values()) {
+            long started = queue.sendStartedNanos;
+            if (started != 0 && now - started > sendTimeLimitNanos && queue.abort()) {
+                sendTimeouts.increment();
+                log.debug("Disconnecting connection {} after a send took over the time limit", queue.session.getId());
+            }
+        }
+    }
+
+    private void recordDrop(FrameKind kind, OverflowPolicy policy) {
+        meterRegistry.counter("codebuddy.ws.outbound.dropped",
+                "kind", kind.name().toLowerCase(), "policy", policy.name().toLowerCase()).increment();
+    }
+
+    private static class Frame {
+        private final WebSocketMessage<?> message;
+        private final FrameKind kind;
+
+        private Frame(WebSocketMessage<?> message, FrameKind kind) {
+            this.message = message;
+            this.kind = kind;
+        }
+    }
+
+    private class OutboundQueue implements Runnable {
+        private final WebSocketSession session;
+        private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        // Set once the connection is being closed for overflow or a stalled send
+        private final AtomicBoolean aborted = new AtomicBoolean();
+        // When the send in progress started, or 0 while none is
+        private volatile long sendStartedNanos;
+
+        private OutboundQueue(WebSocketSession session) {
+            this.session = session;
+        }
+
+        private void offer(WebSocketMessage<?> message, FrameKind kind) {
+            if (aborted.get()) {
+                return;
+            }
+            boolean disconnect = false;
+            synchronized (frames) {
+                if (frames.size() >= capacity) {
+                    OverflowPolicy policy = policies.get(kind);
+                    recordDrop(kind, policy);
+                    if (policy == OverflowPolicy.DISCONNECT) {
+                        disconnect = true;
+                    } else if (!removeOldest(kind)) {
+                        return;
+                    }
+                }
+                if (!disconnect) {
+                    frames.addLast(new Frame(message, kind));
+                    queuedFrames.incrementAndGet();
+                }
+            }
+            if (disconnect) {
+                // The caller is usually a room's mailbox; it must not wait for a stalled socket to close
+                abort();
+                return;
+            }
+            if (draining.compareAndSet(false, true)) {
+                senders.execute(this);
+            }
+        }
+
+        private boolean removeOldest(FrameKind kind) {
+            Iterator<Frame> iterator = frames.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().kind == kind) {
+                    iterator.remove();
+                    queuedFrames.decrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Frame frame;
+                synchronized (frames) {
+                    frame = frames.pollFirst();
+                    if (frame == null) {
+                        draining.set(false);
+                        return;
+                    }
+                    queuedFrames.decrementAndGet();
+                }
+                try {
+                    if (session.isOpen() && !aborted.get()) {
+                        sendStartedNanos = Math.max(1, System.nanoTime());
+                        session.sendMessage(frame.message);
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    log.debug("Dropping connection {} after failed send", session.getId(), e);
+                    clear();
+                    closeQuietly(CloseStatus.SESSION_NOT_RELIABLE);
+                } finally {
+                    sendStartedNanos = 0;
+                }
+            }
+        }
+
+        /**
+         * Drops the queued frames and closes the connection on its own
+         * thread, since the close may block on the same stalled socket.
+         * Returns false if the connection was already being closed.
+         */
+        private boolean abort() {
+            if (!aborted.compareAndSet(false, true)) {
+                return false;
+            }
+            clear();
+            Thread.startVirtualThread(() -> closeQuietly(CloseStatus.SESSION_NOT_RELIABLE));
+            return true;
+        }
+
+        private void clear() {
+            synchronized (frames) {
+                queuedFrames.addAndGet(-frames.size());
+                frames.clear();
+            }
+        }
+
+        private void closeQuietly(CloseStatus status) {
+            try {
+                session.close(status);
+            } catch (IOException e) {
+                // Connection is already gone
+            }
+        }
+    }
+}
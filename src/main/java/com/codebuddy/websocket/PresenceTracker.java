@@ -0,0 +1,99 @@
+package com.codebuddy.websocket;
+
+import com.codebuddy.protocol.ServerMessage;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the latest cursor and selection of every user in every room. Updates
+ * only overwrite state; {@link #drainChanges(String)} hands out what changed
+ * since the previous tick so a room gets at most one presence frame per tick.
+ */
+@Component
+public class PresenceTracker {
+
+    // Map of sessionId -> (userId -> cursor state)
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, CursorState>> rooms = new ConcurrentHashMap<>();
+    // Map of sessionId -> users that left since the last tick
+    private final ConcurrentHashMap<String, Set<String>> departed = new ConcurrentHashMap<>();
+
+    public void update(String sessionId, String userId, int line, int column, JsonNode selection) {
+        rooms.computeIfAbsent(sessionId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(userId, k -> new CursorState())
+                .set(line, column, selection);
+    }
+
+    public void remove(String sessionId, String userId) {
+        ConcurrentHashMap<String, CursorState> users = rooms.get(sessionId);
+        if (users != null && users.remove(userId) != null) {
+            departed.computeIfAbsent(sessionId, k -> ConcurrentHashMap.newKeySet()).add(userId);
+        }
+    }
+
+    public void removeRoom(String sessionId) {
+        rooms.remove(sessionId);
+        departed.remove(sessionId);
+    }
+
+    public Set<String> getRoomIds() {
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        ids.addAll(rooms.keySet());
+        ids.addAll(departed.keySet());
+        return ids;
+    }
+
+    /**
+     * Returns the presence changes of a room since the previous call, or null
+     * when nothing changed.
+     */
+    public ServerMessage.Presence drainChanges(String sessionId) {
+        List<ServerMessage.Cursor> changed = new ArrayList<>();
+        ConcurrentHashMap<String, CursorState> users = rooms.get(sessionId);
+        if (users != null) {
+            users.forEach((userId, state) -> {
+                ServerMessage.Cursor entry = state.publish(userId);
+                if (entry != null) {
+                    changed.add(entry);
+                }
+            });
+        }
+        Set<String> left = departed.remove(sessionId);
+        if (changed.isEmpty() && (left == null || left.isEmpty())) {
+            return null;
+        }
+
+        return new ServerMessage.Presence(changed, left != null ? new ArrayList<>(left) : List.of());
+    }
+
+    private static class CursorState {
+        // Starts out of range so the first update is always published
+        private int line = -1;
+        private int column = -1;
+        private JsonNode selection;
+        private boolean dirty;
+
+        private synchronized void set(int line, int column, JsonNode selection) {
+            if (this.line != line || this.column != column || !Objects.equals(this.selection, selection)) {
+                this.line = line;
+                this.column = column;
+                this.selection = selection;
+                this.dirty = true;
+            }
+        }
+
+        private synchronized ServerMessage.Cursor publish(String userId) {
+            if (!dirty) {
+                return null;
+            }
+            dirty = false;
+            return new ServerMessage.Cursor(userId, line, column, selection);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.codebuddy.websocket;
+
+import com.codebuddy.protocol.ServerMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stamps every durable room broadcast with a per-room sequence number and
+ * keeps the most recent frames in a bounded ring buffer, so a reconnecting
+ * client can be sent just the frames it missed. Sequences are only valid
+ * within an epoch; a client presenting another epoch (or a gap larger than
+ * the buffer) has to be sent a snapshot instead.
+ */
+@Component
+public class RoomReplayBuffer {
+
+    private final int capacity;
+    private final long retentionMs;
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Counter replayed;
+    private final Counter missed;
+
+    public RoomReplayBuffer(MeterRegistry meterRegistry,
+                            @Value("${codebuddy.ws.replay.buffer-size:1024}") int capacity,
+                            @Value("${codebuddy.ws.replay.retention-ms:300000}") long retentionMs) {
+        this.capacity = capacity;
+        this.retentionMs = retentionMs;
+        this.replayed = meterRegistry.counter("codebuddy.ws.replay.resumes", "outcome", "replayed");
+        this.missed = meterRegistry.counter("codebuddy.ws.replay.resumes", "outcome", "snapshot");
+        meterRegistry.gauge("codebuddy.ws.replay.rooms", rooms, Map::size);
+    }
+
+    /**
+     * Assigns the next sequence number of a room to a payload and buffers the
+     * resulting frame. Must be called from the room's mailbox so sequence
+     * order matches delivery order.
+     */
+    public Entry record(String roomId, ServerMessage.Sequenced payload, OutboundMessageDispatcher.FrameKind kind) {
+        Room room = rooms.computeIfAbsent(roomId, k -> new Room());
+        synchronized (room) {
+            long seq = room.lastSeq + 1;
+            Entry entry = new Entry(seq, new OutboundFrame(payload.withSeq(seq)), kind);
+            room.frames[(int) (seq % capacity)] = entry;
+            room.lastSeq = seq;
+            room.touchedMillis = System.currentTimeMillis();
+            return entry;
+        }
+    }
+
+    public String getEpoch(String roomId) {
+        return rooms.computeIfAbsent(roomId, k -> new Room()).epoch;
+    }
+
+    public long getLastSeq(String roomId) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return 0;
+        }
+        synchronized (room) {
+            return room.lastSeq;
+        }
+    }
+
+    /**
+     * Returns the frames after {@code lastSeq}, oldest first, or null when
+     * they can no longer be replayed and the client needs a snapshot.
+     */
+    public List<Entry> framesAfter(String roomId, String epoch, long lastSeq) {
+        Room room = rooms.get(roomId);
+        if (room == null || !room.epoch.equals(epoch)) {
+            missed.increment();
+            return null;
+        }
+        synchronized (room) {
+            room.touchedMillis = System.currentTimeMillis();
+            if (lastSeq > room.lastSeq || room.lastSeq - lastSeq > capacity) {
+                missed.increment();
+                return null;
+            }
+            List<Entry> frames = new ArrayList<>((int) (room.lastSeq - lastSeq));
+            for (long seq = lastSeq + 1; seq <= room.lastSeq; seq++) {
+                Entry entry = room.frames[(int) (seq % capacity)];
+                if (entry == null || entry.seq != seq) {
+                    missed.increment();
+                    return null;
+                }
+                frames.add(entry);
+            }
+            replayed.increment();
+            return frames;
+        }
+    }
+
+    /**
+     * Marks a room as occupied by a connection. An occupied room is never
+     * evicted, however quiet it is: its clients hold the room's epoch and
+     * would drop every frame of a restarted sequence as a duplicate.
+     */
+    public void attach(String roomId, String connectionId) {
+        Room room = rooms.computeIfAbsent(roomId, k -> new Room());
+        synchronized (room) {
+            room.connections.add(connectionId);
+        }
+    }
+
+    /**
+     * Releases a connection's hold on a room. The retention period starts
+     * once the last connection has left.
+     */
+    public void detach(String roomId, String connectionId) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        synchronized (room) {
+            room.connections.remove(connectionId);
+            room.touchedMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Drops a room's buffer, e.g. when its session is deleted.
+     */
+    public void remove(String roomId) {
+        rooms.remove(roomId);
+    }
+
+    /**
+     * Drops buffers of unoccupied rooms that have been quiet for longer than
+     * the retention period. Buffers outlive the room's connections so that a
+     * room whose clients all dropped at once can still resume.
+     */
+    @Scheduled(fixedDelayString = "${codebuddy.ws.replay.retention-ms:300000}")
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - retentionMs;
+        rooms.entrySet().removeIf(entry -> {
+            synchronized (entry.getValue()) {
+                return entry.getValue().connections.isEmpty() && entry.getValue().touchedMillis < cutoff;
+            }
+        });
+    }
+
+    private class Room {
+        private final String epoch = UUID.randomUUID().toString();
+        private final Entry[] frames = new Entry[capacity];
+        private final Set<String> connections = new HashSet<>();
+        private long lastSeq;
+        private long touchedMillis = System.currentTimeMillis();
+    }
+
+    public static class Entry {
+        private final long seq;
+        private final OutboundFrame frame;
+        private final OutboundMessageDispatcher.FrameKind kind;
+
+        private Entry(long seq, OutboundFrame frame, OutboundMessageDispatcher.FrameKind kind) {
+            this.seq = seq;
+            this.frame = frame;
+            this.kind = kind;
+        }
+
+        public long getSeq() { return seq; }
+        public OutboundFrame getFrame() { return frame; }
+        public OutboundMessageDispatcher.FrameKind getKind() { return kind; }
+    }
+}
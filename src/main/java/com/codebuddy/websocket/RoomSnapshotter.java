@@ -0,0 +1,161 @@
+package com.codebuddy.websocket;
+
+import com.codebuddy.model.CodeSession;
+import com.codebuddy.protocol.ServerMessage;
+import com.codebuddy.service.CollaborativeDocument;
+import com.codebuddy.service.DocumentSyncService;
+import com.codebuddy.service.SessionService;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Delivers the current state of a room to a joining client straight from the
+ * live documents. The client first gets a manifest of content hashes and
+ * requests only the files it does not already have; those are sent gzip
+ * compressed and split into chunks. All methods must run in the room's
+ * mailbox so the manifest and chunks line up with the room's sequence.
+ */
+@Component
+public class RoomSnapshotter {
+
+    @Autowired
+    private SessionService sessionService;
+
+    @Autowired
+    private DocumentSyncService documentSyncService;
+
+    @Autowired
+    private OutboundMessageDispatcher outboundDispatcher;
+
+    @Autowired
+    private RoomReplayBuffer replayBuffer;
+
+    private final int chunkBytes;
+    private final DistributionSummary compressionRatio;
+    // Compressed content by hash, so a burst of joiners compresses each file once
+    private final Map<String, byte[]> compressed;
+
+    public RoomSnapshotter(MeterRegistry meterRegistry,
+                           @Value("${codebuddy.ws.snapshot.chunk-bytes:65536}") int chunkBytes,
+                           @Value("${codebuddy.ws.snapshot.cache-entries:256}") int cacheEntries) {
+        this.chunkBytes = chunkBytes;
+        this.compressionRatio = DistributionSummary.builder("codebuddy.ws.snapshot.compression.ratio")
+                .description("Uncompressed to compressed size of snapshot files")
+                .register(meterRegistry);
+        this.compressed = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > cacheEntries;
+            }
+        };
+    }
+
+    /**
+     * Sends the hash, revision and size of every file in the room.
+     */
+    public void sendManifest(WebSocketSession session, String sessionId) {
+        List<ServerMessage.ManifestFile> files = new ArrayList<>();
+        for (String filename : filenames(sessionId)) {
+            CollaborativeDocument document = documentSyncService.getDocument(sessionId, filename);
+            synchronized (document) {
+                files.add(new ServerMessage.ManifestFile(filename, document.getContentHash(),
+                        document.getRevision(), document.getContent().length()));
+            }
+        }
+        outboundDispatcher.send(session, new ServerMessage.RoomManifest(
+                replayBuffer.getEpoch(sessionId), replayBuffer.getLastSeq(sessionId), files),
+                OutboundMessageDispatcher.FrameKind.EDIT);
+    }
+
+    /**
+     * Sends the requested files as compressed chunks. At most half an
+     * outbound queue of chunks goes out per request; files that did not fit
+     * are listed in the completion frame for the client to request again.
+     */
+    public void sendFiles(WebSocketSession session, String sessionId, List<String> requested) {
+        Set<String> known = filenames(sessionId);
+        int budget = Math.max(1, outboundDispatcher.getCapacity() / 2);
+        List<String> remaining = new ArrayList<>();
+        int sent = 0;
+        for (String filename : requested) {
+            if (!known.contains(filename)) {
+                continue;
+            }
+            if (sent >= budget) {
+                remaining.add(filename);
+                continue;
+            }
+            sent += sendFile(session, sessionId, filename);
+        }
+        outboundDispatcher.send(session, new ServerMessage.SnapshotComplete(remaining),
+                OutboundMessageDispatcher.FrameKind.EDIT);
+    }
+
+    private int sendFile(WebSocketSession session, String sessionId, String filename) {
+        CollaborativeDocument document = documentSyncService.getDocument(sessionId, filename);
+        String content;
+        String hash;
+        long revision;
+        synchronized (document) {
+            content = document.getContent();
+            hash = document.getContentHash();
+            revision = document.getRevision();
+        }
+        byte[] data = compress(hash, content);
+        int count = Math.max(1, (data.length + chunkBytes - 1) / chunkBytes);
+        for (int index = 0; index < count; index++) {
+            int from = index * chunkBytes;
+            byte[] part = Arrays.copyOfRange(data, from, Math.min(data.length, from + chunkBytes));
+            outboundDispatcher.send(session, new ServerMessage.SnapshotChunk(
+                    filename, revision, hash, index, count, "gzip", part),
+                    OutboundMessageDispatcher.FrameKind.EDIT);
+        }
+        return count;
+    }
+
+    private byte[] compress(String hash, String content) {
+        synchronized (compressed) {
+            byte[] cached = compressed.get(hash);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(raw);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] data = out.toByteArray();
+        compressionRatio.record(data.length > 0 ? (double) raw.length / data.length : 1);
+        synchronized (compressed) {
+            compressed.put(hash, data);
+        }
+        return data;
+    }
+
+    private Set<String> filenames(String sessionId) {
+        return sessionService.getSession(sessionId)
+                .map(CodeSession::getFiles)
+                .map(Map::keySet)
+                .map(Set::copyOf)
+                .orElse(Set.of());
+    }
+}
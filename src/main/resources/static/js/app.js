@@ -1,5 +1,119 @@
 // CodeBuddy.ai Web Application JavaScript
 
+// Text operations in the server's wire format: a positive number retains that many
+// characters, a negative number deletes that many, a string inserts it
+const TextOps = {
+    // Operation turning oldText into newText; only the span between the common prefix and suffix changes
+    replace(oldText, newText) {
+        const max = Math.min(oldText.length, newText.length);
+        let prefix = 0;
+        while (prefix < max && oldText[prefix] === newText[prefix]) prefix++;
+        let suffix = 0;
+        while (suffix < max - prefix
+                && oldText[oldText.length - 1 - suffix] === newText[newText.length - 1 - suffix]) suffix++;
+        const ops = [];
+        if (prefix > 0) ops.push(prefix);
+        const inserted = newText.slice(prefix, newText.length - suffix);
+        if (inserted) ops.push(inserted);
+        const deleted = oldText.length - prefix - suffix;
+        if (deleted > 0) ops.push(-deleted);
+        if (suffix > 0) ops.push(suffix);
+        return ops;
+    },
+
+    baseLength(ops) {
+        return ops.reduce((n, op) => typeof op === 'string' ? n : n + Math.abs(op), 0);
+    },
+
+    apply(text, ops) {
+        if (this.baseLength(ops) !== text.length) {
+            throw new Error('Operation does not fit the document');
+        }
+        let result = '';
+        let index = 0;
+        for (const op of ops) {
+            if (typeof op === 'string') {
+                result += op;
+            } else if (op > 0) {
+                result += text.slice(index, index + op);
+                index += op;
+            } else {
+                index -= op;
+            }
+        }
+        return result;
+    },
+
+    // Same rules as TextOperation.transform on the server: on a tie, a's insert goes first
+    transform(a, b) {
+        if (this.baseLength(a) !== this.baseLength(b)) {
+            throw new Error('Operations have different base lengths');
+        }
+        const aPrime = [];
+        const bPrime = [];
+        const push = (ops, op) => {
+            const last = ops.length - 1;
+            if (typeof op === 'string') {
+                if (last >= 0 && typeof ops[last] === 'string') ops[last] += op;
+                else if (last >= 0 && ops[last] < 0) {
+                    // Inserts stay ahead of deletes, as on the server
+                    if (last > 0 && typeof ops[last - 1] === 'string') ops[last - 1] += op;
+                    else ops.splice(last, 0, op);
+                } else ops.push(op);
+            } else if (op !== 0) {
+                if (last >= 0 && typeof ops[last] === 'number' && Math.sign(ops[last]) === Math.sign(op)) ops[last] += op;
+                else ops.push(op);
+            }
+        };
+        let i1 = 0;
+        let i2 = 0;
+        let op1 = a[i1++];
+        let op2 = b[i2++];
+        while (op1 !== undefined || op2 !== undefined) {
+            if (typeof op1 === 'string') {
+                push(aPrime, op1);
+                push(bPrime, op1.length);
+                op1 = a[i1++];
+                continue;
+            }
+            if (typeof op2 === 'string') {
+                push(aPrime, op2.length);
+                push(bPrime, op2);
+                op2 = b[i2++];
+                continue;
+            }
+            if (op1 === undefined || op2 === undefined) {
+                throw new Error('Operations do not cover the same document');
+            }
+            let min;
+            if (op1 > 0 && op2 > 0) {
+                min = Math.min(op1, op2);
+                push(aPrime, min);
+                push(bPrime, min);
+                op1 -= min;
+                op2 -= min;
+            } else if (op1 < 0 && op2 < 0) {
+                min = Math.min(-op1, -op2);
+                op1 += min;
+                op2 += min;
+            } else if (op1 < 0) {
+                min = Math.min(-op1, op2);
+                push(aPrime, -min);
+                op1 += min;
+                op2 -= min;
+            } else {
+                min = Math.min(op1, -op2);
+                push(bPrime, -min);
+                op1 -= min;
+                op2 += min;
+            }
+            if (op1 === 0) op1 = a[i1++];
+            if (op2 === 0) op2 = b[i2++];
+        }
+        return [aPrime, bPrime];
+    }
+};
+
 class CodeBuddyApp {
     constructor() {
         this.editor = null;
@@ -7,6 +121,21 @@ class CodeBuddyApp {
         this.chatWebSocket = null;
         this.sessionId = null;
         this.isConnected = false;
+        // Last room sequence seen on the code socket, used to resume after a reconnect
+        this.replayEpoch = null;
+        this.lastSeq = 0;
+        // Snapshot chunks being assembled, by filename
+        this.incomingFiles = {};
+        // Operation-based sync of the open file: last server revision seen, the operation
+        // awaiting its ack, and the text with that operation applied (the editor adds unsent edits)
+        this.filename = 'Main.java';
+        this.revision = 0;
+        this.outstanding = null;
+        this.sentText = '';
+        this.applyingRemote = false;
+        // Cursor of the oldest chat message shown; null once the whole history is loaded
+        this.chatCursor = null;
+        this.loadingChatHistory = false;
         
         this.init();
     }
@@ -31,10 +160,10 @@ class CodeBuddyApp {
                 automaticLayout: true
             });
 
-            // Listen for content changes
+            // Local edits go out as operations; remote ones applied here are not echoed back
             this.editor.onDidChangeModelContent(() => {
-                if (this.isConnected && this.codeWebSocket) {
-                    this.sendCodeChange();
+                if (!this.applyingRemote && this.isConnected && this.codeWebSocket && this.outstanding === null) {
+                    this.sendPendingEdits();
                 }
             });
         });
@@ -62,6 +191,11 @@ class CodeBuddyApp {
                 this.sendMessage();
             }
         });
+        document.getElementById('chatMessages').addEventListener('scroll', (e) => {
+            if (e.target.scrollTop === 0) {
+                this.loadEarlierMessages();
+            }
+        });
 
         // File controls
         document.getElementById('addFileBtn').addEventListener('click', () => this.addFile());
@@ -123,12 +257,25 @@ public class HelloWorld {
         }
 
         try {
-            // Connect to code WebSocket
-            this.codeWebSocket = new WebSocket(`ws://localhost:8080/ws/code/${this.sessionId}`);
+            // Connect to code WebSocket, resuming from the last seen sequence when reconnecting to the same room
+            if (this.replaySessionId !== this.sessionId) {
+                this.replayEpoch = null;
+                this.lastSeq = 0;
+                this.revision = 0;
+                this.outstanding = null;
+                this.sentText = '';
+            }
+            this.replaySessionId = this.sessionId;
+            const resume = this.replayEpoch ? `?epoch=${this.replayEpoch}&lastSeq=${this.lastSeq}` : '';
+            this.codeWebSocket = new WebSocket(`ws://localhost:8080/ws/code/${this.sessionId}${resume}`);
             
             this.codeWebSocket.onopen = () => {
                 console.log('Connected to code WebSocket');
                 this.updateConnectionStatus(true);
+                // An operation sent before the drop may or may not have been applied; start from the server's text
+                if (this.outstanding !== null) {
+                    this.requestResync();
+                }
             };
 
             this.codeWebSocket.onmessage = (event) => {
@@ -191,29 +338,221 @@ public class HelloWorld {
         document.getElementById('sessionId').disabled = connected;
     }
 
-    sendCodeChange() {
+    // Sends the edits made since the last operation; at most one operation awaits its ack at a time
+    sendPendingEdits() {
+        const text = this.editor.getValue();
+        if (text === this.sentText || !this.codeWebSocket || this.codeWebSocket.readyState !== WebSocket.OPEN) {
+            return;
+        }
+        const ops = TextOps.replace(this.sentText, text);
+        this.codeWebSocket.send(JSON.stringify({
+            type: 'code_op',
+            filename: this.filename,
+            revision: this.revision,
+            userId: 'web-user',
+            ops: ops
+        }));
+        this.outstanding = ops;
+        this.sentText = text;
+    }
+
+    acknowledge(revision) {
+        this.revision = Math.max(this.revision, revision);
+        this.outstanding = null;
+        this.sendPendingEdits();
+    }
+
+    // Transforms another client's operation past our own in-flight and unsent edits, then applies it
+    applyRemoteOperation(revision, ops) {
+        if (revision <= this.revision) {
+            return true;
+        }
+        if (revision !== this.revision + 1) {
+            return false;
+        }
+        try {
+            let remote = ops;
+            let outstanding = this.outstanding;
+            if (outstanding !== null) {
+                [outstanding, remote] = TextOps.transform(outstanding, remote);
+            }
+            const text = this.editor.getValue();
+            const forEditor = TextOps.transform(TextOps.replace(this.sentText, text), remote)[1];
+            const sentText = TextOps.apply(this.sentText, remote);
+            TextOps.apply(text, forEditor);
+            this.outstanding = outstanding;
+            this.sentText = sentText;
+            this.revision = revision;
+            this.applyToEditor(forEditor);
+            return true;
+        } catch (e) {
+            return false;
+        }
+    }
+
+    // Applies an operation as Monaco edits, so cursors and selections move with the text around them
+    applyToEditor(ops) {
+        const model = this.editor.getModel();
+        const edits = [];
+        let index = 0;
+        let pending = null;
+        const flush = () => {
+            if (pending) {
+                edits.push({
+                    range: monaco.Range.fromPositions(model.getPositionAt(pending.start), model.getPositionAt(pending.end)),
+                    text: pending.text
+                });
+                pending = null;
+            }
+        };
+        for (const op of ops) {
+            if (typeof op === 'string') {
+                pending = pending || { start: index, end: index, text: '' };
+                pending.text += op;
+            } else if (op > 0) {
+                flush();
+                index += op;
+            } else {
+                pending = pending || { start: index, end: index, text: '' };
+                index -= op;
+                pending.end = index;
+            }
+        }
+        flush();
+        this.applyingRemote = true;
+        try {
+            model.pushEditOperations([], edits, () => null);
+        } finally {
+            this.applyingRemote = false;
+        }
+    }
+
+    // Takes the server's text as is, dropping edits it has not confirmed
+    resetDocument(content, revision) {
+        this.revision = revision;
+        this.outstanding = null;
+        this.sentText = content;
+        if (this.editor && this.editor.getValue() !== content) {
+            this.applyingRemote = true;
+            try {
+                this.editor.setValue(content);
+            } finally {
+                this.applyingRemote = false;
+            }
+        }
+    }
+
+    requestResync() {
         if (this.codeWebSocket && this.codeWebSocket.readyState === WebSocket.OPEN) {
-            const message = {
-                type: 'code_change',
-                filename: 'Main.java',
-                content: this.editor.getValue(),
-                userId: 'web-user'
-            };
-            this.codeWebSocket.send(JSON.stringify(message));
+            this.codeWebSocket.send(JSON.stringify({ type: 'snapshot_request', files: [this.filename] }));
         }
     }
 
     handleCodeMessage(message) {
+        // Room frames are sequenced; anything at or below the last seen seq is a duplicate of a replay
+        const controlTypes = ['connection_established', 'resumed', 'room_manifest', 'code_op_ack'];
+        if (message.seq !== undefined && !controlTypes.includes(message.type)) {
+            if (message.seq <= this.lastSeq) {
+                return;
+            }
+            this.lastSeq = message.seq;
+        }
+
         switch (message.type) {
+            case 'code_op':
+                if (message.filename === this.filename && !this.applyRemoteOperation(message.revision, message.ops)) {
+                    // Out of step with the room; the snapshot resets the editor to the server's text
+                    this.requestResync();
+                }
+                break;
+            case 'code_op_ack':
+                this.lastSeq = Math.max(this.lastSeq, message.seq);
+                if (message.filename === this.filename) {
+                    this.acknowledge(message.revision);
+                }
+                break;
+            case 'code_resync':
+                if (message.filename === this.filename) {
+                    this.resetDocument(message.content, message.revision);
+                }
+                break;
             case 'code_change':
-                // Update editor content (avoid infinite loops)
-                if (message.userId !== 'web-user') {
-                    this.editor.setValue(message.content);
+                // Full-content write from an older client: applied like an operation when nothing is in flight
+                if (message.filename === this.filename && message.revision > this.revision
+                        && (this.outstanding !== null
+                            || !this.applyRemoteOperation(message.revision, TextOps.replace(this.sentText, message.content)))) {
+                    this.resetDocument(message.content, message.revision);
                 }
                 break;
             case 'connection_established':
                 console.log('Code connection established');
+                // A new epoch restarts the room's sequence; the manifest that follows resyncs the files
+                if (message.epoch !== this.replayEpoch) {
+                    this.lastSeq = 0;
+                }
+                break;
+            case 'resumed':
+                this.replayEpoch = message.epoch;
+                this.lastSeq = Math.max(this.lastSeq, message.seq);
                 break;
+            case 'room_manifest':
+                this.replayEpoch = message.epoch;
+                this.lastSeq = message.seq;
+                this.requestChangedFiles(message.files);
+                break;
+            case 'snapshot_chunk':
+                this.receiveSnapshotChunk(message);
+                break;
+            case 'snapshot_complete':
+                if (message.remaining.length > 0) {
+                    this.codeWebSocket.send(JSON.stringify({ type: 'snapshot_request', files: message.remaining }));
+                }
+                break;
+        }
+    }
+
+    // Files are cached in localStorage by content hash, so unchanged files are not downloaded again
+    requestChangedFiles(files) {
+        const changed = [];
+        for (const file of files) {
+            const cached = localStorage.getItem(`codebuddy:file:${file.hash}`);
+            if (cached === null) {
+                changed.push(file.filename);
+            } else {
+                this.applySnapshotFile(file.filename, cached, file.revision);
+            }
+        }
+        if (changed.length > 0) {
+            this.codeWebSocket.send(JSON.stringify({ type: 'snapshot_request', files: changed }));
+        }
+    }
+
+    async receiveSnapshotChunk(chunk) {
+        const parts = chunk.index === 0 ? [] : this.incomingFiles[chunk.filename];
+        if (!parts) {
+            return;
+        }
+        // Chunk data arrives base64 encoded over JSON
+        parts.push(Uint8Array.from(atob(chunk.data), c => c.charCodeAt(0)));
+        if (chunk.index + 1 < chunk.count) {
+            this.incomingFiles[chunk.filename] = parts;
+            return;
+        }
+        delete this.incomingFiles[chunk.filename];
+
+        const stream = new Blob(parts).stream().pipeThrough(new DecompressionStream('gzip'));
+        const content = await new Response(stream).text();
+        try {
+            localStorage.setItem(`codebuddy:file:${chunk.hash}`, content);
+        } catch (e) {
+            // Storage full; the file is simply fetched again next time
+        }
+        this.applySnapshotFile(chunk.filename, content, chunk.revision);
+    }
+
+    applySnapshotFile(filename, content, revision) {
+        if (filename === this.filename) {
+            this.resetDocument(content, revision);
         }
     }
 
@@ -240,10 +579,44 @@ public class HelloWorld {
     handleChatMessage(message) {
         if (message.type === 'chat_message' && message.userId !== 'web-user') {
             this.addChatMessage(message.username, message.content, new Date(), false);
+        } else if (message.type === 'chat_history') {
+            // Sent on every (re)connect; it replaces whatever was shown before
+            document.getElementById('chatMessages').innerHTML = '';
+            message.messages.forEach(m =>
+                this.addChatMessage(m.username, m.content, new Date(m.timestamp), m.userId === 'web-user'));
+            this.chatCursor = message.nextCursor;
+        }
+    }
+
+    async loadEarlierMessages() {
+        if (!this.chatCursor || this.loadingChatHistory) {
+            return;
+        }
+        this.loadingChatHistory = true;
+        try {
+            const response = await fetch(`/api/sessions/${this.sessionId}/messages?before=${encodeURIComponent(this.chatCursor)}`);
+            if (!response.ok) {
+                return;
+            }
+            const page = await response.json();
+            const chatMessages = document.getElementById('chatMessages');
+            const previousHeight = chatMessages.scrollHeight;
+            // Newest first, so the oldest message ends up on top
+            for (let i = page.messages.length - 1; i >= 0; i--) {
+                const m = page.messages[i];
+                this.addChatMessage(m.username, m.content, new Date(m.timestamp), m.userId === 'web-user', true);
+            }
+            // Keep the message the user was looking at in place
+            chatMessages.scrollTop = chatMessages.scrollHeight - previousHeight;
+            this.chatCursor = page.nextCursor;
+        } catch (error) {
+            console.error('Failed to load chat history:', error);
+        } finally {
+            this.loadingChatHistory = false;
         }
     }
 
-    addChatMessage(username, content, timestamp, isOwn) {
+    addChatMessage(username, content, timestamp, isOwn, prepend = false) {
         const chatMessages = document.getElementById('chatMessages');
         const messageDiv = document.createElement('div');
         messageDiv.className = 'message';
@@ -266,8 +639,12 @@ public class HelloWorld {
             messageDiv.style.backgroundColor = '#1e3a5f';
         }
         
-        chatMessages.appendChild(messageDiv);
-        chatMessages.scrollTop = chatMessages.scrollHeight;
+        if (prepend) {
+            chatMessages.insertBefore(messageDiv, chatMessages.firstChild);
+        } else {
+            chatMessages.appendChild(messageDiv);
+            chatMessages.scrollTop = chatMessages.scrollHeight;
+        }
     }
 
     async explainCode() {
@@ -382,11 +759,13 @@ public class HelloWorld {
         }
     }
 
+    // Streams the answer into the AI panel while it is generated; resolves with the complete response
     async callAiApi(endpoint, data) {
-        const response = await fetch(endpoint, {
+        const response = await fetch(endpoint + '/stream', {
             method: 'POST',
             headers: {
-                'Content-Type': 'application/json'
+                'Content-Type': 'application/json',
+                'Accept': 'text/event-stream'
             },
             body: JSON.stringify(data)
         });
@@ -395,7 +774,52 @@ public class HelloWorld {
             throw new Error(`HTTP error! status: ${response.status}`);
         }
         
-        return await response.json();
+        const reader = response.body.getReader();
+        const decoder = new TextDecoder();
+        let buffer = '';
+        let text = '';
+        let code = null;
+        let result = null;
+        while (true) {
+            const { value, done } = await reader.read();
+            if (done) break;
+            buffer += decoder.decode(value, { stream: true });
+            let boundary;
+            while ((boundary = buffer.indexOf('\n\n')) >= 0) {
+                const event = this.parseSseEvent(buffer.slice(0, boundary));
+                buffer = buffer.slice(boundary + 2);
+                if (event.name === 'token') {
+                    text += event.data.text;
+                    this.displayAiResponse(text, code);
+                } else if (event.name === 'code') {
+                    code = code || event.data.code;
+                    this.displayAiResponse(text, code);
+                } else if (event.name === 'done') {
+                    result = event.data;
+                }
+            }
+        }
+        
+        if (!result) {
+            throw new Error('AI response ended early');
+        }
+        if (!result.success) {
+            throw new Error(result.error);
+        }
+        return result;
+    }
+
+    parseSseEvent(block) {
+        let name = 'message';
+        const data = [];
+        for (const line of block.split('\n')) {
+            if (line.startsWith('event:')) {
+                name = line.slice(6).trim();
+            } else if (line.startsWith('data:')) {
+                data.push(line.slice(5).replace(/^ /, ''));
+            }
+        }
+        return { name, data: data.length ? JSON.parse(data.join('\n')) : null };
     }
 
     showAiPanel() {
@@ -0,0 +1,140 @@
+package com.codebuddy.bench;
+
+import com.codebuddy.service.AIGateway;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AIGateway} against a local stub of the chat completions API that
+ * answers after a fixed delay. The baseline does what the service did
+ * before the gateway: a new client and connection per call, sent from a
+ * blocked platform thread. Reports throughput, latency, the peak number of
+ * threads and how many connections the stub saw.
+ */
+public class AIGatewayBench {
+
+    private static final int CALLS = 2_000;
+    private static final int CONCURRENCY = 64;
+    private static final long UPSTREAM_MILLIS = 50;
+    private static final byte[] REPLY = "{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"ok\"}}]}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/v1/chat/completions", exchange -> {
+            connections.add(exchange.getRemoteAddress());
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(UPSTREAM_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, REPLY.length);
+            exchange.getResponseBody().write(REPLY);
+            exchange.close();
+        });
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions";
+        try {
+            // First round of each warms up, second is reported
+            for (int round = 0; round < 2; round++) {
+                boolean report = round == 1;
+                baseline(url, report);
+                gateway(url, report);
+            }
+        } finally {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+    }
+
+    private static void baseline(String url, boolean report) throws Exception {
+        long[] latencies = new long[CALLS];
+        ExecutorService callers = Executors.newFixedThreadPool(CONCURRENCY);
+        Run run = new Run();
+        CompletableFuture<?>[] done = new CompletableFuture<?>[CALLS];
+        for (int i = 0; i < CALLS; i++) {
+            int index = i;
+            long submitted = System.nanoTime();
+            done[i] = CompletableFuture.runAsync(() -> {
+                try (HttpClient client = HttpClient.newHttpClient()) {
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofString("{\"model\":\"stub\"}"))
+                            .build();
+                    client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                latencies[index] = System.nanoTime() - submitted;
+            }, callers);
+        }
+        CompletableFuture.allOf(done).get(10, TimeUnit.MINUTES);
+        callers.shutdown();
+        run.finish("client per call", latencies, report);
+    }
+
+    private static void gateway(String url, boolean report) throws Exception {
+        AIGateway gateway = new AIGateway(new SimpleMeterRegistry(), CONCURRENCY, CALLS, 5_000, 60_000);
+        ReflectionTestUtils.setField(gateway, "apiKey", "bench");
+        ReflectionTestUtils.setField(gateway, "apiUrl", url);
+        long[] latencies = new long[CALLS];
+        Run run = new Run();
+        CompletableFuture<?>[] done = new CompletableFuture<?>[CALLS];
+        for (int i = 0; i < CALLS; i++) {
+            int index = i;
+            long submitted = System.nanoTime();
+            done[i] = gateway.complete("prompt " + i)
+                    .thenRun(() -> latencies[index] = System.nanoTime() - submitted);
+        }
+        CompletableFuture.allOf(done).get(10, TimeUnit.MINUTES);
+        gateway.close();
+        run.finish("pooled gateway", latencies, report);
+    }
+
+    private static class Run {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final long start = System.nanoTime();
+
+        private Run() {
+            threads.resetPeakThreadCount();
+            connections.clear();
+        }
+
+        private void finish(String name, long[] latencies, boolean report) {
+            long elapsed = System.nanoTime() - start;
+            if (!report) {
+                return;
+            }
+            Arrays.sort(latencies);
+            System.out.printf("%-16s %7.0f calls/s  p50 %7.1f ms  p99 %7.1f ms  peak threads %4d  connections %4d%n",
+                    name,
+                    latencies.length / (elapsed / 1e9),
+                    latencies[latencies.length / 2] / 1e6,
+                    latencies[(int) (latencies.length * 0.99)] / 1e6,
+                    threads.getPeakThreadCount(),
+                    connections.size());
+        }
+    }
+}
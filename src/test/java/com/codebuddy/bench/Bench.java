@@ -0,0 +1,64 @@
+package com.codebuddy.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Minimal timing loop for the benchmark harnesses in this package. The
+ * harnesses are plain main classes, run from the IDE or with
+ * {@code java -cp <test classpath> com.codebuddy.bench.<Name>}; they are not
+ * part of the test suite. Each measurement warms up first, then reports the
+ * mean time and the bytes allocated per operation on the calling thread.
+ */
+final class Bench {
+
+    /**
+     * One operation; the returned value is consumed so the JIT cannot drop the work.
+     */
+    @FunctionalInterface
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Written so results stay observable
+    static volatile int sink;
+
+    private Bench() {
+    }
+
+    static Result measure(String name, int iterations, Op op) throws Exception {
+        for (int i = 0; i < Math.max(1_000, iterations / 5); i++) {
+            consume(op.run());
+        }
+        long threadId = Thread.currentThread().threadId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            consume(op.run());
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        Result result = new Result(name, (double) elapsed / iterations, (double) allocated / iterations);
+        System.out.println(result);
+        return result;
+    }
+
+    static void header(String title) {
+        System.out.println();
+        System.out.println("== " + title);
+    }
+
+    private static void consume(Object value) {
+        sink += value != null ? value.hashCode() : 0;
+    }
+
+    record Result(String name, double nanosPerOp, double bytesPerOp) {
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-48s %12.1f ns/op %12.0f B/op", name, nanosPerOp, bytesPerOp);
+        }
+    }
+}
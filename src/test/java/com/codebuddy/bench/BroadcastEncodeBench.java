@@ -0,0 +1,49 @@
+package com.codebuddy.bench;
+
+import com.codebuddy.protocol.MessageCodec;
+import com.codebuddy.protocol.ServerMessage;
+import com.codebuddy.protocol.WireFormat;
+import com.codebuddy.websocket.OutboundFrame;
+
+import java.util.List;
+
+/**
+ * Cost of one room broadcast: encoding the message for every recipient, as
+ * before, against encoding it once per wire format in a shared
+ * {@link OutboundFrame}. A quarter of the recipients use CBOR, the rest JSON.
+ */
+public class BroadcastEncodeBench {
+
+    public static void main(String[] args) throws Exception {
+        ServerMessage.CodeOp operation = new ServerMessage.CodeOp("src/main/java/Main.java", 4711,
+                List.of(1280, "        System.out.println(\"hello\");\n", -12, 20480),
+                "alice", System.currentTimeMillis(), 9001);
+
+        for (int recipients : new int[] { 2, 10, 50, 200 }) {
+            WireFormat[] formats = new WireFormat[recipients];
+            for (int i = 0; i < recipients; i++) {
+                formats[i] = i % 4 == 0 ? WireFormat.CBOR : WireFormat.JSON;
+            }
+            Bench.header(recipients + " recipients");
+            int iterations = 2_000_000 / recipients;
+            Bench.Result perRecipient = Bench.measure("encode per recipient", iterations, () -> {
+                int bytes = 0;
+                for (WireFormat format : formats) {
+                    bytes += MessageCodec.encode(format, operation).length;
+                }
+                return bytes;
+            });
+            Bench.Result shared = Bench.measure("shared frame", iterations, () -> {
+                OutboundFrame frame = new OutboundFrame(operation);
+                int messages = 0;
+                for (WireFormat format : formats) {
+                    messages += frame.messageFor(format).getPayloadLength();
+                }
+                return messages;
+            });
+            System.out.printf("speedup %.1fx, allocation %.1fx less%n",
+                    perRecipient.nanosPerOp() / shared.nanosPerOp(),
+                    perRecipient.bytesPerOp() / Math.max(1, shared.bytesPerOp()));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.codebuddy.bench;
+
+import com.codebuddy.service.RoomExecutor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load comparison of the two execution modes behind
+ * {@code spring.threads.virtual.enabled}: many rooms whose tasks mostly
+ * wait on a blocking call, the shape of room work that loads documents and
+ * appends to the edit log, run through {@link RoomExecutor} on its platform
+ * pool and on virtual threads. Reports throughput, latency and the peak
+ * number of platform threads.
+ */
+public class ExecutionModeBench {
+
+    private static final int ROOMS = 2_000;
+    private static final int TASKS_PER_ROOM = 10;
+    private static final long BLOCKING_MILLIS = 5;
+    private static final int CPU_WORK = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        // First round of each warms up, second is reported
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            run("platform", false, report);
+            run("virtual", true, report);
+        }
+    }
+
+    private static void run(String mode, boolean virtualThreads, boolean report) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        RoomExecutor executor = new RoomExecutor(new SimpleMeterRegistry(), 0, virtualThreads);
+        long[] latencies = new long[ROOMS * TASKS_PER_ROOM];
+        CompletableFuture<?>[] done = new CompletableFuture<?>[latencies.length];
+
+        long start = System.nanoTime();
+        for (int task = 0; task < TASKS_PER_ROOM; task++) {
+            for (int room = 0; room < ROOMS; room++) {
+                int index = task * ROOMS + room;
+                long submitted = System.nanoTime();
+                done[index] = executor.submit("room-" + room, () -> {
+                    block();
+                    int work = spin();
+                    latencies[index] = System.nanoTime() - submitted;
+                    return work;
+                });
+            }
+        }
+        CompletableFuture.allOf(done).get(10, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        if (report) {
+            Arrays.sort(latencies);
+            System.out.printf("%-9s %8.0f tasks/s  p50 %7.1f ms  p99 %7.1f ms  peak platform threads %d%n",
+                    mode,
+                    latencies.length / (elapsed / 1e9),
+                    latencies[latencies.length / 2] / 1e6,
+                    latencies[(int) (latencies.length * 0.99)] / 1e6,
+                    threads.getPeakThreadCount());
+        }
+    }
+
+    private static void block() {
+        try {
+            Thread.sleep(BLOCKING_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int spin() {
+        int value = 0;
+        for (int i = 0; i < CPU_WORK; i++) {
+            value = value * 31 + i;
+        }
+        return value;
+    }
+}
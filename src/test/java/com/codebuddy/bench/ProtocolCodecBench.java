@@ -0,0 +1,72 @@
+package com.codebuddy.bench;
+
+import com.codebuddy.protocol.ClientMessage;
+import com.codebuddy.protocol.MessageCodec;
+import com.codebuddy.protocol.ServerMessage;
+import com.codebuddy.protocol.WireFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The typed protocol layer against the JsonNode and Map handling it
+ * replaced: inbound frames decoded in one streaming pass versus a tree
+ * that is then picked apart, and outbound records written with a cached
+ * writer versus a Map serialized field by field.
+ */
+public class ProtocolCodecBench {
+
+    private static final ObjectMapper MAPPER = WireFormat.JSON.getMapper();
+
+    public static void main(String[] args) throws Exception {
+        String codeOp = MessageCodec.encodeText(new ClientMessage.CodeOp("Main.java", 4711, "alice",
+                List.of(1280, "        System.out.println(\"hello\");\n", -12, 20480)));
+        String cursor = "{\"type\":\"cursor_position\",\"userId\":\"alice\",\"line\":120,\"column\":14,"
+                + "\"selection\":{\"startLineNumber\":120,\"startColumn\":4,\"endLineNumber\":121,\"endColumn\":9}}";
+
+        for (String frame : List.of(codeOp, cursor)) {
+            Bench.header("decode " + MAPPER.readTree(frame).get("type").asText());
+            Bench.measure("streaming into the record", 2_000_000, () -> MessageCodec.decodeClient(frame));
+            Bench.measure("JsonNode tree", 2_000_000, () -> decodeFromTree(frame));
+        }
+
+        ServerMessage.CodeOp outbound = new ServerMessage.CodeOp("Main.java", 4711,
+                List.of(1280, "        System.out.println(\"hello\");\n", -12, 20480), "alice",
+                1_700_000_000_000L, 9001);
+        Bench.header("encode code_op");
+        Bench.measure("record with cached writer", 2_000_000, () -> MessageCodec.encodeText(outbound));
+        Bench.measure("Map", 2_000_000, () -> MAPPER.writeValueAsString(asMap(outbound)));
+    }
+
+    // What the handlers used to do: build the tree, then read the fields they need from it
+    private static Object decodeFromTree(String frame) throws Exception {
+        JsonNode node = MAPPER.readTree(frame);
+        String type = node.get("type").asText();
+        if (type.equals(ClientMessage.CodeOp.TYPE)) {
+            List<Object> ops = new ArrayList<>();
+            for (JsonNode component : node.get("ops")) {
+                ops.add(component.isTextual() ? component.asText() : component.asInt());
+            }
+            return new ClientMessage.CodeOp(node.get("filename").asText(), node.get("revision").asLong(),
+                    node.get("userId").asText(), ops);
+        }
+        return new ClientMessage.CursorPosition(node.get("userId").asText(), node.get("line").asInt(),
+                node.get("column").asInt(), node.get("selection"));
+    }
+
+    private static Map<String, Object> asMap(ServerMessage.CodeOp operation) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("type", "code_op");
+        map.put("filename", operation.filename());
+        map.put("revision", operation.revision());
+        map.put("ops", operation.ops());
+        map.put("userId", operation.userId());
+        map.put("timestamp", operation.timestamp());
+        map.put("seq", operation.seq());
+        return map;
+    }
+}
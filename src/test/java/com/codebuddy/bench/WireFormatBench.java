@@ -0,0 +1,51 @@
+package com.codebuddy.bench;
+
+import com.codebuddy.protocol.MessageCodec;
+import com.codebuddy.protocol.ServerMessage;
+import com.codebuddy.protocol.WireFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Payload size, encode time and parse time of typical server frames in
+ * JSON and CBOR: a small edit, a presence tick, a chat history page and a
+ * compressed snapshot chunk, whose bytes JSON has to carry as base64.
+ */
+public class WireFormatBench {
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+        List<ServerMessage.Cursor> cursors = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            cursors.add(new ServerMessage.Cursor("user-" + i, random.nextInt(2000), random.nextInt(120), null));
+        }
+        List<ServerMessage.ChatMessage> chat = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            chat.add(new ServerMessage.ChatMessage(Integer.toHexString(random.nextInt()), "user-" + i % 5,
+                    "User " + i % 5, "Message number " + i + " about the build", "2026-01-01T12:00:" + i % 60));
+        }
+        byte[] compressed = new byte[16 * 1024];
+        random.nextBytes(compressed);
+
+        List<ServerMessage> messages = List.of(
+                new ServerMessage.CodeOp("Main.java", 4711, List.of(1280, "x", 20480), "alice",
+                        1_700_000_000_000L, 9001),
+                new ServerMessage.Presence(cursors, List.of("user-42")),
+                new ServerMessage.ChatHistory(chat, "cursor"),
+                new ServerMessage.SnapshotChunk("Main.java", 4711, "abc123", 0, 4, "gzip", compressed));
+
+        for (ServerMessage message : messages) {
+            String name = message.getClass().getSimpleName();
+            Bench.header(name);
+            int iterations = message instanceof ServerMessage.CodeOp ? 2_000_000 : 100_000;
+            for (WireFormat format : WireFormat.values()) {
+                byte[] frame = MessageCodec.encode(format, message);
+                System.out.printf("%-48s %12d bytes%n", format + " size", frame.length);
+                Bench.measure(format + " encode", iterations, () -> MessageCodec.encode(format, message));
+                Bench.measure(format + " decode", iterations, () -> MessageCodec.decodeServer(format, frame));
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.codebuddy.desktop.websocket;
+
+import com.codebuddy.model.TextOperation;
+import com.codebuddy.service.CollaborativeDocument;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs several clients against a server-side document with edits and
+ * deliveries interleaved at random, the way they race over real sockets.
+ */
+class ClientDocumentTest {
+
+    @Test
+    void sendsOneOperationAtATime() {
+        Client client = new Client();
+        Server server = new Server("", List.of(client));
+
+        client.type(0, "a");
+        client.type(1, "b");
+
+        assertThat(client.toServer).hasSize(1);
+        assertThat(client.document.isAwaitingAck()).isTrue();
+        server.receive(client);
+        client.deliverAll();
+
+        assertThat(client.toServer).hasSize(1);
+        server.receive(client);
+        client.deliverAll();
+
+        assertThat(server.document.getContent()).isEqualTo("ab");
+        assertThat(client.document.isAwaitingAck()).isFalse();
+        assertThat(client.document.getRevision()).isEqualTo(2);
+    }
+
+    @Test
+    void rejectsOperationAfterAGap() {
+        Client client = new Client();
+        client.document.reset("abc", 5);
+
+        boolean applied = client.document.applyRemote(7, new TextOperation().retain(3).insert("x"));
+
+        assertThat(applied).isFalse();
+        assertThat(client.text).isEqualTo("abc");
+    }
+
+    @Test
+    void ignoresReplayedOperation() {
+        Client client = new Client();
+        client.document.reset("abc", 5);
+
+        boolean applied = client.document.applyRemote(5, new TextOperation().retain(3).insert("x"));
+
+        assertThat(applied).isTrue();
+        assertThat(client.text).isEqualTo("abc");
+    }
+
+    @Test
+    void concurrentEditsConverge() {
+        for (long seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            List<Client> clients = List.of(new Client(), new Client(), new Client());
+            Server server = new Server("shared text", clients);
+
+            for (int step = 0; step < 300; step++) {
+                Client client = clients.get(random.nextInt(clients.size()));
+                switch (random.nextInt(3)) {
+                    case 0 -> client.editRandomly(random);
+                    case 1 -> server.receive(client);
+                    default -> client.deliverOne();
+                }
+            }
+            server.drain();
+
+            for (Client client : clients) {
+                assertThat(client.text).as("seed %d", seed).isEqualTo(server.document.getContent());
+                assertThat(client.document.getRevision()).isEqualTo(server.document.getRevision());
+                assertThat(client.document.isAwaitingAck()).isFalse();
+            }
+        }
+    }
+
+    private static class Client implements ClientDocument.Editor, ClientDocument.Sender {
+        private final ClientDocument document = new ClientDocument(this, this);
+        private final Queue<Sent> toServer = new ArrayDeque<>();
+        private final Queue<Runnable> fromServer = new ArrayDeque<>();
+        private String text = "";
+
+        @Override
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public void setText(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public void apply(TextOperation operation) {
+            text = operation.apply(text);
+        }
+
+        @Override
+        public boolean send(long revision, TextOperation operation) {
+            toServer.add(new Sent(revision, operation));
+            return true;
+        }
+
+        private void type(int offset, String insert) {
+            text = text.substring(0, offset) + insert + text.substring(offset);
+            document.localChange();
+        }
+
+        private void editRandomly(Random random) {
+            int from = random.nextInt(text.length() + 1);
+            int to = from + random.nextInt(Math.min(3, text.length() - from) + 1);
+            String insert = random.nextBoolean() ? "" : String.valueOf((char) ('a' + random.nextInt(26)));
+            text = text.substring(0, from) + insert + text.substring(to);
+            document.localChange();
+        }
+
+        private boolean deliverOne() {
+            Runnable message = fromServer.poll();
+            if (message != null) {
+                message.run();
+            }
+            return message != null;
+        }
+
+        private void deliverAll() {
+            while (deliverOne()) {
+                // keep delivering
+            }
+        }
+    }
+
+    private record Sent(long revision, TextOperation operation) {
+    }
+
+    private static class Server {
+        private final CollaborativeDocument document;
+        private final List<Client> clients;
+
+        private Server(String content, List<Client> clients) {
+            this.document = new CollaborativeDocument(content, 0, 0, 1000);
+            this.clients = new ArrayList<>(clients);
+            clients.forEach(client -> client.document.reset(content, 0));
+        }
+
+        private boolean receive(Client sender) {
+            Sent sent = sender.toServer.poll();
+            if (sent == null) {
+                return false;
+            }
+            TextOperation applied = document.apply(sent.revision(), sent.operation());
+            long revision = document.getRevision();
+            for (Client client : clients) {
+                if (client == sender) {
+                    client.fromServer.add(() -> client.document.acknowledge(revision));
+                } else {
+                    client.fromServer.add(() ->
+                            assertThat(client.document.applyRemote(revision, applied)).isTrue());
+                }
+            }
+            return true;
+        }
+
+        private void drain() {
+            boolean progress = true;
+            while (progress) {
+                progress = false;
+                for (Client client : clients) {
+                    progress |= receive(client);
+                    progress |= client.deliverOne();
+                }
+            }
+        }
+    }
+}
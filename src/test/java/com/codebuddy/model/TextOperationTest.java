@@ -0,0 +1,117 @@
+package com.codebuddy.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TextOperationTest {
+
+    private static final String ALPHABET = "ab\ncd ";
+
+    @Test
+    void appliesRetainInsertAndDelete() {
+        TextOperation operation = new TextOperation().retain(6).delete(5).insert("there");
+
+        assertThat(operation.apply("hello world")).isEqualTo("hello there");
+        assertThat(operation.getBaseLength()).isEqualTo(11);
+        assertThat(operation.getTargetLength()).isEqualTo(11);
+    }
+
+    @Test
+    void rejectsDocumentOfWrongLength() {
+        TextOperation operation = new TextOperation().retain(3);
+
+        assertThatThrownBy(() -> operation.apply("abcd")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void replaceOnlyTouchesTheChangedSpan() {
+        TextOperation operation = TextOperation.replace("line one\nline two\n", "line one\nline 2\n");
+
+        assertThat(operation.getComponents()).containsExactly(14, "2", -3, 1);
+        assertThat(operation.apply("line one\nline two\n")).isEqualTo("line one\nline 2\n");
+    }
+
+    @Test
+    void replaceOfEqualTextIsNoop() {
+        assertThat(TextOperation.replace("same", "same").isNoop()).isTrue();
+    }
+
+    @Test
+    void componentsRoundTrip() {
+        TextOperation operation = new TextOperation().retain(2).insert("xy").delete(3).retain(1);
+
+        TextOperation copy = TextOperation.fromComponents(List.copyOf(operation.getComponents()));
+
+        assertThat(copy.getComponents()).isEqualTo(operation.getComponents());
+        assertThat(copy.apply("abcdef")).isEqualTo(operation.apply("abcdef"));
+    }
+
+    @Test
+    void concurrentInsertsAtSameOffsetPutFirstOperandFirst() {
+        TextOperation a = new TextOperation().retain(1).insert("A").retain(1);
+        TextOperation b = new TextOperation().retain(1).insert("B").retain(1);
+
+        TextOperation[] pair = TextOperation.transform(a, b);
+
+        assertThat(pair[1].apply(a.apply("xy"))).isEqualTo("xABy");
+        assertThat(pair[0].apply(b.apply("xy"))).isEqualTo("xABy");
+    }
+
+    @Test
+    void transformedOperationsConverge() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5_000; i++) {
+            String document = randomText(random, random.nextInt(20));
+            TextOperation a = randomOperation(random, document);
+            TextOperation b = randomOperation(random, document);
+
+            TextOperation[] pair = TextOperation.transform(a, b);
+
+            assertThat(pair[1].apply(a.apply(document)))
+                    .as("document %s, a %s, b %s", document, a.getComponents(), b.getComponents())
+                    .isEqualTo(pair[0].apply(b.apply(document)));
+        }
+    }
+
+    @Test
+    void transformRejectsOperationsOnDifferentDocuments() {
+        TextOperation a = new TextOperation().retain(2);
+        TextOperation b = new TextOperation().retain(3);
+
+        assertThatThrownBy(() -> TextOperation.transform(a, b)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static TextOperation randomOperation(Random random, String document) {
+        TextOperation operation = new TextOperation();
+        int index = 0;
+        while (index < document.length()) {
+            int n = 1 + random.nextInt(document.length() - index);
+            switch (random.nextInt(3)) {
+                case 0 -> operation.retain(n);
+                case 1 -> operation.delete(n);
+                default -> {
+                    operation.insert(randomText(random, 1 + random.nextInt(4)));
+                    continue;
+                }
+            }
+            index += n;
+        }
+        if (random.nextBoolean()) {
+            operation.insert(randomText(random, 1 + random.nextInt(4)));
+        }
+        return operation;
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,149 @@
+package com.codebuddy.protocol;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MessageCodecTest {
+
+    @ParameterizedTest
+    @EnumSource(WireFormat.class)
+    void clientMessagesRoundTrip(WireFormat format) throws Exception {
+        for (ClientMessage message : clientMessages()) {
+            byte[] frame = MessageCodec.encode(format, message);
+
+            assertThat(MessageCodec.decodeClient(format, frame)).as(message.type()).isEqualTo(message);
+        }
+    }
+
+    @Test
+    void clientMessagesRoundTripAsText() throws Exception {
+        for (ClientMessage message : clientMessages()) {
+            String frame = MessageCodec.encodeText(message);
+
+            assertThat(frame).as(message.type()).startsWith("{\"type\":\"" + message.type() + "\"");
+            assertThat(MessageCodec.decodeClient(frame)).as(message.type()).isEqualTo(message);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(WireFormat.class)
+    void serverMessagesRoundTrip(WireFormat format) throws Exception {
+        for (ServerMessage message : serverMessages()) {
+            byte[] frame = MessageCodec.encode(format, message);
+
+            assertThat(MessageCodec.decodeServer(format, frame))
+                    .as(message.getClass().getSimpleName())
+                    .usingRecursiveComparison()
+                    .isEqualTo(message);
+        }
+    }
+
+    @Test
+    void unstampedBroadcastOmitsSeq() throws Exception {
+        String frame = MessageCodec.encodeText(new ServerMessage.FileCreate("Main.java", "alice", 0));
+
+        assertThat(frame).doesNotContain("seq");
+    }
+
+    @Test
+    void unknownClientTypeIsKeptForRateLimiting() throws Exception {
+        ClientMessage message = MessageCodec.decodeClient("{\"type\":\"from_the_future\",\"userId\":\"alice\",\"x\":[1,{}]}");
+
+        assertThat(message).isEqualTo(new ClientMessage.Unknown("from_the_future", "alice"));
+    }
+
+    @Test
+    void missingRequiredFieldIsRejected() {
+        assertThatThrownBy(() -> MessageCodec.decodeClient("{\"type\":\"code_op\",\"filename\":\"Main.java\",\"userId\":\"alice\"}"))
+                .isInstanceOf(JsonParseException.class)
+                .hasMessageContaining("ops");
+    }
+
+    @Test
+    void invalidOperationComponentIsRejected() {
+        assertThatThrownBy(() -> MessageCodec.decodeClient(
+                "{\"type\":\"code_op\",\"filename\":\"Main.java\",\"userId\":\"alice\",\"ops\":[1,true]}"))
+                .isInstanceOf(JsonParseException.class);
+    }
+
+    @ParameterizedTest
+    @EnumSource(WireFormat.class)
+    void clientToleratesNewerServers(WireFormat format) throws Exception {
+        byte[] unknownType = format.getMapper().writeValueAsBytes(
+                format.getMapper().createObjectNode().put("type", "from_the_future"));
+        ObjectNode extraField = format.getMapper().createObjectNode()
+                .put("type", "error")
+                .put("message", "boom")
+                .put("severity", "high");
+
+        assertThat(MessageCodec.decodeServer(format, unknownType)).isNull();
+        assertThat(MessageCodec.decodeServer(format, format.getMapper().writeValueAsBytes(extraField)))
+                .isEqualTo(new ServerMessage.ErrorMessage("boom"));
+    }
+
+    @Test
+    void cborFramesAreSmallerThanJson() throws Exception {
+        ServerMessage message = new ServerMessage.CodeOp("Main.java", 1234,
+                List.of(120, "System.out.println(value);", -3, 2048), "alice", 1_700_000_000_000L, 99);
+
+        int cbor = MessageCodec.encode(WireFormat.CBOR, message).length;
+        int json = MessageCodec.encodeText(message).getBytes(StandardCharsets.UTF_8).length;
+
+        assertThat(cbor).isLessThan(json);
+    }
+
+    private static List<ClientMessage> clientMessages() {
+        ObjectNode selection = WireFormat.JSON.getMapper().createObjectNode()
+                .put("startLine", 1).put("startColumn", 2).put("endLine", 3).put("endColumn", 4);
+        return List.of(
+                new ClientMessage.CodeOp("Main.java", 42, "alice", List.of(3, "héllo ✓", -2, 7)),
+                new ClientMessage.CodeChange("Main.java", "class Main {}\n", "alice"),
+                new ClientMessage.CursorPosition("alice", 10, 4, selection),
+                new ClientMessage.CursorPosition("alice", 10, 4, null),
+                new ClientMessage.FileCreate("util/Strings.java", "alice"),
+                new ClientMessage.FileDelete("util/Strings.java", "alice"),
+                new ClientMessage.Resume("epoch-1", 17),
+                new ClientMessage.SnapshotRequest(List.of("Main.java", "README.md")),
+                new ClientMessage.ChatMessage("alice", "Alice", "hi there"),
+                new ClientMessage.UserTyping("alice", "Alice", true),
+                new ClientMessage.AiRequest("req-1", "alice", "EXPLAIN", "int x;", "Java", null, true));
+    }
+
+    private static List<ServerMessage> serverMessages() {
+        return List.of(
+                new ServerMessage.ConnectionEstablished("session-1", "epoch-1", 5, "Connected"),
+                new ServerMessage.CodeOp("Main.java", 7, List.of(1, "x", -1), "alice", 1_700_000_000_000L, 3),
+                new ServerMessage.CodeOp("Main.java", 8, List.of("y", 3), "bob", 1_700_000_000_001L, 0),
+                new ServerMessage.CodeOpAck("Main.java", 7, 3),
+                new ServerMessage.CodeChange("Main.java", "text", 9, "alice", 1_700_000_000_000L, 4),
+                new ServerMessage.CodeResync("Main.java", "text", 9),
+                new ServerMessage.FileCreate("a.txt", "alice", 5),
+                new ServerMessage.FileDelete("a.txt", "alice", 6),
+                new ServerMessage.Presence(List.of(new ServerMessage.Cursor("alice", 1, 2, null)), List.of("bob")),
+                new ServerMessage.Resumed("epoch-1", 12, 4),
+                new ServerMessage.RoomManifest("epoch-1", 12,
+                        List.of(new ServerMessage.ManifestFile("Main.java", "abc123", 9, 4))),
+                new ServerMessage.SnapshotChunk("Main.java", 9, "abc123", 0, 1, "gzip",
+                        new byte[] { 31, -117, 8, 0, 127, -128 }),
+                new ServerMessage.SnapshotComplete(List.of()),
+                new ServerMessage.Throttled("chat_message", "chat", "user", 250),
+                new ServerMessage.ErrorMessage("boom"),
+                new ServerMessage.ChatMessage("m1", "alice", "Alice", "hi", "2026-01-01T00:00:00"),
+                new ServerMessage.ChatHistory(
+                        List.of(new ServerMessage.ChatMessage("m1", "alice", "Alice", "hi", "2026-01-01T00:00:00")),
+                        "cursor"),
+                new ServerMessage.UserTyping("alice", "Alice", false),
+                new ServerMessage.AiChunk("req-1", 0, "Hello"),
+                new ServerMessage.AiCodeBlock("req-1", "int x;"),
+                new ServerMessage.AiComplete("req-1", true, "Hello", null, null));
+    }
+}
@@ -0,0 +1,193 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.AIRequest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Runs one call at a time and holds the first one open while the others
+ * queue up, so the order they start in is the scheduler's choice.
+ */
+class AISchedulerTest {
+
+    private static final long NO_AGING = TimeUnit.HOURS.toMillis(1);
+
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+    private final CompletableFuture<String> gate = new CompletableFuture<>();
+    private AIScheduler scheduler;
+
+    @AfterEach
+    void close() {
+        gate.complete("done");
+        scheduler.close();
+    }
+
+    @Test
+    void higherPriorityGoesFirst() throws Exception {
+        scheduler = scheduler(new MockEnvironment(), 16, 16, 0, NO_AGING);
+        block();
+
+        List<CompletableFuture<String>> results = List.of(
+                submit("review", "s1", "u1", AIRequest.AIAction.REVIEW),
+                submit("comments", "s1", "u1", AIRequest.AIAction.ADD_COMMENTS),
+                submit("explain", "s1", "u1", AIRequest.AIAction.EXPLAIN));
+
+        assertThat(release(results)).containsExactly("explain", "comments", "review");
+    }
+
+    @Test
+    void sessionsTakeTurnsWithinAPriority() throws Exception {
+        scheduler = scheduler(new MockEnvironment(), 16, 16, 0, NO_AGING);
+        block();
+
+        List<CompletableFuture<String>> results = List.of(
+                submit("a1", "a", "u1", AIRequest.AIAction.EXPLAIN),
+                submit("a2", "a", "u1", AIRequest.AIAction.EXPLAIN),
+                submit("a3", "a", "u1", AIRequest.AIAction.EXPLAIN),
+                submit("b1", "b", "u2", AIRequest.AIAction.EXPLAIN),
+                submit("c1", "c", "u3", AIRequest.AIAction.EXPLAIN));
+
+        assertThat(release(results)).containsExactly("a1", "b1", "c1", "a2", "a3");
+    }
+
+    @Test
+    void usersOfASessionTakeTurns() throws Exception {
+        scheduler = scheduler(new MockEnvironment(), 16, 16, 0, NO_AGING);
+        block();
+
+        List<CompletableFuture<String>> results = List.of(
+                submit("alice1", "a", "alice", AIRequest.AIAction.FIX_BUGS),
+                submit("alice2", "a", "alice", AIRequest.AIAction.FIX_BUGS),
+                submit("bob1", "a", "bob", AIRequest.AIAction.FIX_BUGS));
+
+        assertThat(release(results)).containsExactly("alice1", "bob1", "alice2");
+    }
+
+    @Test
+    void overdueLowPriorityCallsAreServedFirst() throws Exception {
+        scheduler = scheduler(new MockEnvironment(), 16, 16, 0, 0);
+        block();
+
+        List<CompletableFuture<String>> results = List.of(
+                submit("explain", "s1", "u1", AIRequest.AIAction.EXPLAIN),
+                submit("review", "s1", "u1", AIRequest.AIAction.REVIEW));
+        Thread.sleep(5);
+
+        assertThat(release(results)).containsExactly("review", "explain");
+    }
+
+    @Test
+    void priorityOfAnActionCanBeConfigured() throws Exception {
+        scheduler = scheduler(new MockEnvironment().withProperty("codebuddy.ai.scheduler.priority.review", "HIGH"),
+                16, 16, 0, NO_AGING);
+        block();
+
+        List<CompletableFuture<String>> results = List.of(
+                submit("comments", "s1", "u1", AIRequest.AIAction.ADD_COMMENTS),
+                submit("review", "s1", "u1", AIRequest.AIAction.REVIEW));
+
+        assertThat(release(results)).containsExactly("review", "comments");
+    }
+
+    @Test
+    void rejectsCallsBeyondTheSessionShare() throws Exception {
+        scheduler = scheduler(new MockEnvironment(), 16, 2, 0, NO_AGING);
+        block();
+
+        submit("a1", "a", "u1", AIRequest.AIAction.EXPLAIN);
+        submit("a2", "a", "u1", AIRequest.AIAction.EXPLAIN);
+        CompletableFuture<String> rejected = submit("a3", "a", "u1", AIRequest.AIAction.EXPLAIN);
+        CompletableFuture<String> otherSession = submit("b1", "b", "u2", AIRequest.AIAction.EXPLAIN);
+
+        assertThatThrownBy(rejected::join).hasCauseInstanceOf(RejectedExecutionException.class);
+        assertThat(otherSession).isNotDone();
+    }
+
+    @Test
+    void rejectsCallsBeyondTheQueueLimit() throws Exception {
+        scheduler = scheduler(new MockEnvironment(), 2, 16, 0, NO_AGING);
+        block();
+
+        submit("a1", "a", "u1", AIRequest.AIAction.EXPLAIN);
+        submit("b1", "b", "u2", AIRequest.AIAction.EXPLAIN);
+        CompletableFuture<String> rejected = submit("c1", "c", "u3", AIRequest.AIAction.EXPLAIN);
+
+        assertThatThrownBy(rejected::join).hasCauseInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    void failedCallFreesItsSlot() throws Exception {
+        scheduler = scheduler(new MockEnvironment(), 16, 16, 0, NO_AGING);
+
+        CompletableFuture<String> failed = scheduler.submit(request("s1", "u1", AIRequest.AIAction.EXPLAIN), "prompt",
+                () -> {
+                    throw new IllegalStateException("upstream down");
+                });
+        CompletableFuture<String> next = submit("next", "s1", "u1", AIRequest.AIAction.EXPLAIN);
+
+        assertThatThrownBy(failed::join).isInstanceOf(CompletionException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(next.get(5, TimeUnit.SECONDS)).isEqualTo("next");
+    }
+
+    @Test
+    void waitsForTheRequestBudget() throws Exception {
+        scheduler = scheduler(new MockEnvironment(), 16, 16, 1, NO_AGING);
+
+        CompletableFuture<String> first = submit("first", "s1", "u1", AIRequest.AIAction.EXPLAIN);
+        CompletableFuture<String> second = submit("second", "s2", "u2", AIRequest.AIAction.EXPLAIN);
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("first");
+        Thread.sleep(200);
+        assertThat(second).isNotDone();
+        scheduler.close();
+        assertThatThrownBy(second::join).hasCauseInstanceOf(RejectedExecutionException.class);
+    }
+
+    private AIScheduler scheduler(MockEnvironment environment, int maxQueued, int maxQueuedPerSession,
+                                  long requestsPerMinute, long agingMs) {
+        return new AIScheduler(new SimpleMeterRegistry(), environment, 1, maxQueued, maxQueuedPerSession,
+                requestsPerMinute, 0, agingMs);
+    }
+
+    // Occupies the only slot until release
+    private void block() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        scheduler.submit(request("blocker", "blocker", AIRequest.AIAction.EXPLAIN), "prompt", () -> {
+            running.countDown();
+            return gate;
+        });
+        assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private List<String> release(List<CompletableFuture<String>> results) throws Exception {
+        gate.complete("done");
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+        return started;
+    }
+
+    private CompletableFuture<String> submit(String name, String sessionId, String userId, AIRequest.AIAction action) {
+        return scheduler.submit(request(sessionId, userId, action), "prompt", () -> {
+            started.add(name);
+            return CompletableFuture.completedFuture(name);
+        });
+    }
+
+    private static AIRequest request(String sessionId, String userId, AIRequest.AIAction action) {
+        return new AIRequest(sessionId, userId, "int x;", "Java", action);
+    }
+}
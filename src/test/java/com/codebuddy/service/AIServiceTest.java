@@ -0,0 +1,168 @@
+package com.codebuddy.service;
+
+import com.codebuddy.model.AIRequest;
+import com.codebuddy.model.AIResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AIServiceTest {
+
+    private static final String ANSWER = "Use this:\n```java\nint x = 1;\n```\n";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AIGateway aiGateway = mock(AIGateway.class);
+    private final AIScheduler aiScheduler = mock(AIScheduler.class);
+    private AIService aiService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws Exception {
+        aiService = new AIService(meterRegistry);
+        ReflectionTestUtils.setField(aiService, "aiGateway", aiGateway);
+        ReflectionTestUtils.setField(aiService, "aiScheduler", aiScheduler);
+        ReflectionTestUtils.setField(aiService, "responseCache",
+                new AIResponseCache(meterRegistry, 100, 60_000, false, "unused", 10));
+        when(aiGateway.isConfigured()).thenReturn(true);
+        // Calls start as soon as they are submitted
+        when(aiScheduler.submit(any(), anyString(), any())).thenAnswer(invocation ->
+                ((Supplier<CompletableFuture<String>>) invocation.getArgument(2)).get());
+    }
+
+    @Test
+    void identicalRequestsShareOneCall() {
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        when(aiGateway.complete(anyString())).thenReturn(upstream);
+
+        CompletableFuture<AIResponse> alice = aiService.processRequest(request("s1", "alice", "int x;"));
+        // Same question about the same code, modulo trailing whitespace, from another session
+        CompletableFuture<AIResponse> bob = aiService.processRequest(request("s2", "bob", "int x;  \n"));
+        upstream.complete(ANSWER);
+
+        verify(aiGateway, times(1)).complete(anyString());
+        assertThat(alice.join().getResponse()).isEqualTo(ANSWER);
+        assertThat(alice.join().getUserId()).isEqualTo("alice");
+        assertThat(bob.join().getResponse()).isEqualTo(ANSWER);
+        assertThat(bob.join().getUserId()).isEqualTo("bob");
+        assertThat(bob.join().getSuggestedCode()).isEqualTo("int x = 1;\n");
+        assertThat(meterRegistry.counter("codebuddy.ai.requests.coalesced").count()).isEqualTo(1);
+    }
+
+    @Test
+    void laterRequestIsServedFromCache() {
+        when(aiGateway.complete(anyString())).thenReturn(CompletableFuture.completedFuture(ANSWER));
+
+        aiService.processRequest(request("s1", "alice", "int x;")).join();
+        AIResponse cached = aiService.processRequest(request("s1", "bob", "int x;")).join();
+
+        verify(aiGateway, times(1)).complete(anyString());
+        assertThat(cached.isCached()).isTrue();
+        assertThat(cached.getResponse()).isEqualTo(ANSWER);
+        assertThat(cached.getSuggestedCode()).isEqualTo("int x = 1;\n");
+    }
+
+    @Test
+    void differentRequestsDoNotShare() {
+        when(aiGateway.complete(anyString())).thenReturn(new CompletableFuture<>());
+
+        aiService.processRequest(request("s1", "alice", "int x;"));
+        aiService.processRequest(request("s1", "alice", "int y;"));
+
+        verify(aiGateway, times(2)).complete(anyString());
+    }
+
+    @Test
+    void failureReachesEveryWaiterAndIsNotCached() {
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        when(aiGateway.complete(anyString())).thenReturn(upstream);
+
+        CompletableFuture<AIResponse> first = aiService.processRequest(request("s1", "alice", "int x;"));
+        CompletableFuture<AIResponse> second = aiService.processRequest(request("s2", "bob", "int x;"));
+        upstream.completeExceptionally(new AIGateway.ApiException("rate limited"));
+
+        assertThat(first.join().isSuccess()).isFalse();
+        assertThat(first.join().getError()).contains("rate limited");
+        assertThat(second.join().isSuccess()).isFalse();
+
+        when(aiGateway.complete(anyString())).thenReturn(CompletableFuture.completedFuture(ANSWER));
+        AIResponse retry = aiService.processRequest(request("s1", "alice", "int x;")).join();
+
+        assertThat(retry.isSuccess()).isTrue();
+        assertThat(retry.isCached()).isFalse();
+        verify(aiGateway, times(2)).complete(anyString());
+    }
+
+    @Test
+    void lateStreamingSubscriberIsCaughtUp() {
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        AtomicReference<Consumer<String>> tokens = new AtomicReference<>();
+        when(aiGateway.stream(anyString(), any())).thenAnswer(invocation -> {
+            tokens.set(invocation.getArgument(1));
+            return upstream;
+        });
+        Recorder early = new Recorder();
+        Recorder late = new Recorder();
+
+        CompletableFuture<AIResponse> first = aiService.streamRequest(request("s1", "alice", "int x;"), early);
+        tokens.get().accept("Use this:\n```ja");
+        CompletableFuture<AIResponse> second = aiService.streamRequest(request("s2", "bob", "int x;"), late);
+        tokens.get().accept("va\nint x = 1;\n```\n");
+        upstream.complete(ANSWER);
+
+        verify(aiGateway, times(1)).stream(anyString(), any());
+        assertThat(early.text).hasToString(ANSWER);
+        assertThat(late.text).hasToString(ANSWER);
+        assertThat(early.codeBlocks).containsExactly("int x = 1;\n");
+        assertThat(late.codeBlocks).containsExactly("int x = 1;\n");
+        assertThat(first.join().getResponse()).isEqualTo(ANSWER);
+        assertThat(second.join().getResponse()).isEqualTo(ANSWER);
+    }
+
+    @Test
+    void nonStreamingRequestJoinsAStreamingCall() {
+        CompletableFuture<String> upstream = new CompletableFuture<>();
+        when(aiGateway.stream(anyString(), any())).thenReturn(upstream);
+
+        aiService.streamRequest(request("s1", "alice", "int x;"), new Recorder());
+        CompletableFuture<AIResponse> plain = aiService.processRequest(request("s2", "bob", "int x;"));
+        upstream.complete(ANSWER);
+
+        verify(aiGateway, times(0)).complete(anyString());
+        assertThat(plain.join().getResponse()).isEqualTo(ANSWER);
+    }
+
+    private static AIRequest request(String sessionId, String userId, String code) {
+        return new AIRequest(sessionId, userId, code, "Java", AIRequest.AIAction.EXPLAIN);
+    }
+
+    private static class Recorder implements AIStreamListener {
+        private final StringBuilder text = new StringBuilder();
+        private final List<String> codeBlocks = new ArrayList<>();
+
+        @Override
+        public void onToken(String token) {
+            text.append(token);
+        }
+
+        @Override
+        public void onCodeBlock(String code) {
+            codeBlocks.add(code);
+        }
+    }
+}
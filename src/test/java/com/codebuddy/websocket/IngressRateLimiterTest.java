@@ -0,0 +1,147 @@
+package com.codebuddy.websocket;
+
+import com.codebuddy.protocol.ClientMessage;
+import com.codebuddy.protocol.ServerMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.InetSocketAddress;
+import java.security.Principal;
+import java.util.HashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class IngressRateLimiterTest {
+
+    // Slow enough that nothing refills while a test runs
+    private static final String SLOW = "0.001";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void admitsBurstThenThrottlesConnection() {
+        IngressRateLimiter limiter = limiter(new MockEnvironment()
+                .withProperty("codebuddy.ws.ratelimit.chat.connection-rate", SLOW)
+                .withProperty("codebuddy.ws.ratelimit.chat.connection-burst", "3"));
+        WebSocketSession session = session("10.0.0.1", null);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(limiter.admit(session, chat("alice"))).isNull();
+        }
+        ServerMessage.Throttled throttled = limiter.admit(session, chat("alice"));
+
+        assertThat(throttled).isNotNull();
+        assertThat(throttled.category()).isEqualTo("chat");
+        assertThat(throttled.scope()).isEqualTo("connection");
+        assertThat(throttled.retryAfterMs()).isPositive();
+        assertThat(meterRegistry.counter("codebuddy.ws.ratelimit.rejected",
+                "category", "chat", "scope", "connection").count()).isEqualTo(1);
+    }
+
+    @Test
+    void categoriesHaveSeparateBuckets() {
+        IngressRateLimiter limiter = limiter(new MockEnvironment()
+                .withProperty("codebuddy.ws.ratelimit.chat.connection-rate", SLOW)
+                .withProperty("codebuddy.ws.ratelimit.chat.connection-burst", "1"));
+        WebSocketSession session = session("10.0.0.1", null);
+
+        assertThat(limiter.admit(session, chat("alice"))).isNull();
+        assertThat(limiter.admit(session, chat("alice"))).isNotNull();
+        assertThat(limiter.admit(session, new ClientMessage.FileCreate("Main.java", "alice"))).isNull();
+    }
+
+    @Test
+    void connectionsFromOneAddressShareTheUserBucket() {
+        IngressRateLimiter limiter = limiter(userLimitedChat());
+        WebSocketSession first = session("10.0.0.1", null);
+        WebSocketSession second = session("10.0.0.1", null);
+
+        assertThat(limiter.admit(first, chat("alice"))).isNull();
+        assertThat(limiter.admit(second, chat("alice"))).isNull();
+        ServerMessage.Throttled throttled = limiter.admit(second, chat("alice"));
+
+        assertThat(throttled).isNotNull();
+        assertThat(throttled.scope()).isEqualTo("user");
+    }
+
+    @Test
+    void ignoresTheUserIdAFrameClaims() {
+        IngressRateLimiter limiter = limiter(userLimitedChat());
+        WebSocketSession session = session("10.0.0.1", null);
+
+        assertThat(limiter.admit(session, chat("alice"))).isNull();
+        assertThat(limiter.admit(session, chat("bob"))).isNull();
+        assertThat(limiter.admit(session, chat("carol"))).isNotNull();
+    }
+
+    @Test
+    void keysOnThePrincipalWhenAuthenticated() {
+        IngressRateLimiter limiter = limiter(userLimitedChat());
+        WebSocketSession alice = session("10.0.0.1", "alice");
+        WebSocketSession bob = session("10.0.0.1", "bob");
+
+        assertThat(limiter.admit(alice, chat("alice"))).isNull();
+        assertThat(limiter.admit(alice, chat("alice"))).isNull();
+        assertThat(limiter.admit(alice, chat("alice"))).isNotNull();
+        assertThat(limiter.admit(bob, chat("bob"))).isNull();
+    }
+
+    @Test
+    void refilledUserBucketsAreEvicted() throws InterruptedException {
+        IngressRateLimiter limiter = limiter(new MockEnvironment()
+                .withProperty("codebuddy.ws.ratelimit.chat.user-rate", "1000000"));
+        limiter.admit(session("10.0.0.1", null), chat("alice"));
+        assertThat(userBuckets()).isEqualTo(1);
+
+        Thread.sleep(5);
+        limiter.evictIdle();
+
+        assertThat(userBuckets()).isZero();
+    }
+
+    @Test
+    void rejectsInvalidLimitsAtStartup() {
+        assertThatThrownBy(() -> limiter(new MockEnvironment()
+                .withProperty("codebuddy.ws.ratelimit.edit.user-rate", "0")))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("codebuddy.ws.ratelimit.edit.user-rate");
+        assertThatThrownBy(() -> limiter(new MockEnvironment()
+                .withProperty("codebuddy.ws.ratelimit.ai.connection-burst", "0")))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("codebuddy.ws.ratelimit.ai.connection-burst");
+    }
+
+    private IngressRateLimiter limiter(MockEnvironment environment) {
+        return new IngressRateLimiter(meterRegistry, environment);
+    }
+
+    private static MockEnvironment userLimitedChat() {
+        return new MockEnvironment()
+                .withProperty("codebuddy.ws.ratelimit.chat.user-rate", SLOW)
+                .withProperty("codebuddy.ws.ratelimit.chat.user-burst", "2");
+    }
+
+    private double userBuckets() {
+        return meterRegistry.get("codebuddy.ws.ratelimit.user.buckets").gauge().value();
+    }
+
+    private static WebSocketSession session(String address, String principal) {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getAttributes()).thenReturn(new HashMap<>());
+        when(session.getRemoteAddress()).thenReturn(new InetSocketAddress(address, 40000));
+        if (principal != null) {
+            Principal user = () -> principal;
+            when(session.getPrincipal()).thenReturn(user);
+        }
+        return session;
+    }
+
+    private static ClientMessage chat(String userId) {
+        return new ClientMessage.ChatMessage(userId, userId, "hi");
+    }
+}
@@ -0,0 +1,80 @@
+package com.codebuddy.websocket;
+
+import com.codebuddy.protocol.ServerMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RoomReplayBufferTest {
+
+    private static final String ROOM = "room-1";
+
+    // Every room is past its retention period by the time evictIdle runs
+    private final RoomReplayBuffer buffer = new RoomReplayBuffer(new SimpleMeterRegistry(), 8, -1);
+
+    @Test
+    void replaysFramesAfterLastSeq() {
+        String epoch = buffer.getEpoch(ROOM);
+        record();
+        record();
+        record();
+
+        List<RoomReplayBuffer.Entry> frames = buffer.framesAfter(ROOM, epoch, 1);
+
+        assertThat(frames).extracting(RoomReplayBuffer.Entry::getSeq).containsExactly(2L, 3L);
+    }
+
+    @Test
+    void gapLargerThanBufferNeedsSnapshot() {
+        String epoch = buffer.getEpoch(ROOM);
+        for (int i = 0; i < 10; i++) {
+            record();
+        }
+
+        assertThat(buffer.framesAfter(ROOM, epoch, 1)).isNull();
+        assertThat(buffer.framesAfter(ROOM, "other-epoch", 9)).isNull();
+    }
+
+    @Test
+    void occupiedRoomKeepsItsSequenceAcrossEviction() {
+        buffer.attach(ROOM, "connection-1");
+        String epoch = buffer.getEpoch(ROOM);
+        record();
+
+        buffer.evictIdle();
+        RoomReplayBuffer.Entry next = record();
+
+        assertThat(buffer.getEpoch(ROOM)).isEqualTo(epoch);
+        assertThat(next.getSeq()).isEqualTo(2);
+        assertThat(buffer.framesAfter(ROOM, epoch, 1)).containsExactly(next);
+    }
+
+    @Test
+    void roomIsEvictedOnceTheLastConnectionLeaves() {
+        buffer.attach(ROOM, "connection-1");
+        buffer.attach(ROOM, "connection-2");
+        String epoch = buffer.getEpoch(ROOM);
+        record();
+
+        buffer.detach(ROOM, "connection-1");
+        buffer.evictIdle();
+        assertThat(buffer.getEpoch(ROOM)).isEqualTo(epoch);
+
+        buffer.detach(ROOM, "connection-2");
+        buffer.evictIdle();
+        RoomReplayBuffer.Entry next = record();
+
+        // A new sequence in a new epoch, which tells clients to reset what they have seen
+        assertThat(next.getSeq()).isEqualTo(1);
+        assertThat(buffer.getEpoch(ROOM)).isNotEqualTo(epoch);
+        assertThat(buffer.framesAfter(ROOM, epoch, 1)).isNull();
+    }
+
+    private RoomReplayBuffer.Entry record() {
+        return buffer.record(ROOM, new ServerMessage.FileCreate("Main.java", "alice", 0),
+                OutboundMessageDispatcher.FrameKind.EDIT);
+    }
+}